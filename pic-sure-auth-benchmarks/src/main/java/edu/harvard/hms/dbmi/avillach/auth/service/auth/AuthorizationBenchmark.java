@@ -0,0 +1,89 @@
+package edu.harvard.hms.dbmi.avillach.auth.service.auth;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>{@link AuthorizationService#isAuthorized} over FENCE-style rule sets, see {@link FenceRuleSet}.</p>
+ *
+ * The service is wired the way CDI wires it, except for the decision cache, so every invocation
+ * goes through the evaluation. The access log goes to a sink that drops the lines.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AuthorizationBenchmark {
+
+    @Param({"1", "10", "100", "1000"})
+    int consents;
+
+    @Param({"0", "4"})
+    int gates;
+
+    @Param({"0", "4"})
+    int standardRules;
+
+    @Param({"10", "1000"})
+    int fields;
+
+    /**
+     * with more than one thread every plan is evaluated by the {@link ParallelRuleEvaluator}
+     */
+    @Param({"0", "4"})
+    int parallelThreads;
+
+    private FenceRuleSet ruleSet;
+    private AuthorizationService authorizationService;
+    private AccessLogWriter accessLogWriter;
+    private ParallelRuleEvaluator parallelEvaluator;
+
+    private Map<String, Object> grantedRequest;
+    private Map<String, Object> deniedRequest;
+
+    @Setup
+    public void setup() {
+        ruleSet = new FenceRuleSet(consents, gates, standardRules);
+
+        accessLogWriter = new AccessLogWriter();
+        accessLogWriter.start(line -> {}, 10000, true);
+
+        authorizationService = new AuthorizationService();
+        authorizationService.accessRulePlanCache = new AccessRulePlanCache();
+        authorizationService.accessLogWriter = accessLogWriter;
+
+        parallelEvaluator = new ParallelRuleEvaluator();
+        parallelEvaluator.start(parallelThreads, 0);
+        authorizationService.parallelEvaluator = parallelEvaluator;
+
+        grantedRequest = FenceRuleSet.request(ruleSet.getConsents().get(consents / 2), fields);
+        deniedRequest = FenceRuleSet.request("phs999999.c1", fields);
+
+        if (!authorizationService.isAuthorized(ruleSet.getApplication(), grantedRequest, ruleSet.getUser())
+                || authorizationService.isAuthorized(ruleSet.getApplication(), deniedRequest, ruleSet.getUser()))
+            throw new IllegalStateException("the benchmark requests are not authorized as expected");
+    }
+
+    @TearDown
+    public void tearDown() {
+        accessLogWriter.stop();
+        parallelEvaluator.stop();
+    }
+
+    @Benchmark
+    public boolean granted() {
+        return authorizationService.isAuthorized(ruleSet.getApplication(), grantedRequest, ruleSet.getUser());
+    }
+
+    /**
+     * every accessRule is evaluated before the request is denied
+     */
+    @Benchmark
+    public boolean denied() {
+        return authorizationService.isAuthorized(ruleSet.getApplication(), deniedRequest, ruleSet.getUser());
+    }
+}
@@ -0,0 +1,178 @@
+package edu.harvard.hms.dbmi.avillach.auth.service.auth;
+
+import edu.harvard.hms.dbmi.avillach.auth.data.entity.*;
+
+import java.util.*;
+
+/**
+ * <p>Roles, privileges and accessRules shaped like the ones
+ * {@link FENCEAuthenticationService} creates, for the benchmarks.</p>
+ *
+ * Every consent gets a PRIV_FENCE_&lt;project&gt;_&lt;consent&gt; privilege with an
+ * AR_&lt;project&gt;_&lt;consent&gt; accessRule on the consent concept path, guarded by the same GATE_ accessRules,
+ * plus the standard AR_ accessRules shared by all the privileges.
+ */
+public class FenceRuleSet {
+
+    public static final String CONSENT_CONCEPT_PATH = "\\_Consents\\";
+
+    public static final String RESOURCE_UUID = "8694e3d4-5cb4-410f-8431-993445e6d3f6";
+
+    private final Application application;
+    private final List<Privilege> privileges = new ArrayList<>();
+    private final Role role;
+    private final User user;
+    private final List<String> consents = new ArrayList<>();
+
+    /**
+     * @param consentCount number of project/consent pairs the user has a privilege for
+     * @param gateCount number of GATE_ accessRules on every AR_ accessRule, up to 4
+     * @param standardRuleCount number of standard AR_ accessRules on every privilege, up to 4
+     */
+    public FenceRuleSet(int consentCount, int gateCount, int standardRuleCount) {
+        application = new Application();
+        application.setUuid(UUID.randomUUID());
+        application.setName("PICSURE");
+
+        List<AccessRule> gates = gates().subList(0, Math.min(gateCount, 4));
+        List<AccessRule> standardRules = standardRules().subList(0, Math.min(standardRuleCount, 4));
+
+        for (int i = 0; i < consentCount; i++) {
+            String project = String.format("phs%06d", i);
+            String consent = "c" + (i % 3 + 1);
+            consents.add(project + "." + consent);
+            privileges.add(privilege(project, consent, gates, standardRules));
+        }
+
+        role = new Role();
+        role.setUuid(UUID.randomUUID());
+        role.setName("FENCE_ROLE");
+        role.setPrivileges(new HashSet<>(privileges));
+
+        user = new User();
+        user.setUuid(UUID.randomUUID());
+        user.setEmail("benchmark@example.com");
+        user.setSubject("benchmark");
+        user.setRoles(new HashSet<>(Collections.singletonList(role)));
+    }
+
+    public Application getApplication() {
+        return application;
+    }
+
+    public List<Privilege> getPrivileges() {
+        return privileges;
+    }
+
+    public Role getRole() {
+        return role;
+    }
+
+    public User getUser() {
+        return user;
+    }
+
+    /**
+     * @return the &lt;project&gt;.&lt;consent&gt; values the user has access to
+     */
+    public List<String> getConsents() {
+        return consents;
+    }
+
+    /**
+     * A PIC-SURE query request, as forwarded by the application for token introspection.
+     *
+     * @param consent the &lt;project&gt;.&lt;consent&gt; value the query is filtered on
+     * @param fieldCount number of fields, to vary the size of the request body
+     * @return the request, as Jackson deserializes it
+     */
+    public static Map<String, Object> request(String consent, int fieldCount) {
+        Map<String, Object> categoryFilters = new LinkedHashMap<>();
+        categoryFilters.put(CONSENT_CONCEPT_PATH, new ArrayList<>(Collections.singletonList(consent)));
+
+        List<String> fields = new ArrayList<>();
+        for (int i = 0; i < fieldCount; i++) {
+            fields.add("\\phs000001\\pht000001\\phv" + String.format("%08d", i) + "\\");
+        }
+
+        Map<String, Object> query = new LinkedHashMap<>();
+        query.put("categoryFilters", categoryFilters);
+        query.put("numericFilters", new LinkedHashMap<>());
+        query.put("requiredFields", new ArrayList<>());
+        query.put("fields", fields);
+        query.put("variantInfoFilters", new ArrayList<>());
+        query.put("expectedResultType", "COUNT");
+
+        Map<String, Object> request = new LinkedHashMap<>();
+        request.put("query", query);
+        request.put("resourceUUID", RESOURCE_UUID);
+        request.put("resourceCredentials", new LinkedHashMap<>());
+        return request;
+    }
+
+    private Privilege privilege(String project, String consent, List<AccessRule> gates, List<AccessRule> standardRules) {
+        AccessRule accessRule = new AccessRule();
+        accessRule.setUuid(UUID.randomUUID());
+        accessRule.setName("AR_" + project + "_" + consent);
+        accessRule.setRule("$..categoryFilters.['" + CONSENT_CONCEPT_PATH + "']");
+        accessRule.setType(AccessRule.TypeNaming.ALL_EQUALS);
+        accessRule.setValue(project + "." + consent);
+        accessRule.setCheckMapKeyOnly(false);
+        accessRule.setCheckMapNode(true);
+        accessRule.setEvaluateOnlyByGates(false);
+        accessRule.setGateAnyRelation(false);
+        accessRule.setGates(new HashSet<>(gates));
+
+        Set<AccessRule> accessRules = new HashSet<>(standardRules);
+        accessRules.add(accessRule);
+
+        Privilege privilege = new Privilege();
+        privilege.setUuid(UUID.randomUUID());
+        privilege.setName("PRIV_FENCE_" + project + "_" + consent);
+        privilege.setApplication(application);
+        privilege.setAccessRules(accessRules);
+        privilege.setQueryTemplate("{\"categoryFilters\": {\"" + CONSENT_CONCEPT_PATH.replace("\\", "\\\\")
+                + "\":\"" + project + "." + consent + "\"},"
+                + "\"numericFilters\":{},\"requiredFields\":[],"
+                + "\"variantInfoFilters\":[{\"categoryVariantInfoFilters\":{},\"numericVariantInfoFilters\":{}}],"
+                + "\"expectedResultType\": \"COUNT\""
+                + "}");
+        return privilege;
+    }
+
+    private static List<AccessRule> gates() {
+        return Arrays.asList(
+                rule("GATE_RESOURCE", "$.resourceUUID", AccessRule.TypeNaming.ALL_EQUALS, RESOURCE_UUID, false),
+                rule("GATE_ONLY_QUERY", "$.query", AccessRule.TypeNaming.ANY_CONTAINS, "expectedResultType", true),
+                rule("GATE_ONLY_COUNT", "$.query.expectedResultType", AccessRule.TypeNaming.ALL_EQUALS, "COUNT", false),
+                rule("GATE_FENCE_CONSENT_REQUIRED", "$.query.categoryFilters", AccessRule.TypeNaming.ANY_CONTAINS,
+                        CONSENT_CONCEPT_PATH, true));
+    }
+
+    /**
+     * standard accessRules for the other kinds of requests, they all fail for a query
+     */
+    private static List<AccessRule> standardRules() {
+        return Arrays.asList(
+                rule("AR_ONLY_INFO", "$.['formatter']", AccessRule.TypeNaming.IS_NOT_EMPTY, null, false),
+                rule("AR_ONLY_SEARCH", "$.query.searchTerm", AccessRule.TypeNaming.IS_NOT_EMPTY, null, false),
+                rule("AR_ONLY_VARIANT_INFO", "$.query.expectedResultType", AccessRule.TypeNaming.ALL_EQUALS,
+                        "VARIANT_COUNT_FOR_QUERY", false),
+                rule("AR_ONLY_CROSS_COUNT", "$.query.expectedResultType", AccessRule.TypeNaming.ALL_EQUALS_IGNORE_CASE,
+                        "CROSS_COUNT", false));
+    }
+
+    private static AccessRule rule(String name, String rule, int type, String value, boolean checkMapKeyOnly) {
+        AccessRule accessRule = new AccessRule();
+        accessRule.setUuid(UUID.randomUUID());
+        accessRule.setName(name);
+        accessRule.setRule(rule);
+        accessRule.setType(type);
+        accessRule.setValue(value);
+        accessRule.setCheckMapNode(checkMapKeyOnly);
+        accessRule.setCheckMapKeyOnly(checkMapKeyOnly);
+        accessRule.setEvaluateOnlyByGates(false);
+        accessRule.setGateAnyRelation(false);
+        return accessRule;
+    }
+}
@@ -0,0 +1,44 @@
+package edu.harvard.hms.dbmi.avillach.auth.service.auth;
+
+import edu.harvard.hms.dbmi.avillach.auth.data.entity.Privilege;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The privileges of a user for an application, walked from the entity graph
+ * by {@link edu.harvard.hms.dbmi.avillach.auth.data.entity.User#getPrivilegesByApplication}
+ * and looked up in the {@link AuthorizationSnapshot}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PrivilegeLookupBenchmark {
+
+    @Param({"1", "10", "100", "1000"})
+    int consents;
+
+    private FenceRuleSet ruleSet;
+    private AuthorizationSnapshot snapshot;
+
+    @Setup
+    public void setup() {
+        ruleSet = new FenceRuleSet(consents, 4, 4);
+        snapshot = AuthorizationSnapshot.build(1, Collections.singletonList(ruleSet.getRole()), ruleSet.getPrivileges());
+    }
+
+    @Benchmark
+    public Set<Privilege> userEntity() {
+        return ruleSet.getUser().getPrivilegesByApplication(ruleSet.getApplication());
+    }
+
+    @Benchmark
+    public Set<Privilege> snapshot() {
+        return snapshot.getPrivilegesByApplication(ruleSet.getUser(), ruleSet.getApplication());
+    }
+}
@@ -0,0 +1,54 @@
+package edu.harvard.hms.dbmi.avillach.auth.utils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import edu.harvard.hms.dbmi.avillach.auth.data.entity.Privilege;
+import edu.harvard.hms.dbmi.avillach.auth.service.auth.FenceRuleSet;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Merging the queryTemplates of the FENCE privileges of a user, the way
+ * {@link edu.harvard.hms.dbmi.avillach.auth.rest.UserService} builds /user/me/queryTemplate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MergeTemplateBenchmark {
+
+    @Param({"1", "10", "100", "1000"})
+    int consents;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    private List<String> templates;
+
+    @Setup
+    public void setup() {
+        templates = new ArrayList<>();
+        for (Privilege privilege : new FenceRuleSet(consents, 0, 0).getPrivileges()) {
+            templates.add(privilege.getQueryTemplate());
+        }
+    }
+
+    /**
+     * the templates are parsed on every invocation, mergeTemplateMap changes the maps it merges into
+     */
+    @Benchmark
+    public Map<String, Object> mergeTemplateMap() throws IOException {
+        Map<String, Object> mergedTemplateMap = null;
+        for (String template : templates) {
+            Map<String, Object> templateMap = objectMapper.readValue(template, Map.class);
+            mergedTemplateMap = mergedTemplateMap == null ? templateMap :
+                    JsonUtils.mergeTemplateMap(mergedTemplateMap, templateMap);
+        }
+        return mergedTemplateMap;
+    }
+}
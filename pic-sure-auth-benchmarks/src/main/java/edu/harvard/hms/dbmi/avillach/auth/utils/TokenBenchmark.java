@@ -0,0 +1,60 @@
+package edu.harvard.hms.dbmi.avillach.auth.utils;
+
+import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.Jws;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creating and parsing the tokens PSAMA hands out.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TokenBenchmark {
+
+    private static final String CLIENT_SECRET = "benchmark-client-secret-benchmark-client-secret";
+
+    /**
+     * with 1 token every parse is a hit in the {@link VerifiedTokenCache}, with more tokens than
+     * it holds every parse verifies the signature
+     */
+    @Param({"1", "20000"})
+    int distinctTokens;
+
+    private String[] tokens;
+    private int next;
+    private Map<String, Object> claims;
+
+    @Setup
+    public void setup() {
+        claims = new HashMap<>();
+        claims.put("email", "benchmark@example.com");
+        claims.put("name", "benchmark");
+
+        tokens = new String[distinctTokens];
+        for (int i = 0; i < distinctTokens; i++) {
+            tokens[i] = JWTUtil.createJwtToken(CLIENT_SECRET, null, "edu.harvard.hms.dbmi.psama",
+                    claims, "benchmark|" + i, 1000L * 60 * 60);
+        }
+    }
+
+    @Benchmark
+    public Jws<Claims> parseToken() {
+        String token = tokens[next];
+        next = (next + 1) % tokens.length;
+        return AuthUtils.parseToken(CLIENT_SECRET, token);
+    }
+
+    @Benchmark
+    public String createJwtToken() {
+        return JWTUtil.createJwtToken(CLIENT_SECRET, null, "edu.harvard.hms.dbmi.psama",
+                claims, "benchmark", 1000L * 60 * 60);
+    }
+}
@@ -0,0 +1,9 @@
+USE `auth`;
+
+CREATE TABLE `revocationEpoch` (
+  `uuid` binary(16) NOT NULL,
+  `type` varchar(32) COLLATE utf8_bin NOT NULL,
+  `epoch` bigint(20) NOT NULL,
+  PRIMARY KEY (`uuid`),
+  KEY `IDX_revocationEpoch_epoch` (`epoch`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8 COLLATE=utf8_bin;
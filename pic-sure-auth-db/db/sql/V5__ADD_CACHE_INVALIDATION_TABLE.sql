@@ -0,0 +1,11 @@
+USE `auth`;
+
+CREATE TABLE `cacheInvalidation` (
+  `uuid` binary(16) NOT NULL,
+  `entityType` varchar(64) COLLATE utf8_bin NOT NULL,
+  `entityId` binary(16) DEFAULT NULL,
+  `origin` binary(16) NOT NULL,
+  `created` bigint(20) NOT NULL,
+  PRIMARY KEY (`uuid`),
+  KEY `IDX_cacheInvalidation_created` (`created`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8 COLLATE=utf8_bin;
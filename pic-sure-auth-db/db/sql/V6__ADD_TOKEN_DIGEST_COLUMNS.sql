@@ -0,0 +1,9 @@
+USE `auth`;
+
+ALTER TABLE `user` ADD COLUMN `long_term_token_digest` varbinary(32) DEFAULT NULL;
+ALTER TABLE `user` ADD KEY `IDX_user_long_term_token_digest` (`long_term_token_digest`);
+UPDATE `user` SET `long_term_token_digest` = UNHEX(SHA2(`long_term_token`, 256)) WHERE `long_term_token` IS NOT NULL;
+
+ALTER TABLE `application` ADD COLUMN `tokenDigest` varbinary(32) DEFAULT NULL;
+ALTER TABLE `application` ADD KEY `IDX_application_tokenDigest` (`tokenDigest`);
+UPDATE `application` SET `tokenDigest` = UNHEX(SHA2(`token`, 256)) WHERE `token` IS NOT NULL;
@@ -10,6 +10,8 @@ import edu.harvard.hms.dbmi.avillach.auth.data.repository.ConnectionRepository;
 import edu.harvard.hms.dbmi.avillach.auth.data.repository.PrivilegeRepository;
 import edu.harvard.hms.dbmi.avillach.auth.data.repository.RoleRepository;
 import edu.harvard.hms.dbmi.avillach.auth.rest.TokenService;
+import edu.harvard.hms.dbmi.avillach.auth.service.auth.InvalidationBus;
+import edu.harvard.hms.dbmi.avillach.auth.utils.TokenCodec;
 import io.swagger.jaxrs.config.BeanConfig;
 import org.apache.commons.io.IOUtils;
 import org.apache.http.client.HttpClient;
@@ -54,6 +56,8 @@ public class JAXRSConfiguration extends Application {
     public static String clientSecret;
     @Resource(mappedName = "java:global/clientSecretIsBase64")
     public static String clientSecretIsBase64;
+    // comma separated secrets tokens may still have been signed with, after rotating the client_secret
+    public static String previousClientSecrets = "";
 
     @Resource(mappedName = "java:global/user_id_claim")
     public static String userIdClaim;
@@ -112,6 +116,52 @@ public class JAXRSConfiguration extends Application {
     // default long term token expiration time is 30 days
     private static long defaultLongTermTokenExpirationTime = 1000L * 60 * 60 * 24 * 30;
 
+    // authorization decision cache is off unless turned on in standalone.xml
+    public static boolean decisionCacheEnabled = false;
+    // default decision cache time to live is 1 minute
+    public static long decisionCacheTTL = 1000L * 60;
+    public static int decisionCacheMaxSize = 10000;
+
+    // default user principal cache time to live is 30 seconds, 0 turns it off
+    public static long principalCacheTTL = 1000L * 30;
+
+    // access log events waiting for the writer thread, more are dropped
+    public static int accessLogQueueSize = 10000;
+    // file for the access log, the ACCESS_LOG logger is used if empty
+    public static String accessLogFile = "";
+    // json or text, if empty the file gets JSON lines and the ACCESS_LOG logger the text lines it always had
+    public static String accessLogFormat = "";
+
+    // the /metrics endpoint is not served unless turned on in standalone.xml
+    public static boolean metricsEnabled = false;
+
+    // accessRule evaluations are only traced if turned on in standalone.xml
+    public static boolean ruleTracingEnabled = false;
+    // the comma separated UUIDs of the applications the trace is returned to when they ask for it
+    public static String ruleTracingApplications = "";
+
+    // accessRules are evaluated on the request thread only, unless more threads are set in standalone.xml
+    public static int parallelEvaluationThreads = 0;
+    // the cost an accessRule plan has to reach to be evaluated on several threads
+    public static double parallelEvaluationMinCost = 1000;
+
+    // user tokens only carry their roles, and introspection only trusts them, if turned on in standalone.xml
+    public static boolean statelessIntrospectionEnabled = false;
+
+    // the most token introspection requests one batch call may carry
+    public static int tokenInspectBatchMaxSize = 100;
+
+    // default revocation epoch poll interval is 5 seconds, 0 turns polling off for a single node
+    public static long revocationEpochPollInterval = 1000L * 5;
+
+    // how other nodes learn about changes to invalidate their caches: database, peers or none
+    public static String invalidationTransport = InvalidationBus.DATABASE;
+    // default cache invalidation poll interval is 2 seconds
+    public static long invalidationPollInterval = 1000L * 2;
+    // the UDP port the peers transport listens on, and the comma separated host:port of all nodes
+    public static int invalidationPort = 7979;
+    public static String invalidationPeers = "";
+
     @Inject
     RoleRepository roleRepo;
 
@@ -121,6 +171,9 @@ public class JAXRSConfiguration extends Application {
     @Inject
     ConnectionRepository connectionRepo;
 
+    @Inject
+    InvalidationBus invalidationBus;
+
     public final static ObjectMapper objectMapper = new ObjectMapper();
 
     public static final HttpClient client = HttpClientBuilder.create().useSystemProperties().build();
@@ -140,8 +193,20 @@ public class JAXRSConfiguration extends Application {
         logger.info("Start initializing tokens expiration time.");
         initializeTokenExpirationTime();
         initializeLongTermTokenExpirationTime();
+        initializeTokenCodec();
         logger.info("Finished initializing token expiration time.");
 
+        initializeDecisionCache();
+        initializePrincipalCache();
+        initializeAccessLog();
+        initializeMetrics();
+        initializeRuleTracing();
+        initializeParallelEvaluation();
+        initializeStatelessIntrospection();
+        initializeTokenInspectBatch();
+        initializeRevocationEpochs();
+        initializeInvalidationBus();
+
         logger.info("Determine IDP provider");
         checkIDPProvider();
 
@@ -266,6 +331,143 @@ public class JAXRSConfiguration extends Application {
 
     }
 
+    private void initializeDecisionCache(){
+        try {
+            Context ctx = new InitialContext();
+            decisionCacheEnabled = Boolean.parseBoolean((String)ctx.lookup("java:global/decisionCacheEnabled"));
+            decisionCacheTTL = Long.parseLong((String)ctx.lookup("java:global/decisionCacheTTL"));
+            decisionCacheMaxSize = Integer.parseInt((String)ctx.lookup("java:global/decisionCacheMaxSize"));
+        } catch (NamingException | ClassCastException | NumberFormatException ex){
+            logger.info("Decision cache settings are missing or invalid, using defaults - " + ex.getMessage());
+        }
+
+        logger.info("Set authorization decision cache enabled: " + decisionCacheEnabled + ", time to live: "
+                + decisionCacheTTL + " milliseconds, max size: " + decisionCacheMaxSize);
+    }
+
+    private void initializePrincipalCache(){
+        try {
+            Context ctx = new InitialContext();
+            principalCacheTTL = Long.parseLong((String)ctx.lookup("java:global/principalCacheTTL"));
+        } catch (NamingException | ClassCastException | NumberFormatException ex){
+            logger.info("Principal cache time to live is missing or invalid, using default - " + ex.getMessage());
+        }
+
+        logger.info("Set user principal cache time to live to " + principalCacheTTL + " milliseconds");
+    }
+
+    private void initializeAccessLog(){
+        try {
+            Context ctx = new InitialContext();
+            accessLogQueueSize = Integer.parseInt((String)ctx.lookup("java:global/accessLogQueueSize"));
+            accessLogFile = (String)ctx.lookup("java:global/accessLogFile");
+            accessLogFormat = (String)ctx.lookup("java:global/accessLogFormat");
+        } catch (NamingException | ClassCastException | NumberFormatException ex){
+            logger.info("Access log settings are missing or invalid, using defaults - " + ex.getMessage());
+        }
+
+        logger.info("Set access log queue size to " + accessLogQueueSize + ", access log file: "
+                + (accessLogFile == null || accessLogFile.isEmpty() ? "none, using the ACCESS_LOG logger" : accessLogFile)
+                + ", access log format: " + (accessLogFormat == null || accessLogFormat.isEmpty() ? "default" : accessLogFormat));
+    }
+
+    private void initializeMetrics(){
+        try {
+            Context ctx = new InitialContext();
+            metricsEnabled = Boolean.parseBoolean((String)ctx.lookup("java:global/metricsEnabled"));
+        } catch (NamingException | ClassCastException ex){
+            logger.info("Metrics settings are missing or invalid, using defaults - " + ex.getMessage());
+        }
+
+        logger.info("Set metrics endpoint enabled to " + metricsEnabled);
+    }
+
+    private void initializeRuleTracing(){
+        try {
+            Context ctx = new InitialContext();
+            ruleTracingEnabled = Boolean.parseBoolean((String)ctx.lookup("java:global/ruleTracingEnabled"));
+            ruleTracingApplications = (String)ctx.lookup("java:global/ruleTracingApplications");
+        } catch (NamingException | ClassCastException ex){
+            logger.info("Rule tracing settings are missing or invalid, using defaults - " + ex.getMessage());
+        }
+
+        logger.info("Set accessRule tracing enabled to " + ruleTracingEnabled + ", applications the trace is returned to: "
+                + (ruleTracingApplications == null || ruleTracingApplications.trim().isEmpty() ? "none" : ruleTracingApplications));
+    }
+
+    private void initializeParallelEvaluation(){
+        try {
+            Context ctx = new InitialContext();
+            parallelEvaluationThreads = Integer.parseInt((String)ctx.lookup("java:global/parallelEvaluationThreads"));
+            parallelEvaluationMinCost = Double.parseDouble((String)ctx.lookup("java:global/parallelEvaluationMinCost"));
+        } catch (NamingException | ClassCastException | NumberFormatException ex){
+            logger.info("Parallel evaluation settings are missing or invalid, using defaults - " + ex.getMessage());
+        }
+
+        logger.info("Set parallel accessRule evaluation threads to " + parallelEvaluationThreads
+                + ", minimum plan cost: " + parallelEvaluationMinCost);
+    }
+
+    private void initializeStatelessIntrospection(){
+        try {
+            Context ctx = new InitialContext();
+            statelessIntrospectionEnabled = Boolean.parseBoolean((String)ctx.lookup("java:global/statelessIntrospectionEnabled"));
+        } catch (NamingException | ClassCastException ex){
+            logger.info("Stateless introspection settings are missing or invalid, using defaults - " + ex.getMessage());
+        }
+
+        logger.info("Set stateless introspection enabled to " + statelessIntrospectionEnabled);
+    }
+
+    private void initializeTokenInspectBatch(){
+        try {
+            Context ctx = new InitialContext();
+            tokenInspectBatchMaxSize = Integer.parseInt((String)ctx.lookup("java:global/tokenInspectBatchMaxSize"));
+        } catch (NamingException | ClassCastException | NumberFormatException ex){
+            logger.info("Token introspection batch settings are missing or invalid, using defaults - " + ex.getMessage());
+        }
+
+        logger.info("Set token introspection batch max size to " + tokenInspectBatchMaxSize);
+    }
+
+    private void initializeTokenCodec(){
+        try {
+            Context ctx = new InitialContext();
+            previousClientSecrets = (String)ctx.lookup("java:global/previous_client_secrets");
+        } catch (NamingException | ClassCastException ex){
+            logger.info("Previous client secrets are missing or invalid, only the client secret is used - " + ex.getMessage());
+        }
+
+        TokenCodec.initialize();
+    }
+
+    private void initializeRevocationEpochs(){
+        try {
+            Context ctx = new InitialContext();
+            revocationEpochPollInterval = Long.parseLong((String)ctx.lookup("java:global/revocationEpochPollInterval"));
+        } catch (NamingException | ClassCastException | NumberFormatException ex){
+            logger.info("Revocation epoch settings are missing or invalid, using defaults - " + ex.getMessage());
+        }
+
+        logger.info("Set revocation epoch poll interval to " + revocationEpochPollInterval + " milliseconds");
+    }
+
+    private void initializeInvalidationBus(){
+        try {
+            Context ctx = new InitialContext();
+            invalidationTransport = (String)ctx.lookup("java:global/invalidationTransport");
+            invalidationPollInterval = Long.parseLong((String)ctx.lookup("java:global/invalidationPollInterval"));
+            invalidationPort = Integer.parseInt((String)ctx.lookup("java:global/invalidationPort"));
+            invalidationPeers = (String)ctx.lookup("java:global/invalidationPeers");
+        } catch (NamingException | ClassCastException | NumberFormatException ex){
+            logger.info("Cache invalidation settings are missing or invalid, using defaults - " + ex.getMessage());
+        }
+
+        logger.info("Set cache invalidation transport to " + invalidationTransport + ", poll interval: "
+                + invalidationPollInterval + " milliseconds, port: " + invalidationPort + ", peers: " + invalidationPeers);
+        invalidationBus.start();
+    }
+
     private void initializeDefaultAdminRole(){
 
         // make sure system admin and super admin privileges are added in the database
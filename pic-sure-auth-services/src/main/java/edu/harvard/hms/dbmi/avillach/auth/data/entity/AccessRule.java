@@ -102,7 +102,9 @@ public class AccessRule extends BaseEntity {
     /**
      * only inner use for merge accessRule
      * This field should neither be saved to database
-     * nor seen by a user
+     * nor seen by a user.
+     * It is only filled on the detached copies created while merging,
+     * never on the managed entities.
      */
     @JsonIgnore
     @Transient
@@ -1,7 +1,9 @@
 package edu.harvard.hms.dbmi.avillach.auth.data.entity;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonInclude;
 import edu.harvard.dbmi.avillach.data.entity.BaseEntity;
+import edu.harvard.hms.dbmi.avillach.auth.utils.AuthUtils;
 
 import javax.persistence.*;
 
@@ -20,6 +22,11 @@ public class Application extends BaseEntity implements Principal {
     private String name;
     private String description;
     private String token;
+    /**
+     * the digest of the token, the token is compared by it
+     */
+    @JsonIgnore
+    private byte[] tokenDigest;
     private String url;
     private boolean enable = true;
 
@@ -49,8 +56,22 @@ public class Application extends BaseEntity implements Principal {
         return token;
     }
 
+    /**
+     * also sets the digest of the token
+     */
     public void setToken(String token) {
         this.token = token;
+        this.tokenDigest = AuthUtils.tokenDigest(token);
+    }
+
+    @JsonIgnore
+    public byte[] getTokenDigest() {
+        return tokenDigest;
+    }
+
+    @JsonIgnore
+    public void setTokenDigest(byte[] tokenDigest) {
+        this.tokenDigest = tokenDigest;
     }
 
     public boolean isEnable() {
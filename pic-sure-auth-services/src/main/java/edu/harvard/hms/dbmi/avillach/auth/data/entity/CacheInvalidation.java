@@ -0,0 +1,65 @@
+package edu.harvard.hms.dbmi.avillach.auth.data.entity;
+
+import edu.harvard.dbmi.avillach.data.entity.BaseEntity;
+
+import javax.persistence.Entity;
+import java.util.UUID;
+
+/**
+ * <p>A change to an entity, written to the change log other nodes poll to invalidate their caches.</p>
+ *
+ * @see edu.harvard.hms.dbmi.avillach.auth.service.auth.InvalidationBus
+ */
+@Entity(name = "cacheInvalidation")
+public class CacheInvalidation extends BaseEntity {
+
+    private String entityType;
+
+    /**
+     * null if every entity of the type may have changed
+     */
+    private UUID entityId;
+
+    /**
+     * the node the change has been made on
+     */
+    private UUID origin;
+
+    private long created;
+
+    public String getEntityType() {
+        return entityType;
+    }
+
+    public CacheInvalidation setEntityType(String entityType) {
+        this.entityType = entityType;
+        return this;
+    }
+
+    public UUID getEntityId() {
+        return entityId;
+    }
+
+    public CacheInvalidation setEntityId(UUID entityId) {
+        this.entityId = entityId;
+        return this;
+    }
+
+    public UUID getOrigin() {
+        return origin;
+    }
+
+    public CacheInvalidation setOrigin(UUID origin) {
+        this.origin = origin;
+        return this;
+    }
+
+    public long getCreated() {
+        return created;
+    }
+
+    public CacheInvalidation setCreated(long created) {
+        this.created = created;
+        return this;
+    }
+}
@@ -0,0 +1,44 @@
+package edu.harvard.hms.dbmi.avillach.auth.data.entity;
+
+import edu.harvard.dbmi.avillach.data.entity.BaseEntity;
+
+import javax.persistence.Entity;
+import java.util.UUID;
+
+/**
+ * <p>The revocation epoch of a user or an application, shared by all the nodes.</p>
+ *
+ * The uuid is the one of the user or the application. Rows are only written by
+ * {@link edu.harvard.hms.dbmi.avillach.auth.data.repository.RevocationEpochRepository#raise(UUID, String, long)},
+ * the epoch only ever grows, so it is also the version the nodes poll the changes by.
+ *
+ * @see edu.harvard.hms.dbmi.avillach.auth.service.auth.RevocationEpochs
+ */
+@Entity(name = "revocationEpoch")
+public class RevocationEpoch extends BaseEntity {
+
+    public static final String USER = "user";
+    public static final String APPLICATION = "application";
+
+    private String type;
+
+    private long epoch;
+
+    public String getType() {
+        return type;
+    }
+
+    public RevocationEpoch setType(String type) {
+        this.type = type;
+        return this;
+    }
+
+    public long getEpoch() {
+        return epoch;
+    }
+
+    public RevocationEpoch setEpoch(long epoch) {
+        this.epoch = epoch;
+        return this;
+    }
+}
@@ -3,6 +3,7 @@ package edu.harvard.hms.dbmi.avillach.auth.data.entity;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonInclude;
 import edu.harvard.dbmi.avillach.data.entity.BaseEntity;
+import edu.harvard.hms.dbmi.avillach.auth.utils.AuthUtils;
 import org.hibernate.annotations.Type;
 
 import javax.persistence.*;
@@ -66,6 +67,13 @@ public class User extends BaseEntity implements Serializable, Principal {
 	@Column(name = "long_term_token")
 	private String token;
 
+	/**
+	 * the digest of the long term token, indexed, the token is looked up and compared by it
+	 */
+	@JsonIgnore
+	@Column(name = "long_term_token_digest")
+	private byte[] tokenDigest;
+
 	public String getSubject() {
 		return subject;
 	}
@@ -267,8 +275,22 @@ public class User extends BaseEntity implements Serializable, Principal {
 		return token;
 	}
 
+	/**
+	 * also sets the digest of the token
+	 */
 	public void setToken(String token) {
 		this.token = token;
+		this.tokenDigest = AuthUtils.tokenDigest(token);
+	}
+
+	@JsonIgnore
+	public byte[] getTokenDigest() {
+		return tokenDigest;
+	}
+
+	@JsonIgnore
+	public void setTokenDigest(byte[] tokenDigest) {
+		this.tokenDigest = tokenDigest;
 	}
 
 	/**
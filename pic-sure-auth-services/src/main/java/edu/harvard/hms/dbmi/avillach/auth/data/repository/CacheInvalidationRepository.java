@@ -0,0 +1,50 @@
+package edu.harvard.hms.dbmi.avillach.auth.data.repository;
+
+import edu.harvard.dbmi.avillach.data.repository.BaseRepository;
+import edu.harvard.hms.dbmi.avillach.auth.data.entity.CacheInvalidation;
+import edu.harvard.hms.dbmi.avillach.auth.utils.Timed;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Root;
+import javax.transaction.Transactional;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * <p>Provides operations for the CacheInvalidation entity to interact with a database.</p>
+ *
+ * @see CacheInvalidation
+ */
+@ApplicationScoped
+@Transactional
+@Timed("psama_repository_seconds")
+public class CacheInvalidationRepository extends BaseRepository<CacheInvalidation, UUID> {
+
+    protected CacheInvalidationRepository() {
+        super(CacheInvalidation.class);
+    }
+
+    /**
+     * @param created
+     * @return the invalidations created after the given time, oldest first
+     */
+    public List<CacheInvalidation> getCreatedSince(long created) {
+        CriteriaQuery<CacheInvalidation> query = cb().createQuery(CacheInvalidation.class);
+        Root<CacheInvalidation> queryRoot = query.from(CacheInvalidation.class);
+        query.select(queryRoot)
+                .where(cb().greaterThan(queryRoot.get("created"), created))
+                .orderBy(cb().asc(queryRoot.get("created")));
+        return em.createQuery(query).getResultList();
+    }
+
+    /**
+     * @param created
+     * @return the number of invalidations removed
+     */
+    public int removeCreatedBefore(long created) {
+        return em.createQuery("DELETE FROM cacheInvalidation c WHERE c.created < :created")
+                .setParameter("created", created)
+                .executeUpdate();
+    }
+}
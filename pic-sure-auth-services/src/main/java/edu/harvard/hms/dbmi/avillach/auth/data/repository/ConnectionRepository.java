@@ -2,6 +2,7 @@ package edu.harvard.hms.dbmi.avillach.auth.data.repository;
 
 import edu.harvard.dbmi.avillach.data.repository.BaseRepository;
 import edu.harvard.hms.dbmi.avillach.auth.data.entity.Connection;
+import edu.harvard.hms.dbmi.avillach.auth.utils.Timed;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -19,6 +20,7 @@ import java.util.UUID;
  */
 @Transactional
 @ApplicationScoped
+@Timed("psama_repository_seconds")
 public class ConnectionRepository extends BaseRepository<Connection, UUID> {
 
     private Logger logger = LoggerFactory.getLogger(ConnectionRepository.class);
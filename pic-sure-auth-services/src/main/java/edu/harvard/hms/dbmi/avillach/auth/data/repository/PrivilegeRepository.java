@@ -3,6 +3,7 @@ package edu.harvard.hms.dbmi.avillach.auth.data.repository;
 import edu.harvard.dbmi.avillach.data.repository.BaseRepository;
 import edu.harvard.hms.dbmi.avillach.auth.data.entity.Privilege;
 import edu.harvard.hms.dbmi.avillach.auth.data.entity.Role;
+import edu.harvard.hms.dbmi.avillach.auth.utils.Timed;
 
 import javax.enterprise.context.ApplicationScoped;
 import javax.transaction.Transactional;
@@ -14,6 +15,7 @@ import java.util.UUID;
  */
 @ApplicationScoped
 @Transactional
+@Timed("psama_repository_seconds")
 public class PrivilegeRepository extends BaseRepository<Privilege, UUID> {
 
     protected PrivilegeRepository() {
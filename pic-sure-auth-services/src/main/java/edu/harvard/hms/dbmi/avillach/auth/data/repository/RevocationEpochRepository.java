@@ -0,0 +1,61 @@
+package edu.harvard.hms.dbmi.avillach.auth.data.repository;
+
+import edu.harvard.dbmi.avillach.data.repository.BaseRepository;
+import edu.harvard.hms.dbmi.avillach.auth.data.entity.RevocationEpoch;
+import edu.harvard.hms.dbmi.avillach.auth.utils.Timed;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Root;
+import javax.transaction.Transactional;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * <p>Provides operations for the RevocationEpoch entity to interact with a database.</p>
+ *
+ * @see RevocationEpoch
+ */
+@ApplicationScoped
+@Transactional
+@Timed("psama_repository_seconds")
+public class RevocationEpochRepository extends BaseRepository<RevocationEpoch, UUID> {
+
+    protected RevocationEpochRepository() {
+        super(RevocationEpoch.class);
+    }
+
+    /**
+     * Raise the epoch of a user or an application, in the transaction of the change it follows, so other nodes
+     * only see the new epoch once the change is committed. An epoch is never lowered, even when two nodes
+     * raise the same one at once with clocks slightly apart.
+     *
+     * @param uuid of the user or application
+     * @param type {@link RevocationEpoch#USER} or {@link RevocationEpoch#APPLICATION}
+     * @param epoch
+     */
+    public void raise(UUID uuid, String type, long epoch) {
+        ByteBuffer bytes = ByteBuffer.allocate(16);
+        bytes.putLong(uuid.getMostSignificantBits());
+        bytes.putLong(uuid.getLeastSignificantBits());
+        em.createNativeQuery("INSERT INTO revocationEpoch (uuid, type, epoch) VALUES (?1, ?2, ?3)"
+                + " ON DUPLICATE KEY UPDATE epoch = GREATEST(epoch, VALUES(epoch))")
+                .setParameter(1, bytes.array())
+                .setParameter(2, type)
+                .setParameter(3, epoch)
+                .executeUpdate();
+    }
+
+    /**
+     * @param epoch
+     * @return the epochs raised above the given one
+     */
+    public List<RevocationEpoch> getRaisedSince(long epoch) {
+        CriteriaQuery<RevocationEpoch> query = cb().createQuery(RevocationEpoch.class);
+        Root<RevocationEpoch> queryRoot = query.from(RevocationEpoch.class);
+        query.select(queryRoot)
+                .where(cb().greaterThan(queryRoot.get("epoch"), epoch));
+        return em.createQuery(query).getResultList();
+    }
+}
@@ -2,6 +2,7 @@ package edu.harvard.hms.dbmi.avillach.auth.data.repository;
 
 import edu.harvard.dbmi.avillach.data.repository.BaseRepository;
 import edu.harvard.hms.dbmi.avillach.auth.data.entity.Role;
+import edu.harvard.hms.dbmi.avillach.auth.utils.Timed;
 
 import javax.enterprise.context.ApplicationScoped;
 import javax.transaction.Transactional;
@@ -13,6 +14,7 @@ import java.util.UUID;
  */
 @ApplicationScoped
 @Transactional
+@Timed("psama_repository_seconds")
 public class RoleRepository extends BaseRepository<Role, UUID> {
 
     protected RoleRepository() {
@@ -2,6 +2,7 @@ package edu.harvard.hms.dbmi.avillach.auth.data.repository;
 
 import edu.harvard.dbmi.avillach.data.repository.BaseRepository;
 import edu.harvard.hms.dbmi.avillach.auth.data.entity.TermsOfService;
+import edu.harvard.hms.dbmi.avillach.auth.utils.Timed;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -18,6 +19,7 @@ import java.util.UUID;
  */
 @Transactional
 @ApplicationScoped
+@Timed("psama_repository_seconds")
 public class TermsOfServiceRepository extends BaseRepository<TermsOfService, UUID> {
 
     private Logger logger = LoggerFactory.getLogger(TermsOfServiceRepository.class);
@@ -5,6 +5,7 @@ import edu.harvard.hms.dbmi.avillach.auth.data.entity.Connection;
 import edu.harvard.hms.dbmi.avillach.auth.data.entity.Role;
 import edu.harvard.hms.dbmi.avillach.auth.data.entity.TermsOfService;
 import edu.harvard.hms.dbmi.avillach.auth.data.entity.User;
+import edu.harvard.hms.dbmi.avillach.auth.utils.Timed;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -25,6 +26,7 @@ import java.util.stream.Collectors;
  */
 @Transactional
 @ApplicationScoped
+@Timed("psama_repository_seconds")
 public class UserRepository extends BaseRepository<User, UUID> {
 
 	private Logger logger = LoggerFactory.getLogger(UserRepository.class);
@@ -132,6 +134,25 @@ public class UserRepository extends BaseRepository<User, UUID> {
 		findOrCreate(user);
 	}
 
+	/**
+	 * a point lookup on the indexed digest of the long term token
+	 *
+	 * @param tokenDigest see {@link edu.harvard.hms.dbmi.avillach.auth.utils.AuthUtils#tokenDigest(String)}
+	 * @return the user holding the long term token, null if none does
+	 */
+	public User findByTokenDigest(byte[] tokenDigest) {
+		CriteriaQuery<User> query = cb().createQuery(User.class);
+		Root<User> queryRoot = query.from(User.class);
+		query.select(queryRoot);
+		CriteriaBuilder cb = cb();
+		List<User> users = em.createQuery(query
+				.where(
+						cb.equal(queryRoot.get("tokenDigest"), tokenDigest)))
+				.setMaxResults(1)
+				.getResultList();
+		return users.isEmpty() ? null : users.get(0);
+	}
+
 	public User findByEmail(String email) {
 		CriteriaQuery<User> query = em.getCriteriaBuilder().createQuery(User.class);
 		Root<User> queryRoot = query.from(User.class);
@@ -1,9 +1,15 @@
 package edu.harvard.hms.dbmi.avillach.auth.rest;
 
+import edu.harvard.dbmi.avillach.util.exception.ProtocolException;
 import edu.harvard.dbmi.avillach.util.response.PICSUREResponse;
 import edu.harvard.hms.dbmi.avillach.auth.data.entity.AccessRule;
 import edu.harvard.hms.dbmi.avillach.auth.data.repository.AccessRuleRepository;
 import edu.harvard.hms.dbmi.avillach.auth.service.BaseEntityService;
+import edu.harvard.hms.dbmi.avillach.auth.service.auth.AccessRuleTraceStats;
+import edu.harvard.hms.dbmi.avillach.auth.service.auth.AfterCommit;
+import edu.harvard.hms.dbmi.avillach.auth.service.auth.AuthorizationDecisionCache;
+import edu.harvard.hms.dbmi.avillach.auth.service.auth.AuthorizationSnapshotHolder;
+import edu.harvard.hms.dbmi.avillach.auth.utils.PatternCache;
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiOperation;
 import io.swagger.annotations.ApiParam;
@@ -36,6 +42,18 @@ public class AccessRuleService extends BaseEntityService<AccessRule> {
     @Inject
     AccessRuleRepository accessRuleRepo;
 
+    @Inject
+    AuthorizationDecisionCache decisionCache;
+
+    @Inject
+    AfterCommit afterCommit;
+
+    @Inject
+    AuthorizationSnapshotHolder authorizationSnapshot;
+
+    @Inject
+    AccessRuleTraceStats traceStats;
+
     @Context
     SecurityContext securityContext;
 
@@ -82,7 +100,11 @@ public class AccessRuleService extends BaseEntityService<AccessRule> {
             if (accessRule.getGateAnyRelation() == null)
                 accessRule.setGateAnyRelation(false);
         });
-        return addEntity(accessRules, accessRuleRepo);
+        checkRegexValues(accessRules);
+        Response response = addEntity(accessRules, accessRuleRepo);
+        authorizationSnapshot.refresh();
+        afterCommit.run(decisionCache::invalidateAll);
+        return response;
     }
 
     @ApiOperation(value = "Update a list of AccessRules, will only update the fields listed, requires SUPER_ADMIN role")
@@ -93,7 +115,11 @@ public class AccessRuleService extends BaseEntityService<AccessRule> {
     public Response updateAccessRule(
             @ApiParam(required = true, value = "A list of AccessRule with fields to be updated in JSON format")
             List<AccessRule> accessRules){
-        return updateEntity(accessRules, accessRuleRepo);
+        checkRegexValues(accessRules);
+        Response response = updateEntity(accessRules, accessRuleRepo);
+        authorizationSnapshot.refresh();
+        afterCommit.run(decisionCache::invalidateAll);
+        return response;
     }
 
     @ApiOperation(value = "DELETE an AccessRule by Id only if the accessRule is not associated by others, requires SUPER_ADMIN role")
@@ -104,7 +130,10 @@ public class AccessRuleService extends BaseEntityService<AccessRule> {
     public Response removeById(
             @ApiParam(required = true, value = "A valid accessRule Id")
             @PathParam("accessRuleId") final String accessRuleId) {
-        return removeEntityById(accessRuleId, accessRuleRepo);
+        Response response = removeEntityById(accessRuleId, accessRuleRepo);
+        authorizationSnapshot.refresh();
+        afterCommit.run(decisionCache::invalidateAll);
+        return response;
     }
 
     @ApiOperation(value = "GET all types listed for the rule in accessRule that could be used, requires SUPER_ADMIN role")
@@ -116,4 +145,63 @@ public class AccessRuleService extends BaseEntityService<AccessRule> {
         return PICSUREResponse.success(AccessRule.TypeNaming.getTypeNameMap());
     }
 
+    @ApiOperation(value = "GET the accessRules, gates and subAccessRules that took the most time while rule tracing is enabled, requires SUPER_ADMIN role")
+    @GET
+    @RolesAllowed(SUPER_ADMIN)
+    @Path("/traceStats")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getTraceStats(
+            @ApiParam(value="The number of entries to return, slowest first, 20 by default")
+            @QueryParam("limit") Integer limit){
+        if (limit == null)
+            limit = 20;
+        if (limit < 1)
+            throw new ProtocolException(Response.Status.BAD_REQUEST, "limit has to be a positive number");
+        return PICSUREResponse.success(traceStats.getSlowest(limit));
+    }
+
+    @ApiOperation(value = "DELETE the accessRule tracing statistics, requires SUPER_ADMIN role")
+    @DELETE
+    @RolesAllowed(SUPER_ADMIN)
+    @Path("/traceStats")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response clearTraceStats(){
+        traceStats.clear();
+        return PICSUREResponse.success("Trace statistics cleared.");
+    }
+
+    /**
+     * reject accessRules of regex types whose value is not a valid regex,
+     * so the problem shows up when saving instead of on every token introspection.
+     * <br>
+     * For an update only listing some fields, the type or value already saved is used.
+     *
+     * @param accessRules
+     */
+    private void checkRegexValues(List<AccessRule> accessRules){
+        for (AccessRule accessRule : accessRules){
+            Integer type = accessRule.getType();
+            String value = accessRule.getValue();
+            if ((type == null || value == null) && accessRule.getUuid() != null){
+                AccessRule savedAccessRule = accessRuleRepo.getById(accessRule.getUuid());
+                if (savedAccessRule != null){
+                    type = type == null ? savedAccessRule.getType() : type;
+                    value = value == null ? savedAccessRule.getValue() : value;
+                }
+            }
+
+            if (type == null || value == null
+                    || (type != AccessRule.TypeNaming.ALL_REG_MATCH && type != AccessRule.TypeNaming.ANY_REG_MATCH))
+                continue;
+
+            String error = PatternCache.validate(value);
+            if (error != null){
+                logger.info("checkRegexValues() accessRule " + accessRule.getName() + " has an invalid regex value: "
+                        + value + " - " + error);
+                throw new ProtocolException(Response.Status.BAD_REQUEST, "Value of accessRule " + accessRule.getName()
+                        + " is not a valid regular expression: " + error);
+            }
+        }
+    }
+
 }
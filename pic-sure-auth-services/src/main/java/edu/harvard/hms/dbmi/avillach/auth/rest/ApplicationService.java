@@ -8,7 +8,12 @@ import edu.harvard.hms.dbmi.avillach.auth.data.entity.Application;
 import edu.harvard.hms.dbmi.avillach.auth.data.entity.Privilege;
 import edu.harvard.hms.dbmi.avillach.auth.data.repository.ApplicationRepository;
 import edu.harvard.hms.dbmi.avillach.auth.data.repository.PrivilegeRepository;
+import edu.harvard.hms.dbmi.avillach.auth.security.ApplicationRegistry;
 import edu.harvard.hms.dbmi.avillach.auth.service.BaseEntityService;
+import edu.harvard.hms.dbmi.avillach.auth.service.auth.AfterCommit;
+import edu.harvard.hms.dbmi.avillach.auth.service.auth.AuthorizationDecisionCache;
+import edu.harvard.hms.dbmi.avillach.auth.service.auth.AuthorizationSnapshotHolder;
+import edu.harvard.hms.dbmi.avillach.auth.service.auth.RevocationEpochs;
 import edu.harvard.hms.dbmi.avillach.auth.utils.AuthNaming;
 import edu.harvard.hms.dbmi.avillach.auth.utils.JWTUtil;
 import io.swagger.annotations.Api;
@@ -48,6 +53,21 @@ public class ApplicationService extends BaseEntityService<Application> {
 	@Inject
 	PrivilegeRepository privilegeRepo;
 
+	@Inject
+	AuthorizationDecisionCache decisionCache;
+
+	@Inject
+	AfterCommit afterCommit;
+
+	@Inject
+	AuthorizationSnapshotHolder authorizationSnapshot;
+
+	@Inject
+	ApplicationRegistry applicationRegistry;
+
+	@Inject
+	RevocationEpochs revocationEpochs;
+
 	@Context
 	SecurityContext securityContext;
 
@@ -92,7 +112,11 @@ public class ApplicationService extends BaseEntityService<Application> {
 			}
 		}
 
-		return updateEntity(appEntities, applicationRepo);
+		Response response = updateEntity(appEntities, applicationRepo);
+		appEntities.forEach(application -> afterCommit.run(() -> applicationRegistry.invalidate(application.getUuid())));
+		authorizationSnapshot.refresh();
+		afterCommit.run(decisionCache::invalidateAll);
+		return response;
 	}
 
     @ApiOperation(value = "Update a list of Applications, will only update the fields listed, requires SUPER_ADMIN role")
@@ -104,7 +128,11 @@ public class ApplicationService extends BaseEntityService<Application> {
             @ApiParam(required = true, value = "A list of AccessRule with fields to be updated in JSON format")
             List<Application> applications){
 		checkAssociation(applications);
-		return updateEntity(applications, applicationRepo);
+		Response response = updateEntity(applications, applicationRepo);
+		applications.forEach(application -> afterCommit.run(() -> applicationRegistry.invalidate(application.getUuid())));
+		authorizationSnapshot.refresh();
+		afterCommit.run(decisionCache::invalidateAll);
+		return response;
 	}
 
 	@ApiOperation(value = "Refresh a token of an application by application Id, requires SUPER_ADMIN role")
@@ -128,6 +156,8 @@ public class ApplicationService extends BaseEntityService<Application> {
 			);
 
 			applicationRepo.merge(application);
+			revocationEpochs.bumpApplication(application.getUuid());
+			afterCommit.run(() -> applicationRegistry.invalidate(application.getUuid()));
 		} else {
 			logger.error("refreshApplicationToken() token is null for application: " + applicationId);
 			throw new ApplicationException("Inner problem, please contact admin");
@@ -146,7 +176,14 @@ public class ApplicationService extends BaseEntityService<Application> {
             @ApiParam(required = true, value = "A valid accessRule Id")
             @PathParam("applicationId") final String applicationId) {
 		Application application = applicationRepo.getById(UUID.fromString(applicationId));
-		return removeEntityById(applicationId, applicationRepo);
+		Response response = removeEntityById(applicationId, applicationRepo);
+		if (application != null)
+			revocationEpochs.bumpApplication(application.getUuid());
+		UUID applicationUUID = UUID.fromString(applicationId);
+		afterCommit.run(() -> applicationRegistry.invalidate(applicationUUID));
+		authorizationSnapshot.refresh();
+		afterCommit.run(decisionCache::invalidateAll);
+		return response;
 	}
 
 	private void checkAssociation(List<Application> applications){
@@ -0,0 +1,30 @@
+package edu.harvard.hms.dbmi.avillach.auth.rest;
+
+import edu.harvard.hms.dbmi.avillach.auth.JAXRSConfiguration;
+import edu.harvard.hms.dbmi.avillach.auth.utils.Metrics;
+import io.swagger.annotations.ApiOperation;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.Response;
+
+/**
+ * <p>Exposes the {@link Metrics} of PSAMA in the Prometheus text format.</p>
+ *
+ * The endpoint doesn't need a token so it can be scraped, it is only served
+ * if {@link JAXRSConfiguration#metricsEnabled} is set.
+ */
+@Path("/metrics")
+public class MetricsEndpoint {
+
+    @ApiOperation(value = "GET the metrics of PSAMA in the Prometheus text format")
+    @GET
+    @Produces("text/plain; version=0.0.4")
+    public Response getMetrics() {
+        if (!JAXRSConfiguration.metricsEnabled)
+            return Response.status(Response.Status.NOT_FOUND).build();
+
+        return Response.ok(Metrics.scrape()).build();
+    }
+}
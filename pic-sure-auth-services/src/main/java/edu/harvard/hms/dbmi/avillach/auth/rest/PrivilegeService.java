@@ -4,7 +4,11 @@ import edu.harvard.dbmi.avillach.util.response.PICSUREResponse;
 import edu.harvard.hms.dbmi.avillach.auth.JAXRSConfiguration;
 import edu.harvard.hms.dbmi.avillach.auth.data.entity.Privilege;
 import edu.harvard.hms.dbmi.avillach.auth.data.repository.PrivilegeRepository;
+import edu.harvard.hms.dbmi.avillach.auth.security.UserPrincipalCache;
 import edu.harvard.hms.dbmi.avillach.auth.service.BaseEntityService;
+import edu.harvard.hms.dbmi.avillach.auth.service.auth.AfterCommit;
+import edu.harvard.hms.dbmi.avillach.auth.service.auth.AuthorizationDecisionCache;
+import edu.harvard.hms.dbmi.avillach.auth.service.auth.AuthorizationSnapshotHolder;
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiOperation;
 import io.swagger.annotations.ApiParam;
@@ -38,6 +42,18 @@ public class PrivilegeService extends BaseEntityService<Privilege> {
     @Inject
     PrivilegeRepository privilegeRepo;
 
+    @Inject
+    AuthorizationDecisionCache decisionCache;
+
+    @Inject
+    AfterCommit afterCommit;
+
+    @Inject
+    UserPrincipalCache principalCache;
+
+    @Inject
+    AuthorizationSnapshotHolder authorizationSnapshot;
+
     @Context
     SecurityContext securityContext;
 
@@ -71,7 +87,11 @@ public class PrivilegeService extends BaseEntityService<Privilege> {
     public Response addPrivilege(
             @ApiParam(required = true, value = "A list of privileges in JSON format")
             List<Privilege> privileges){
-        return addEntity(privileges, privilegeRepo);
+        Response response = addEntity(privileges, privilegeRepo);
+        authorizationSnapshot.refresh();
+        afterCommit.run(decisionCache::invalidateAll);
+        afterCommit.run(principalCache::invalidateAll);
+        return response;
     }
 
     @ApiOperation(value = "Update a list of privileges, will only update the fields listed, requires SUPER_ADMIN role")
@@ -82,7 +102,11 @@ public class PrivilegeService extends BaseEntityService<Privilege> {
     public Response updatePrivilege(
             @ApiParam(required = true, value = "A list of privilege with fields to be updated in JSON format")
             List<Privilege> privileges){
-        return updateEntity(privileges, privilegeRepo);
+        Response response = updateEntity(privileges, privilegeRepo);
+        authorizationSnapshot.refresh();
+        afterCommit.run(decisionCache::invalidateAll);
+        afterCommit.run(principalCache::invalidateAll);
+        return response;
     }
 
     @ApiOperation(value = "DELETE an privilege by Id only if the privilege is not associated by others, requires SUPER_ADMIN role")
@@ -101,7 +125,11 @@ public class PrivilegeService extends BaseEntityService<Privilege> {
                     + ", name: " + privilege.getName());
         }
 
-        return removeEntityById(privilegeId, privilegeRepo);
+        Response response = removeEntityById(privilegeId, privilegeRepo);
+        authorizationSnapshot.refresh();
+        afterCommit.run(decisionCache::invalidateAll);
+        afterCommit.run(principalCache::invalidateAll);
+        return response;
     }
 
 }
@@ -6,7 +6,11 @@ import edu.harvard.hms.dbmi.avillach.auth.data.entity.Privilege;
 import edu.harvard.hms.dbmi.avillach.auth.data.entity.Role;
 import edu.harvard.hms.dbmi.avillach.auth.data.repository.PrivilegeRepository;
 import edu.harvard.hms.dbmi.avillach.auth.data.repository.RoleRepository;
+import edu.harvard.hms.dbmi.avillach.auth.security.UserPrincipalCache;
 import edu.harvard.hms.dbmi.avillach.auth.service.BaseEntityService;
+import edu.harvard.hms.dbmi.avillach.auth.service.auth.AfterCommit;
+import edu.harvard.hms.dbmi.avillach.auth.service.auth.AuthorizationDecisionCache;
+import edu.harvard.hms.dbmi.avillach.auth.service.auth.AuthorizationSnapshotHolder;
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiOperation;
 import io.swagger.annotations.ApiParam;
@@ -48,6 +52,18 @@ public class RoleService extends BaseEntityService<Role> {
     @Inject
     PrivilegeRepository privilegeRepo;
 
+    @Inject
+    AuthorizationDecisionCache decisionCache;
+
+    @Inject
+    AfterCommit afterCommit;
+
+    @Inject
+    UserPrincipalCache principalCache;
+
+    @Inject
+    AuthorizationSnapshotHolder authorizationSnapshot;
+
     public RoleService() {
         super(Role.class);
     }
@@ -80,7 +96,11 @@ public class RoleService extends BaseEntityService<Role> {
             @ApiParam(required = true, value = "A list of Roles in JSON format")
             List<Role> roles){
         checkPrivilegeAssociation(roles);
-        return addEntity(roles, roleRepo);
+        Response response = addEntity(roles, roleRepo);
+        authorizationSnapshot.refresh();
+        afterCommit.run(decisionCache::invalidateAll);
+        afterCommit.run(principalCache::invalidateAll);
+        return response;
     }
 
     @ApiOperation(value = "Update a list of Roles, will only update the fields listed, requires SUPER_ADMIN role")
@@ -93,7 +113,11 @@ public class RoleService extends BaseEntityService<Role> {
             @ApiParam(required = true, value = "A list of Roles with fields to be updated in JSON format")
             List<Role> roles){
         checkPrivilegeAssociation(roles);
-        return updateEntity(roles, roleRepo);
+        Response response = updateEntity(roles, roleRepo);
+        authorizationSnapshot.refresh();
+        afterCommit.run(decisionCache::invalidateAll);
+        afterCommit.run(principalCache::invalidateAll);
+        return response;
     }
 
     @ApiOperation(value = "DELETE an Role by Id only if the Role is not associated by others, requires SUPER_ADMIN role")
@@ -111,7 +135,11 @@ public class RoleService extends BaseEntityService<Role> {
             return PICSUREResponse.protocolError("Default System Role cannot be removed - uuid: " + role.getUuid().toString()
                     + ", name: " + role.getName());
         }
-        return removeEntityById(roleId, roleRepo);
+        Response response = removeEntityById(roleId, roleRepo);
+        authorizationSnapshot.refresh();
+        afterCommit.run(decisionCache::invalidateAll);
+        afterCommit.run(principalCache::invalidateAll);
+        return response;
     }
 
     /**
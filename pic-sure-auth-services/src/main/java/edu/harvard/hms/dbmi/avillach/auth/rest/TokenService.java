@@ -4,14 +4,20 @@ import edu.harvard.dbmi.avillach.util.exception.ApplicationException;
 import edu.harvard.dbmi.avillach.util.response.PICSUREResponse;
 import edu.harvard.hms.dbmi.avillach.auth.JAXRSConfiguration;
 import edu.harvard.hms.dbmi.avillach.auth.data.entity.Application;
-import edu.harvard.hms.dbmi.avillach.auth.data.entity.Privilege;
 import edu.harvard.hms.dbmi.avillach.auth.data.entity.User;
 import edu.harvard.hms.dbmi.avillach.auth.data.repository.ApplicationRepository;
 import edu.harvard.hms.dbmi.avillach.auth.data.repository.UserRepository;
+import edu.harvard.hms.dbmi.avillach.auth.service.auth.AccessLogEvent;
+import edu.harvard.hms.dbmi.avillach.auth.service.auth.AccessLogWriter;
 import edu.harvard.hms.dbmi.avillach.auth.service.auth.AuthorizationService;
+import edu.harvard.hms.dbmi.avillach.auth.service.auth.AuthorizationSnapshot;
+import edu.harvard.hms.dbmi.avillach.auth.service.auth.AuthorizationSnapshotHolder;
+import edu.harvard.hms.dbmi.avillach.auth.service.auth.EvaluationTrace;
+import edu.harvard.hms.dbmi.avillach.auth.service.auth.PrivilegeClaims;
 import edu.harvard.hms.dbmi.avillach.auth.utils.AuthNaming;
 import edu.harvard.hms.dbmi.avillach.auth.utils.AuthUtils;
 import edu.harvard.hms.dbmi.avillach.auth.utils.JWTUtil;
+import edu.harvard.hms.dbmi.avillach.auth.utils.Metrics;
 import io.jsonwebtoken.Claims;
 import io.jsonwebtoken.Jws;
 import io.swagger.annotations.Api;
@@ -56,6 +62,17 @@ public class TokenService {
 	@Inject
 	AuthorizationService authorizationService;
 
+	@Inject
+	AuthorizationSnapshotHolder authorizationSnapshot;
+
+	@Inject
+	AccessLogWriter accessLogWriter;
+
+	@Inject
+	PrivilegeClaims privilegeClaims;
+
+	private static final Metrics.Timer inspectTimer = Metrics.timer("psama_token_inspect_seconds");
+
 	@Context
 	SecurityContext securityContext;
 
@@ -76,6 +93,38 @@ public class TokenService {
 		return PICSUREResponse.success(tokenInspection.responseMap);
 	}
 
+	@ApiOperation(value = "Token introspection endpoint for a list of tokens, returns the results in the same order")
+	@POST
+	@Path("/inspect/batch")
+	@Consumes("application/json")
+	public Response inspectTokenBatch(
+			@ApiParam(required = true, value = "A JSON array of objects that each at least" +
+					" include a user the token for validation")
+			List<Map<String, Object>> inputList){
+		logger.info("TokenInspect batch starting...");
+		if (inputList == null)
+			return PICSUREResponse.protocolError("A list of token introspection requests is required");
+		if (inputList.size() > JAXRSConfiguration.tokenInspectBatchMaxSize) {
+			logger.error("inspectTokenBatch() " + inputList.size() + " token introspection requests in one batch, more than "
+					+ JAXRSConfiguration.tokenInspectBatchMaxSize);
+			return PICSUREResponse.protocolError("At most " + JAXRSConfiguration.tokenInspectBatchMaxSize
+					+ " token introspection requests can be sent in one batch");
+		}
+
+		// each distinct token is verified once and each distinct user is found once in the whole batch
+		InspectionBatch batch = new InspectionBatch();
+		List<Map<String, Object>> responses = new ArrayList<>(inputList.size());
+		for (Map<String, Object> inputMap : inputList) {
+			TokenInspection tokenInspection = _inspectToken(inputMap == null ? new HashMap<>() : inputMap, batch);
+			if (tokenInspection.message != null)
+				tokenInspection.responseMap.put("message", tokenInspection.message);
+			responses.add(tokenInspection.responseMap);
+		}
+
+		logger.info("Finished batch token introspection of " + responses.size() + " tokens.");
+		return PICSUREResponse.success(responses);
+	}
+
 	/**
 	 * This endpoint currently is only for a user token to be refreshed.
 	 * Application token won't work here.
@@ -139,11 +188,16 @@ public class TokenService {
 			return PICSUREResponse.applicationError("Inner application error, try again or contact admin.");
 		}
 
+		// the claims of the original token are shared with the verified token cache, so they are copied,
+		// and the privilege claims are stamped again from the user as it is now
+		Map<String, Object> refreshedClaims = new HashMap<>(claims);
+		privilegeClaims.addTo(refreshedClaims, user);
+
 		Date expirationDate = new Date(Calendar.getInstance().getTimeInMillis() + JAXRSConfiguration.tokenExpirationTime);
 		String refreshedToken = JWTUtil.createJwtToken(JAXRSConfiguration.clientSecret,
 				claims.getId(),
 				claims.getIssuer(),
-				claims,
+				refreshedClaims,
 				subject,
 				JAXRSConfiguration.tokenExpirationTime);
 
@@ -161,6 +215,24 @@ public class TokenService {
 	 * @return
 	 */
 	private TokenInspection _inspectToken(Map<String, Object> inputMap){
+		return _inspectToken(inputMap, new InspectionBatch());
+	}
+
+	/**
+	 * @param inputMap
+	 * @param batch the tokens and users already resolved by the requests before this one
+	 * @return
+	 */
+	private TokenInspection _inspectToken(Map<String, Object> inputMap, InspectionBatch batch){
+		long start = System.nanoTime();
+		try {
+			return doInspectToken(inputMap, batch);
+		} finally {
+			inspectTimer.recordSince(start);
+		}
+	}
+
+	private TokenInspection doInspectToken(Map<String, Object> inputMap, InspectionBatch batch){
 		logger.debug("_inspectToken, the incoming token map is: {}", inputMap.entrySet()
 		.stream()
 		.map(entry -> entry.getKey() + " - " + entry.getValue())
@@ -180,7 +252,7 @@ public class TokenService {
 		// don't need to check if jws is null or not, since parse function has already checked
 		Jws<Claims> jws;
 		try {
-			jws = AuthUtils.parseToken(JAXRSConfiguration.clientSecret, token);
+			jws = batch.parseToken(token);
 
 			/**
              * token has been verified, now we remove it from inputMap, so further logs will not be able to log
@@ -232,8 +304,16 @@ public class TokenService {
 			isLongTermToken = true;
 		}
 
-		user = userRepo.getUniqueResultByColumn("subject", subject);
-		logger.info("_inspectToken() user with subject - " + subject + " - exists in database");
+		// with stateless introspection, a user token carrying current privilege claims is authorized
+		// from its roles, the user is only loaded from the database otherwise.
+		// Long term tokens always need the database, the user is found by the digest of the token, so
+		// a long term token that has been refreshed since is only looked up by subject to tell why it failed.
+		user = isLongTermToken ? batch.findUserByLongTermToken(token, subject)
+				: privilegeClaims.userFrom(jws.getBody(), batch.getSnapshot());
+		if (user == null) {
+			user = batch.findUser(subject);
+			logger.info("_inspectToken() user with subject - " + subject + " - exists in database");
+		}
 		if (user == null) {
 			logger.error("_inspectToken() could not find user with subject " + subject);
 			tokenInspection.message = "user doesn't exist";
@@ -250,7 +330,7 @@ public class TokenService {
         // long term token needs to be the same as the token in the database user table, if
         // not the token might has been compromised, which will not go through the authorization check
         boolean isLongTermTokenCompromised = false;
-        if (isLongTermToken && !token.equals(user.getToken())) {
+        if (isLongTermToken && !AuthUtils.matchesTokenDigest(token, user.getTokenDigest())) {
             // in long_term_token mode, the token needs to be exactly the same as the token in user table
             isLongTermTokenCompromised = true;
             logger.error("_inspectToken User " + user.getUuid() + "|" + user.getSubject()
@@ -258,23 +338,37 @@ public class TokenService {
             errorMsg = "Cannot find matched long term token, your token might have been refreshed.";
         }
 
+        // roles, privileges and accessRules are read from the in-memory snapshot instead of the entities
+        AuthorizationSnapshot snapshot = batch.getSnapshot();
+
+        // when rule tracing is turned on every evaluation is traced for the statistics,
+        // the trace itself shows the accessRules, so it is only returned to the applications
+        // listed in ruleTracingApplications asking for it with "trace": true
+        EvaluationTrace trace = JAXRSConfiguration.ruleTracingEnabled ? new EvaluationTrace() : null;
+        if (trace != null && Boolean.TRUE.equals(inputMap.get("trace"))) {
+            if (isRuleTracingApplication(application))
+                tokenInspection.responseMap.put("authorizationTrace", trace);
+            else
+                logger.warn("_inspectToken() application " + application.getName() + " asked for the authorization trace"
+                        + " but is not one of the ruleTracingApplications");
+        }
+
         // we go through the authorization layer check only if we need to in order to improve the performance
         // the logic here, if the token associated with a user, we will start the authorization check.
         // If the current application has at least one privilege, the user must have one privilege associated to the application
         // pass the accessRule check if there is any accessRules associated with.
-        if (application.getPrivileges() == null || application.getPrivileges().isEmpty()){
+        if (!snapshot.hasApplicationPrivileges(application)){
             // if no privileges associated
             isAuthorizationPassed = true;
             //we still want to log this, though.
-            logger.info("ACCESS_LOG ___ " + user.getUuid() + "," + user.getEmail() + "," + user.getName() + 
-					" ___ has been granted access to execute query ___ " + inputMap.get("request") + " ___ in application ___ " + application.getName()
-                    + " ___ NO APP PRIVILEGES DEFINED");
+            accessLogWriter.log(new AccessLogEvent(user, application.getName(), true, null, inputMap.get("request"),
+                    "NO APP PRIVILEGES DEFINED", null, false));
         } else if ( !isLongTermTokenCompromised
                 && user.getRoles() != null
                 // The protocol between applications and PSAMA is application will
                 // attach everything that needs to be verified in request field of inputMap
                 // besides token. So here we should attach everything in request.
-				&& authorizationService.isAuthorized(application, inputMap.get("request"), user)) {
+				&& authorizationService.isAuthorized(application, inputMap.get("request"), user, trace)) {
 			isAuthorizationPassed = true;
 		} else {
             // if isLongTermTokenCompromised flag is true,
@@ -285,11 +379,8 @@ public class TokenService {
 
 		if (isAuthorizationPassed){
 			tokenInspection.responseMap.put("active", true);
-			ArrayList<String> roles = new ArrayList<String>();
-			for(Privilege p : user.getTotalPrivilege()) {
-				roles.add(p.getName());
-			}
-			tokenInspection.responseMap.put("roles", String.join(",",  roles));
+			AuthorizationSnapshot.EffectivePrivileges effectivePrivileges = snapshot.getEffectivePrivileges(user);
+			tokenInspection.responseMap.put("roles", effectivePrivileges == null ? "" : effectivePrivileges.getTotalPrivilegeNames());
 		} else {
 			if (errorMsg != null )
 				tokenInspection.message = errorMsg;
@@ -297,9 +388,10 @@ public class TokenService {
 		}
 
 		tokenInspection.responseMap.putAll(jws.getBody());
+		PrivilegeClaims.removeFrom(tokenInspection.responseMap);
 
         // attach all privileges associated with the application to the responseMap
-		tokenInspection.responseMap.put("privileges", user.getPrivilegeNameSetByApplication(application));
+		tokenInspection.responseMap.put("privileges", snapshot.getPrivilegeNameSetByApplication(user, application));
 
 
 		logger.info("_inspectToken() Successfully inspect and return response map: "
@@ -310,6 +402,62 @@ public class TokenService {
 		return tokenInspection;
 	}
 
+	private static boolean isRuleTracingApplication(Application application) {
+		String applications = JAXRSConfiguration.ruleTracingApplications;
+		if (applications == null || applications.trim().isEmpty() || application.getUuid() == null)
+			return false;
+
+		return Arrays.asList(applications.trim().split("\\s*,\\s*")).contains(application.getUuid().toString());
+	}
+
+	/**
+	 * tokens, users and the authorization snapshot shared by the requests of one introspection call
+	 */
+	private class InspectionBatch {
+		Map<String, Jws<Claims>> verifiedTokens = new HashMap<>();
+		Map<String, NotAuthorizedException> invalidTokens = new HashMap<>();
+		Map<String, User> users = new HashMap<>();
+		AuthorizationSnapshot snapshot = null;
+
+		Jws<Claims> parseToken(String token) throws NotAuthorizedException {
+			NotAuthorizedException invalid = invalidTokens.get(token);
+			if (invalid != null)
+				throw invalid;
+
+			Jws<Claims> jws = verifiedTokens.get(token);
+			if (jws == null) {
+				try {
+					jws = AuthUtils.parseToken(JAXRSConfiguration.clientSecret, token);
+				} catch (NotAuthorizedException ex) {
+					invalidTokens.put(token, ex);
+					throw ex;
+				}
+				verifiedTokens.put(token, jws);
+			}
+			return jws;
+		}
+
+		/**
+		 * @return the user holding the long term token, null if the token isn't the current one of the user with the subject
+		 */
+		User findUserByLongTermToken(String token, String subject) {
+			User user = userRepo.findByTokenDigest(AuthUtils.tokenDigest(token));
+			return user != null && subject.equals(user.getSubject()) ? user : null;
+		}
+
+		User findUser(String subject) {
+			if (!users.containsKey(subject))
+				users.put(subject, userRepo.getUniqueResultByColumn("subject", subject));
+			return users.get(subject);
+		}
+
+		AuthorizationSnapshot getSnapshot() {
+			if (snapshot == null)
+				snapshot = authorizationSnapshot.get();
+			return snapshot;
+		}
+	}
+
 	/**
 	 * inner used token introspection class with active:false included
 	 */
@@ -10,8 +10,13 @@ import edu.harvard.hms.dbmi.avillach.auth.data.entity.Application;
 import edu.harvard.hms.dbmi.avillach.auth.JAXRSConfiguration;
 import edu.harvard.hms.dbmi.avillach.auth.data.entity.*;
 import edu.harvard.hms.dbmi.avillach.auth.data.repository.*;
+import edu.harvard.hms.dbmi.avillach.auth.security.UserPrincipalCache;
 import edu.harvard.hms.dbmi.avillach.auth.service.BaseEntityService;
 import edu.harvard.hms.dbmi.avillach.auth.service.MailService;
+import edu.harvard.hms.dbmi.avillach.auth.service.auth.AfterCommit;
+import edu.harvard.hms.dbmi.avillach.auth.service.auth.AuthorizationDecisionCache;
+import edu.harvard.hms.dbmi.avillach.auth.service.auth.AuthorizationSnapshotHolder;
+import edu.harvard.hms.dbmi.avillach.auth.service.auth.RevocationEpochs;
 import edu.harvard.hms.dbmi.avillach.auth.utils.AuthNaming;
 import edu.harvard.hms.dbmi.avillach.auth.utils.AuthUtils;
 import edu.harvard.hms.dbmi.avillach.auth.utils.JWTUtil;
@@ -72,6 +77,21 @@ public class UserService extends BaseEntityService<User> {
     
     @Inject
     AuthUtils authUtil;
+
+    @Inject
+    AuthorizationDecisionCache decisionCache;
+
+    @Inject
+    AfterCommit afterCommit;
+
+    @Inject
+    UserPrincipalCache principalCache;
+
+    @Inject
+    AuthorizationSnapshotHolder authorizationSnapshot;
+
+    @Inject
+    RevocationEpochs revocationEpochs;
     
     private MailService mailService = new MailService();
 
@@ -175,6 +195,11 @@ public class UserService extends BaseEntityService<User> {
 
         if (allowUpdate){
             Response updateResponse = updateEntity(users, userRepo);
+            users.forEach(user -> {
+                afterCommit.run(() -> decisionCache.invalidateUser(user.getUuid()));
+                afterCommit.run(() -> principalCache.invalidateUser(user.getUuid()));
+                revocationEpochs.bumpUser(user.getUuid());
+            });
             sendUserUpdateEmailsFromResponse(updateResponse);
             return updateResponse;
         }
@@ -386,7 +411,13 @@ public class UserService extends BaseEntityService<User> {
     private String mergeTemplate(User user, Application application) {
         String resultJSON = null;
         Map mergedTemplateMap = null;
-        for (Privilege privilege : user.getPrivilegesByApplication(application)){
+        // the privileges of the application are looked up in the snapshot index,
+        // instead of going through the roles, privileges and applications of the entities
+        Set<Privilege> privileges = authorizationSnapshot.get().getPrivilegesByApplication(user, application);
+        if (privileges == null)
+            privileges = Collections.emptySet();
+
+        for (Privilege privilege : privileges){
             String template = privilege.getQueryTemplate();
             logger.debug("mergeTemplate() processing template:"+template);
             if (template == null || template.trim().isEmpty()){
@@ -457,6 +488,9 @@ public class UserService extends BaseEntityService<User> {
         user.setToken(longTermToken);
 
         userRepo.merge(user);
+        UUID userId = user.getUuid();
+        afterCommit.run(() -> principalCache.invalidateUser(userId));
+        revocationEpochs.bumpUser(userId);
 
         return PICSUREResponse.success(Map.of("userLongTermToken", longTermToken));
     }
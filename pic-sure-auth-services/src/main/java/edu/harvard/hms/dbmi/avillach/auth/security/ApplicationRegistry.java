@@ -0,0 +1,126 @@
+package edu.harvard.hms.dbmi.avillach.auth.security;
+
+import edu.harvard.hms.dbmi.avillach.auth.data.entity.Application;
+import edu.harvard.hms.dbmi.avillach.auth.data.repository.ApplicationRepository;
+import edu.harvard.hms.dbmi.avillach.auth.service.auth.EntityChanged;
+import edu.harvard.hms.dbmi.avillach.auth.service.auth.RevocationEpochs;
+import edu.harvard.hms.dbmi.avillach.auth.utils.AuthUtils;
+import edu.harvard.hms.dbmi.avillach.auth.utils.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>In-memory registry of the applications calling PSAMA with an application token, keyed by application UUID,
+ * so {@link JWTFilter} doesn't load the application from the database for every token introspection.</p>
+ *
+ * Only a digest of the current application token is kept. The privileges of the application are read from the
+ * {@link edu.harvard.hms.dbmi.avillach.auth.service.auth.AuthorizationSnapshot}.
+ * Adding, updating or removing an application, or refreshing its token, must invalidate it
+ * once the change is committed, see {@link edu.harvard.hms.dbmi.avillach.auth.service.auth.AfterCommit}.
+ * An application is also reloaded once its {@link RevocationEpochs revocation epoch} has moved on, so a token
+ * refreshed on another node stops being accepted here too. Until the epochs are loaded, the applications
+ * are read from the database on every call.
+ */
+@ApplicationScoped
+public class ApplicationRegistry {
+
+    private Logger logger = LoggerFactory.getLogger(ApplicationRegistry.class);
+
+    @Inject
+    ApplicationRepository applicationRepo;
+
+    @Inject
+    RevocationEpochs revocationEpochs;
+
+    public static class RegisteredApplication {
+        private final Application application;
+        private final byte[] tokenDigest;
+        private final long epoch;
+
+        RegisteredApplication(Application application, long epoch) {
+            this.application = application;
+            this.epoch = epoch;
+            // applications written before the digest column existed only have the token
+            this.tokenDigest = application.getTokenDigest() != null ? application.getTokenDigest()
+                    : AuthUtils.tokenDigest(application.getToken());
+        }
+
+        public Application getApplication() {
+            return application;
+        }
+
+        /**
+         * @param token
+         * @return true if the token is the current token of the application
+         */
+        public boolean matchesToken(String token) {
+            return AuthUtils.matchesTokenDigest(token, tokenDigest);
+        }
+    }
+
+    private final Map<UUID, RegisteredApplication> applications = new ConcurrentHashMap<>();
+
+    private static final Metrics.Counter hits = Metrics.cacheHits("application_registry");
+    private static final Metrics.Counter misses = Metrics.cacheMisses("application_registry");
+
+    /**
+     * The application is loaded inside computeIfAbsent, so an invalidation that follows a committed
+     * change always waits for a load that might have read the state before it.
+     *
+     * @param applicationId
+     * @return the registered application, null if there is no such application
+     */
+    public RegisteredApplication get(UUID applicationId) {
+        if (!revocationEpochs.isLoaded()) {
+            misses.increment();
+            Application application = applicationRepo.getById(applicationId);
+            return application == null ? null : new RegisteredApplication(application, 0);
+        }
+
+        RegisteredApplication registered = applications.get(applicationId);
+        if (registered != null && registered.epoch == revocationEpochs.getApplicationEpoch(applicationId)) {
+            hits.increment();
+            return registered;
+        }
+        if (registered != null)
+            applications.remove(applicationId, registered);
+
+        misses.increment();
+        return applications.computeIfAbsent(applicationId, id -> {
+            // read before loading, a change committed meanwhile then reloads it on the next call
+            long epoch = revocationEpochs.getApplicationEpoch(id);
+            Application application = applicationRepo.getById(id);
+            if (application == null)
+                return null;
+
+            logger.debug("get() registering application " + id);
+            return new RegisteredApplication(application, epoch);
+        });
+    }
+
+    public void invalidate(UUID applicationId) {
+        if (applicationId != null)
+            applications.remove(applicationId);
+    }
+
+    public void invalidateAll() {
+        applications.clear();
+    }
+
+    public void onEntityChanged(@Observes EntityChanged event) {
+        if (!event.is(Application.class))
+            return;
+
+        if (event.getUuid() == null)
+            invalidateAll();
+        else
+            invalidate(event.getUuid());
+    }
+}
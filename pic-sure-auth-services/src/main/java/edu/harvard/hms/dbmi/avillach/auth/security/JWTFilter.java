@@ -3,13 +3,12 @@ package edu.harvard.hms.dbmi.avillach.auth.security;
 import edu.harvard.dbmi.avillach.util.exception.ApplicationException;
 import edu.harvard.dbmi.avillach.util.response.PICSUREResponse;
 import edu.harvard.hms.dbmi.avillach.auth.JAXRSConfiguration;
-import edu.harvard.hms.dbmi.avillach.auth.data.entity.Application;
 import edu.harvard.hms.dbmi.avillach.auth.data.entity.User;
-import edu.harvard.hms.dbmi.avillach.auth.data.repository.ApplicationRepository;
 import edu.harvard.hms.dbmi.avillach.auth.data.repository.UserRepository;
 import edu.harvard.hms.dbmi.avillach.auth.service.TOSService;
 import edu.harvard.hms.dbmi.avillach.auth.utils.AuthNaming;
 import edu.harvard.hms.dbmi.avillach.auth.utils.AuthUtils;
+import edu.harvard.hms.dbmi.avillach.auth.utils.Metrics;
 import io.jsonwebtoken.Claims;
 import io.jsonwebtoken.Jws;
 import org.slf4j.Logger;
@@ -39,7 +38,7 @@ import java.util.UUID;
  *     <li>To pass this filter, the incoming request needs a valid bearer token in its HTTP Authorization Header
  *     to represent a valid identity behind the token. </li>
  *     <li>In some cases, the incoming request doesn't need to hold a token. For example, when the request is to the <code>authentication</code>
- *     endpoint, <code>swagger.json</code>, or <code>swagger.html</code>.</li>
+ *     endpoint, <code>swagger.json</code>, <code>swagger.html</code>, or <code>metrics</code>.</li>
  * </ul>
  */
 @Provider
@@ -57,13 +56,27 @@ public class JWTFilter implements ContainerRequestFilter {
 	UserRepository userRepo;
 
 	@Inject
-	ApplicationRepository applicationRepo;
+	TOSService tosService;
 
 	@Inject
-	TOSService tosService;
+	UserPrincipalCache principalCache;
+
+	@Inject
+	ApplicationRegistry applicationRegistry;
+
+	private static final Metrics.Timer filterTimer = Metrics.timer("psama_jwt_filter_seconds");
 
 	@Override
 	public void filter(ContainerRequestContext requestContext) throws IOException {
+		long start = System.nanoTime();
+		try {
+			doFilter(requestContext);
+		} finally {
+			filterTimer.recordSince(start);
+		}
+	}
+
+	private void doFilter(ContainerRequestContext requestContext) throws IOException {
 		logger.debug("starting...");
 		logger.debug("For path:{} and requested URI: {}", uriInfo.getPath(), uriInfo.getRequestUri());
 
@@ -72,7 +85,9 @@ public class JWTFilter implements ContainerRequestFilter {
 		 */
 		if (uriInfo.getPath().endsWith("authentication")
 				|| uriInfo.getPath().endsWith("/swagger.yaml")
-				|| uriInfo.getPath().endsWith("/swagger.json")) {
+				|| uriInfo.getPath().endsWith("/swagger.json")
+				// the metrics endpoint is scraped without a token, it is only served if it is enabled
+				|| uriInfo.getPath().equals("/metrics")) {
 			return;
 		}
 
@@ -117,23 +132,24 @@ public class JWTFilter implements ContainerRequestFilter {
 				 * authenticate as Application, we might need to extract this blob out to an separate function
 				 */
 
-				if( ! uriInfo.getPath().endsWith("token/inspect")) {
+				if( ! (uriInfo.getPath().endsWith("token/inspect") || uriInfo.getPath().endsWith("token/inspect/batch"))) {
 					logger.error(userId + " attempted to perform request " + uriInfo.getPath() + " token may be compromised.");
 					throw new NotAuthorizedException("User is deactivated");
 				}
-				Application authenticatedApplication = applicationRepo.getById(UUID.fromString(userId.split("\\|")[1]));
-				if (authenticatedApplication == null){
+				ApplicationRegistry.RegisteredApplication registeredApplication = applicationRegistry.get(
+						UUID.fromString(userId.substring(AuthNaming.PSAMA_APPLICATION_TOKEN_PREFIX.length() + 1)));
+				if (registeredApplication == null){
 					logger.error("Cannot find an application by userId: " + userId);
 					throw new NotAuthorizedException("Your token doesn't contain valid identical information, please contact admin.");
 				}
 
-				if (!authenticatedApplication.getToken().equals(token)) {
+				if (!registeredApplication.matchesToken(token)) {
 					logger.error("filter() incoming application token - " + token +
 							" - is not the same as record, might because the token has been refreshed. Subject: " + userId);
 					throw new NotAuthorizedException("Your token has been inactivated, please contact admin to grab you the latest one.");
 				}
 
-				requestContext.setSecurityContext(new AuthSecurityContext(authenticatedApplication,
+				requestContext.setSecurityContext(new AuthSecurityContext(registeredApplication.getApplication(),
 						uriInfo.getRequestUri().getScheme()));
 			} else {
 				logger.debug(" userId is not longterm and not psamaapp either.");
@@ -172,24 +188,35 @@ public class JWTFilter implements ContainerRequestFilter {
 		logger.debug("starting...");
 		String userForLogging;
 
-		// Find the user when checking the claims
-		User authenticatedUser = userRepo.findBySubject(claimsSubject);
+		// a user resolved by a recent request is reused, otherwise find the user when checking the claims
+		UserPrincipalCache.CachedPrincipal principal = principalCache.get(claimsSubject);
+		if (principal == null) {
+			User user = userRepo.findBySubject(claimsSubject);
+
+			if (user == null) {
+				logger.error("Cannot validate user claims, based on information stored in the JWT token.");
+				throw new NotAuthorizedException("Cannot validate user claims, based on information stored in the JWT token.");
+			}
 
-		if (authenticatedUser == null) {
-			logger.error("Cannot validate user claims, based on information stored in the JWT token.");
-			throw new NotAuthorizedException("Cannot validate user claims, based on information stored in the JWT token.");
+			/**
+			 * This TOSService code will hit to the database to retrieve a user once again
+			 */
+			boolean tosAccepted = !user.isActive()
+					|| !JAXRSConfiguration.tosEnabled.startsWith("true")
+					|| tosService.getLatest() == null
+					|| tosService.hasUserAcceptedLatest(user.getSubject());
+			principal = principalCache.put(claimsSubject, user, tosAccepted);
 		}
+		User authenticatedUser = principal.getUser();
+
 		// Check whether user is active
-		if (!authenticatedUser.isActive()) {
+		if (!principal.isActive()) {
 			logger.warn("User with ID: " + authenticatedUser.getUuid() + " is deactivated.");
 			throw new NotAuthorizedException("User is deactivated");
 		}
 
-		/**
-		 * This TOSService code will hit to the database to retrieve a user once again
-		 */
 		if (!uriInfo.getPath().contains("/tos")){
-			if (JAXRSConfiguration.tosEnabled.startsWith("true") && tosService.getLatest() != null && !tosService.hasUserAcceptedLatest(authenticatedUser.getSubject())){
+			if (!principal.isTosAccepted()){
 				//If user has not accepted terms of service and is attempted to get information other than the terms of service, don't authenticate
 				requestContext.abortWith(Response.status(Response.Status.FORBIDDEN).entity("User must accept terms of service").build());
 				return;
@@ -200,7 +227,7 @@ public class JWTFilter implements ContainerRequestFilter {
 		// like xxxuser|roles|otherInfo
 		userForLogging = authenticatedUser.getSubject();
 		// check authorization of the authenticated user
-		checkRoles(authenticatedUser, resourceInfo
+		checkRoles(authenticatedUser, principal.getPrivilegeNameSet(), resourceInfo
 				.getResourceMethod().isAnnotationPresent(RolesAllowed.class)
 				? resourceInfo.getResourceMethod().getAnnotation(RolesAllowed.class).value()
 						: new String[]{});
@@ -215,10 +242,11 @@ public class JWTFilter implements ContainerRequestFilter {
 	 * check if user contains the input list of roles
 	 *
 	 * @param authenticatedUser
+	 * @param privilegeNameSet the privilege names of the user, null if the user has no roles
 	 * @param rolesAllowed
 	 * @return
 	 */
-	private boolean checkRoles(User authenticatedUser, String[] rolesAllowed) throws NotAuthorizedException{
+	private boolean checkRoles(User authenticatedUser, Set<String> privilegeNameSet, String[] rolesAllowed) throws NotAuthorizedException{
 
 		String logMsg = "The roles of the user - id: " + authenticatedUser.getSubject() + " - "; //doesn't match the required restrictions";
 		boolean b = true;
@@ -227,12 +255,11 @@ public class JWTFilter implements ContainerRequestFilter {
 		}
 
 
-		if (authenticatedUser.getRoles() == null) {
+		if (authenticatedUser.getRoles() == null || privilegeNameSet == null) {
 			logger.error(logMsg + "is null.");
 			throw new NotAuthorizedException("user doesn't have an assigned role.");
 		}
 
-		Set<String> privilegeNameSet = authenticatedUser.getPrivilegeNameSet();
 		if (privilegeNameSet.isEmpty()){
 			logger.error(logMsg + "doesn't have privileges associated.");
 			throw new NotAuthorizedException("user doesn't have roles or privileges, please contact admin.");
@@ -0,0 +1,147 @@
+package edu.harvard.hms.dbmi.avillach.auth.security;
+
+import edu.harvard.hms.dbmi.avillach.auth.JAXRSConfiguration;
+import edu.harvard.hms.dbmi.avillach.auth.data.entity.Privilege;
+import edu.harvard.hms.dbmi.avillach.auth.data.entity.Role;
+import edu.harvard.hms.dbmi.avillach.auth.data.entity.TermsOfService;
+import edu.harvard.hms.dbmi.avillach.auth.data.entity.User;
+import edu.harvard.hms.dbmi.avillach.auth.service.auth.EntityChanged;
+import edu.harvard.hms.dbmi.avillach.auth.service.auth.RevocationEpochs;
+import edu.harvard.hms.dbmi.avillach.auth.utils.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>Short-lived cache of the users {@link JWTFilter} resolved by token subject, so a hot session
+ * doesn't query the user and the terms of service on every request.</p>
+ *
+ * Entries expire after {@link JAXRSConfiguration#principalCacheTTL} milliseconds. Updating or deactivating a user,
+ * accepting or publishing terms of service, and changing roles or privileges must invalidate it
+ * once the change is committed, see {@link edu.harvard.hms.dbmi.avillach.auth.service.auth.AfterCommit}.
+ * An entry is also dropped once the {@link RevocationEpochs revocation epoch} of its user has moved on,
+ * which is how a user changed on another node is seen here, so nothing is cached until the epochs are loaded.
+ */
+@ApplicationScoped
+public class UserPrincipalCache {
+
+    private Logger logger = LoggerFactory.getLogger(UserPrincipalCache.class);
+
+    /**
+     * only a safety net, expired entries are replaced as the same subjects come back
+     */
+    private static final int MAX_PRINCIPALS = 10000;
+
+    @Inject
+    RevocationEpochs revocationEpochs;
+
+    public static class CachedPrincipal {
+        private final User user;
+        private final boolean active;
+        private final boolean tosAccepted;
+        private final Set<String> privilegeNameSet;
+        private final long expiresAt;
+        private final long epoch;
+
+        CachedPrincipal(User user, boolean tosAccepted, long expiresAt, long epoch) {
+            this.user = user;
+            this.active = user.isActive();
+            this.tosAccepted = tosAccepted;
+            Set<String> privilegeNameSet = user.getPrivilegeNameSet();
+            this.privilegeNameSet = privilegeNameSet == null ? null : Collections.unmodifiableSet(new HashSet<>(privilegeNameSet));
+            this.expiresAt = expiresAt;
+            this.epoch = epoch;
+        }
+
+        public User getUser() {
+            return user;
+        }
+
+        public boolean isActive() {
+            return active;
+        }
+
+        public boolean isTosAccepted() {
+            return tosAccepted;
+        }
+
+        /**
+         * @return null if the user has no roles
+         */
+        public Set<String> getPrivilegeNameSet() {
+            return privilegeNameSet;
+        }
+    }
+
+    private final Map<String, CachedPrincipal> principals = new ConcurrentHashMap<>();
+
+    private static final Metrics.Counter hits = Metrics.cacheHits("user_principal");
+    private static final Metrics.Counter misses = Metrics.cacheMisses("user_principal");
+
+    public CachedPrincipal get(String subject) {
+        if (subject == null || JAXRSConfiguration.principalCacheTTL <= 0 || !revocationEpochs.isLoaded())
+            return null;
+
+        CachedPrincipal principal = principals.get(subject);
+        if (principal != null && (principal.expiresAt < System.currentTimeMillis()
+                || principal.epoch != revocationEpochs.getUserEpoch(principal.user.getUuid()))) {
+            principals.remove(subject, principal);
+            principal = null;
+        }
+        (principal == null ? misses : hits).increment();
+        return principal;
+    }
+
+    /**
+     * @param subject the token subject the user has been found by
+     * @param user
+     * @param tosAccepted whether the user has accepted the latest terms of service, or doesn't need to
+     * @return the principal, also when caching is turned off
+     */
+    public CachedPrincipal put(String subject, User user, boolean tosAccepted) {
+        CachedPrincipal principal = new CachedPrincipal(user, tosAccepted,
+                System.currentTimeMillis() + JAXRSConfiguration.principalCacheTTL, revocationEpochs.getUserEpoch(user.getUuid()));
+        if (subject == null || JAXRSConfiguration.principalCacheTTL <= 0 || !revocationEpochs.isLoaded())
+            return principal;
+
+        if (principals.size() >= MAX_PRINCIPALS) {
+            logger.warn("put() more than " + MAX_PRINCIPALS + " user principals cached, dropping all of them");
+            principals.clear();
+        }
+        principals.put(subject, principal);
+        return principal;
+    }
+
+    public void invalidateUser(UUID userId) {
+        if (userId == null) {
+            invalidateAll();
+            return;
+        }
+        principals.values().removeIf(principal -> userId.equals(principal.user.getUuid()));
+    }
+
+    public void invalidateSubject(String subject) {
+        if (subject != null)
+            principals.remove(subject);
+    }
+
+    public void invalidateAll() {
+        principals.clear();
+    }
+
+    public void onEntityChanged(@Observes EntityChanged event) {
+        if (event.is(User.class))
+            invalidateUser(event.getUuid());
+        else if (event.is(Role.class) || event.is(Privilege.class) || event.is(TermsOfService.class))
+            invalidateAll();
+    }
+}
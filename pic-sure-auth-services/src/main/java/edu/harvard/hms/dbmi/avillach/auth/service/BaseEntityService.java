@@ -5,9 +5,11 @@ import edu.harvard.dbmi.avillach.data.repository.BaseRepository;
 import edu.harvard.dbmi.avillach.util.response.PICSUREResponse;
 import edu.harvard.hms.dbmi.avillach.auth.JAXRSConfiguration;
 import edu.harvard.hms.dbmi.avillach.auth.data.entity.User;
+import edu.harvard.hms.dbmi.avillach.auth.service.auth.InvalidationBus;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.inject.Inject;
 import javax.validation.constraints.NotNull;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.Response;
@@ -33,6 +35,9 @@ public abstract class BaseEntityService<T extends BaseEntity> {
     @Context
     SecurityContext securityContext;
 
+    @Inject
+    InvalidationBus invalidationBus;
+
     protected BaseEntityService(Class<T> type){
         this.type = type;
         auditLogName = type.getSimpleName().equals(User.class.getSimpleName()) ? "ADMIN_LOG" : "SUPER_ADMIN_LOG";
@@ -150,6 +155,7 @@ public abstract class BaseEntityService<T extends BaseEntity> {
 
             t = (T) baseRepository.getById(t.getUuid());
             operatedEntities.add(t);
+            invalidationBus.publish(type, t.getUuid());
         }
         return operatedEntities;
     }
@@ -260,6 +266,7 @@ public abstract class BaseEntityService<T extends BaseEntity> {
                     " ID");
 
         baseRepository.remove(t);
+        invalidationBus.publish(type, uuid);
 		logger.info(auditLogName + " ___ " + username + " ___ updated ___ "+ t.toString() + " ___ ");
 
         
@@ -5,6 +5,9 @@ import edu.harvard.hms.dbmi.avillach.auth.data.entity.User;
 import edu.harvard.hms.dbmi.avillach.auth.data.repository.TermsOfServiceRepository;
 import edu.harvard.hms.dbmi.avillach.auth.data.repository.UserRepository;
 import edu.harvard.hms.dbmi.avillach.auth.rest.UserService;
+import edu.harvard.hms.dbmi.avillach.auth.security.UserPrincipalCache;
+import edu.harvard.hms.dbmi.avillach.auth.service.auth.AfterCommit;
+import edu.harvard.hms.dbmi.avillach.auth.service.auth.InvalidationBus;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.util.StringUtils;
@@ -33,6 +36,15 @@ public class TOSService {
     @Inject
     UserService userService;
 
+    @Inject
+    UserPrincipalCache principalCache;
+
+    @Inject
+    AfterCommit afterCommit;
+
+    @Inject
+    InvalidationBus invalidationBus;
+
     public boolean hasUserAcceptedLatest(String userId){
         logger.info("Checking Terms Of Service acceptance for user with id " + userId);
         return userRepo.checkAgainstTOSDate(userId);
@@ -42,6 +54,9 @@ public class TOSService {
         TermsOfService updatedTOS = new TermsOfService();
         updatedTOS.setContent(html);
         termsOfServiceRepo.persist(updatedTOS);
+        // every user has to accept the new terms of service
+        afterCommit.run(principalCache::invalidateAll);
+        invalidationBus.publish(TermsOfService.class, updatedTOS.getUuid());
         return termsOfServiceRepo.getLatest();
     }
 
@@ -64,6 +79,7 @@ public class TOSService {
         List<User> users = Arrays.asList(user);
         Date tosDate = termsOfServiceRepo.getLatest().getDateUpdated();
         userService.updateUser(users);
+        afterCommit.run(() -> principalCache.invalidateSubject(userId));
         logger.info("TOS_LOG : User " + (!StringUtils.isEmpty(user.getEmail()) ? user.getEmail() : user.getGeneralMetadata()) + " accepted the Terms of Service dated " + tosDate.toString());
     }
 }
@@ -0,0 +1,130 @@
+package edu.harvard.hms.dbmi.avillach.auth.service.auth;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import edu.harvard.hms.dbmi.avillach.auth.JAXRSConfiguration;
+import edu.harvard.hms.dbmi.avillach.auth.data.entity.User;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * <p>One authorization decision, as written to the access log.</p>
+ *
+ * An event only holds strings, so it can wait in the {@link AccessLogWriter} queue without keeping the request
+ * alive or reading it from another thread. A request without a formatted query is serialized when the event is
+ * captured, and cut at {@value #MAX_REQUEST_LENGTH} characters, followed by its length and digest.
+ * The line is only built when the event is written.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class AccessLogEvent {
+
+    static final int MAX_REQUEST_LENGTH = 4096;
+
+    private final long timestamp = System.currentTimeMillis();
+    private final String userId;
+    private final String email;
+    private final String name;
+    private final String application;
+    private final boolean granted;
+    private final String query;
+    private final String reason;
+    private final List<String> rules;
+    private final boolean cached;
+
+    /**
+     * @param user
+     * @param application the application name
+     * @param granted
+     * @param query the formatted query, if null the request is serialized instead
+     * @param request the request body, only read by the constructor
+     * @param reason
+     * @param rules the name of the accessRule that passed, or of all the accessRules that failed
+     * @param cached whether the decision has been taken from the decision cache
+     */
+    public AccessLogEvent(User user, String application, boolean granted, String query, Object request,
+                          String reason, List<String> rules, boolean cached) {
+        this.userId = user.getUuid() == null ? null : user.getUuid().toString();
+        this.email = user.getEmail();
+        this.name = user.getName();
+        this.application = application;
+        this.granted = granted;
+        this.query = query != null ? query : serialize(request);
+        this.reason = reason;
+        this.rules = rules == null ? Collections.emptyList() : Collections.unmodifiableList(new ArrayList<>(rules));
+        this.cached = cached;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    public String getEmail() {
+        return email;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getApplication() {
+        return application;
+    }
+
+    public boolean isGranted() {
+        return granted;
+    }
+
+    /**
+     * @return the formatted query, or the serialized request if there is none
+     */
+    public String getQuery() {
+        return query;
+    }
+
+    public String getReason() {
+        return reason;
+    }
+
+    public List<String> getRules() {
+        return rules;
+    }
+
+    public boolean isCached() {
+        return cached;
+    }
+
+    private static String serialize(Object request) {
+        if (request == null)
+            return null;
+
+        String serialized;
+        try {
+            serialized = JAXRSConfiguration.objectMapper.writeValueAsString(request);
+        } catch (JsonProcessingException ex) {
+            serialized = String.valueOf(request);
+        }
+        if (serialized.length() <= MAX_REQUEST_LENGTH)
+            return serialized;
+
+        return serialized.substring(0, MAX_REQUEST_LENGTH) + "... (" + serialized.length() + " characters, sha256 "
+                + DigestUtils.sha256Hex(serialized) + ")";
+    }
+
+    /**
+     * @return the line in the format the access log had before it was structured
+     */
+    public String toLogLine() {
+        return "ACCESS_LOG ___ " + userId + "," + email + "," + name +
+                " ___ has been " + (granted ? "granted" : "denied") + " access to execute query ___ " + getQuery() +
+                " ___ in application ___ " + application + " ___ " + reason +
+                (rules.isEmpty() ? "" : (granted ? " " + rules.get(0) : ": " + rules)) +
+                (cached ? " (CACHED DECISION)" : "");
+    }
+}
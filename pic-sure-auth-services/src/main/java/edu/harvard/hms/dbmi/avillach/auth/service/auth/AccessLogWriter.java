@@ -0,0 +1,240 @@
+package edu.harvard.hms.dbmi.avillach.auth.service.auth;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import edu.harvard.hms.dbmi.avillach.auth.JAXRSConfiguration;
+import edu.harvard.hms.dbmi.avillach.auth.utils.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.enterprise.concurrent.ManagedThreadFactory;
+import javax.enterprise.context.ApplicationScoped;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Writes the access log off the request thread.</p>
+ *
+ * <p>Request threads only put {@link AccessLogEvent}s on a bounded queue, a single background thread takes them
+ * off and hands them to the sink as JSON or text lines. When the queue is full the event is dropped and counted
+ * instead of blocking the request; the counters are logged with the drop warnings and exposed as
+ * {@link Metrics} gauges.</p>
+ *
+ * The queue size comes from {@link JAXRSConfiguration#accessLogQueueSize}. The events go to
+ * the file {@link JAXRSConfiguration#accessLogFile} as JSON lines if it is set, otherwise to the ACCESS_LOG logger
+ * as the {@link AccessLogEvent#toLogLine() text lines} it always had, unless
+ * {@link JAXRSConfiguration#accessLogFormat} asks for the other one.
+ */
+@ApplicationScoped
+public class AccessLogWriter {
+
+    private Logger logger = LoggerFactory.getLogger(AccessLogWriter.class);
+
+    /**
+     * Receives the serialized access log events, only ever called from the writer thread.
+     */
+    public interface Sink {
+        void write(String line) throws IOException;
+
+        /**
+         * called when the queue has been drained
+         */
+        default void flush() throws IOException {}
+
+        default void close() throws IOException {}
+    }
+
+    public static class LoggerSink implements Sink {
+        private final Logger accessLogger = LoggerFactory.getLogger("ACCESS_LOG");
+
+        @Override
+        public void write(String line) {
+            accessLogger.info(line);
+        }
+    }
+
+    public static class FileSink implements Sink {
+        private final BufferedWriter writer;
+
+        public FileSink(String file) throws IOException {
+            writer = Files.newBufferedWriter(Paths.get(file), StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.WRITE);
+        }
+
+        @Override
+        public void write(String line) throws IOException {
+            writer.write(line);
+            writer.newLine();
+        }
+
+        @Override
+        public void flush() throws IOException {
+            writer.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            writer.close();
+        }
+    }
+
+    private static final int DRAIN_BATCH = 256;
+
+    @Resource(lookup = BackgroundThreads.MANAGED_THREAD_FACTORY)
+    ManagedThreadFactory threadFactory;
+
+    private final AtomicLong enqueued = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    private BlockingQueue<AccessLogEvent> queue;
+    private Sink sink;
+    private boolean json;
+    private Thread writerThread;
+    private volatile boolean running;
+
+    @PostConstruct
+    public void start() {
+        Sink sink = new LoggerSink();
+        if (JAXRSConfiguration.accessLogFile != null && !JAXRSConfiguration.accessLogFile.isEmpty()) {
+            try {
+                sink = new FileSink(JAXRSConfiguration.accessLogFile);
+            } catch (IOException ex) {
+                logger.error("start() cannot open access log file " + JAXRSConfiguration.accessLogFile
+                        + ", writing to the ACCESS_LOG logger instead - " + ex.getMessage());
+            }
+        }
+        String format = JAXRSConfiguration.accessLogFormat;
+        boolean json = "json".equalsIgnoreCase(format)
+                || (!"text".equalsIgnoreCase(format) && sink instanceof FileSink);
+        start(sink, JAXRSConfiguration.accessLogQueueSize, json);
+    }
+
+    /**
+     * @param sink
+     * @param queueSize
+     * @param json true for JSON lines, false for the {@link AccessLogEvent#toLogLine() text lines}
+     */
+    public synchronized void start(Sink sink, int queueSize, boolean json) {
+        if (running)
+            return;
+
+        this.sink = sink;
+        this.json = json;
+        this.queue = new ArrayBlockingQueue<>(Math.max(queueSize, 1));
+        this.running = true;
+        this.writerThread = BackgroundThreads.newThread(threadFactory, this::drain, "access-log-writer");
+        this.writerThread.start();
+
+        Metrics.gauge("psama_access_log_events", this::getEnqueued, "state", "enqueued");
+        Metrics.gauge("psama_access_log_events", this::getWritten, "state", "written");
+        Metrics.gauge("psama_access_log_events", this::getDropped, "state", "dropped");
+        logger.info("start() access log writer started with " + sink.getClass().getSimpleName()
+                + (json ? " as JSON" : " as text") + ", queue size " + queueSize);
+    }
+
+    @PreDestroy
+    public synchronized void stop() {
+        if (!running)
+            return;
+
+        running = false;
+        try {
+            writerThread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            sink.close();
+        } catch (IOException ex) {
+            logger.error("stop() cannot close access log sink - " + ex.getMessage());
+        }
+    }
+
+    /**
+     * never blocks, the event is dropped if the queue is full
+     *
+     * @param event
+     * @return false if the event has been dropped
+     */
+    public boolean log(AccessLogEvent event) {
+        if (running && queue.offer(event)) {
+            enqueued.incrementAndGet();
+            return true;
+        }
+
+        long drops = dropped.incrementAndGet();
+        // power of two drop counts only, so a full queue doesn't flood the server log
+        if ((drops & (drops - 1)) == 0)
+            logger.warn("log() access log queue is full or stopped, dropped " + drops + " events so far, written: "
+                    + written.get() + ", enqueued: " + enqueued.get());
+        return false;
+    }
+
+    public long getEnqueued() {
+        return enqueued.get();
+    }
+
+    public long getWritten() {
+        return written.get();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    private void drain() {
+        List<AccessLogEvent> events = new ArrayList<>(DRAIN_BATCH);
+        while (running || !queue.isEmpty()) {
+            try {
+                AccessLogEvent first = queue.poll(500, TimeUnit.MILLISECONDS);
+                if (first == null)
+                    continue;
+
+                events.add(first);
+                queue.drainTo(events, DRAIN_BATCH - 1);
+                for (AccessLogEvent event : events) {
+                    write(event);
+                }
+                events.clear();
+
+                if (queue.isEmpty())
+                    sink.flush();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (IOException | RuntimeException ex) {
+                events.clear();
+                logger.error("drain() cannot write access log - " + ex.getClass().getSimpleName() + ": " + ex.getMessage());
+            }
+        }
+    }
+
+    private void write(AccessLogEvent event) throws IOException {
+        String line;
+        if (json) {
+            try {
+                line = JAXRSConfiguration.objectMapper.writeValueAsString(event);
+            } catch (JsonProcessingException ex) {
+                logger.warn("write() cannot serialize access log event, writing it as text - " + ex.getMessage());
+                line = event.toLogLine();
+            }
+        } else {
+            line = event.toLogLine();
+        }
+        sink.write(line);
+        written.incrementAndGet();
+    }
+}
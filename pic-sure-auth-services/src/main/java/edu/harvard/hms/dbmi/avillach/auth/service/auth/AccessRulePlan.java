@@ -0,0 +1,51 @@
+package edu.harvard.hms.dbmi.avillach.auth.service.auth;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * <p>The compiled accessRules of one set of privileges, after merging.
+ * Between the accessRules of a plan, it is an OR relationship, so they are evaluated
+ * cheapest and most likely to pass first.</p>
+ *
+ * @see AccessRulePlanCache
+ */
+public class AccessRulePlan {
+
+    private final List<CompiledAccessRule> accessRules;
+
+    private final EvaluationOrder evaluationOrder;
+
+    private final double cost;
+
+    public AccessRulePlan(Collection<CompiledAccessRule> accessRules) {
+        this.accessRules = Collections.unmodifiableList(new ArrayList<>(accessRules));
+        this.evaluationOrder = new EvaluationOrder(this.accessRules, true);
+        this.cost = this.accessRules.stream().mapToDouble(CompiledAccessRule::getCost).sum();
+    }
+
+    public List<CompiledAccessRule> getAccessRules() {
+        return accessRules;
+    }
+
+    /**
+     * @return the accessRules in the order they should be evaluated, which changes with the pass rates observed
+     * @see EvaluationOrder
+     */
+    public List<CompiledAccessRule> getEvaluationOrder() {
+        return evaluationOrder.get();
+    }
+
+    /**
+     * @return the cost of evaluating all the accessRules, when none of them passes
+     */
+    public double getCost() {
+        return cost;
+    }
+
+    public boolean isEmpty() {
+        return accessRules.isEmpty();
+    }
+}
@@ -0,0 +1,96 @@
+package edu.harvard.hms.dbmi.avillach.auth.service.auth;
+
+import edu.harvard.hms.dbmi.avillach.auth.data.entity.Privilege;
+import edu.harvard.hms.dbmi.avillach.auth.utils.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.enterprise.context.ApplicationScoped;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * <p>Keeps the compiled accessRule plans, keyed by the version of the {@link AuthorizationSnapshot}
+ * and the set of privileges they are built from.</p>
+ *
+ * A change to accessRules, privileges or applications is only seen once the snapshot holding it
+ * is published, with a new version, so the plans are dropped when a newer version is first asked for.
+ * A request still holding an older snapshot gets its plan compiled, but not cached, so an accessRule
+ * edited in place never leaves a stale plan behind.
+ *
+ * @see AccessRulePlan
+ */
+@ApplicationScoped
+public class AccessRulePlanCache {
+
+    private Logger logger = LoggerFactory.getLogger(AccessRulePlanCache.class);
+
+    /**
+     * the number of distinct privilege sets is bounded by the role combinations of the users,
+     * this is only a safety net in case something goes wrong
+     */
+    private static final int MAX_PLANS = 10000;
+
+    private final Map<String, AccessRulePlan> plans = new ConcurrentHashMap<>();
+
+    /**
+     * the latest snapshot version the plans have been asked for
+     */
+    private volatile long version = Long.MIN_VALUE;
+
+    private static final Metrics.Counter hits = Metrics.cacheHits("access_rule_plan");
+    private static final Metrics.Counter misses = Metrics.cacheMisses("access_rule_plan");
+
+    /**
+     * @param version the version of the snapshot the privileges come from
+     * @param privileges
+     * @param compiler
+     * @return
+     */
+    public AccessRulePlan getPlan(long version, Set<Privilege> privileges, Function<Set<Privilege>, AccessRulePlan> compiler) {
+        if (version != this.version && !moveTo(version)) {
+            misses.increment();
+            return compiler.apply(privileges);
+        }
+
+        String key = planKey(version, privileges);
+        AccessRulePlan plan = plans.get(key);
+        if (plan != null) {
+            hits.increment();
+            return plan;
+        }
+
+        misses.increment();
+        if (plans.size() >= MAX_PLANS) {
+            logger.warn("getPlan() more than " + MAX_PLANS + " accessRule plans cached, dropping all of them");
+            plans.clear();
+        }
+        return plans.computeIfAbsent(key, k -> compiler.apply(privileges));
+    }
+
+    public void invalidateAll() {
+        logger.debug("invalidateAll() dropping " + plans.size() + " accessRule plans");
+        plans.clear();
+    }
+
+    /**
+     * @return false if the version is older than the latest one, its plans are not cached
+     */
+    private synchronized boolean moveTo(long version) {
+        if (version > this.version) {
+            plans.clear();
+            this.version = version;
+        }
+        return version == this.version;
+    }
+
+    static String planKey(long version, Set<Privilege> privileges) {
+        return version + ":" + privileges.stream()
+                .map(p -> String.valueOf(p.getUuid()))
+                .sorted()
+                .collect(Collectors.joining(","));
+    }
+}
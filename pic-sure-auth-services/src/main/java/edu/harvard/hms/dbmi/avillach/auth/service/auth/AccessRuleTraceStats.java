@@ -0,0 +1,138 @@
+package edu.harvard.hms.dbmi.avillach.auth.service.auth;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.enterprise.context.ApplicationScoped;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * <p>Aggregates the {@link EvaluationTrace}s recorded while rule tracing is turned on, per accessRule,
+ * gate and subAccessRule, so the slowest ones can be listed.</p>
+ *
+ * Nodes are keyed by kind and name, the time of a node includes the time of its children.
+ */
+@ApplicationScoped
+public class AccessRuleTraceStats {
+
+    private Logger logger = LoggerFactory.getLogger(AccessRuleTraceStats.class);
+
+    /**
+     * accessRule names are bounded by the database, this is only a safety net
+     */
+    private static final int MAX_RULES = 10000;
+
+    public static class RuleStats {
+        private final String name;
+        private final String kind;
+        private final LongAdder evaluations = new LongAdder();
+        private final LongAdder memoized = new LongAdder();
+        private final LongAdder passed = new LongAdder();
+        private final LongAdder shortCircuits = new LongAdder();
+        private final LongAdder matches = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final LongAccumulator maxNanos = new LongAccumulator(Long::max, 0);
+
+        RuleStats(String name, String kind) {
+            this.name = name;
+            this.kind = kind;
+        }
+
+        void record(EvaluationTrace.Node node) {
+            if (node.getMemoized() != null) {
+                memoized.increment();
+                return;
+            }
+
+            evaluations.increment();
+            if (node.isPassed())
+                passed.increment();
+            if (node.getShortCircuit() != null)
+                shortCircuits.increment();
+            if (node.getMatches() != null)
+                matches.add(node.getMatches());
+            totalNanos.add(node.getNanos());
+            maxNanos.accumulate(node.getNanos());
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getKind() {
+            return kind;
+        }
+
+        public long getEvaluations() {
+            return evaluations.sum();
+        }
+
+        /**
+         * @return the number of times the result of an earlier evaluation in the same request has been reused
+         */
+        public long getMemoized() {
+            return memoized.sum();
+        }
+
+        public long getPassed() {
+            return passed.sum();
+        }
+
+        public long getShortCircuits() {
+            return shortCircuits.sum();
+        }
+
+        public long getMatches() {
+            return matches.sum();
+        }
+
+        public long getTotalMicros() {
+            return TimeUnit.NANOSECONDS.toMicros(totalNanos.sum());
+        }
+
+        public long getMeanMicros() {
+            long count = evaluations.sum();
+            return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(totalNanos.sum() / count);
+        }
+
+        public long getMaxMicros() {
+            return TimeUnit.NANOSECONDS.toMicros(maxNanos.get());
+        }
+    }
+
+    private final Map<String, RuleStats> stats = new ConcurrentHashMap<>();
+
+    public void record(EvaluationTrace trace) {
+        if (stats.size() >= MAX_RULES) {
+            logger.warn("record() more than " + MAX_RULES + " accessRules traced, dropping their statistics");
+            stats.clear();
+        }
+
+        for (EvaluationTrace.Node node : trace.getNodes()) {
+            stats.computeIfAbsent(node.getKind() + "|" + node.getName(), k -> new RuleStats(node.getName(), node.getKind()))
+                    .record(node);
+        }
+    }
+
+    /**
+     * @param limit
+     * @return the accessRules, gates and subAccessRules with the most time spent, slowest first
+     */
+    public List<RuleStats> getSlowest(int limit) {
+        return stats.values().stream()
+                .sorted(Comparator.comparingLong(RuleStats::getTotalMicros).reversed())
+                .limit(limit)
+                .collect(Collectors.toList());
+    }
+
+    public void clear() {
+        stats.clear();
+    }
+}
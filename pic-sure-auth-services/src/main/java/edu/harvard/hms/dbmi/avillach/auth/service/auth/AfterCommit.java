@@ -0,0 +1,82 @@
+package edu.harvard.hms.dbmi.avillach.auth.service.auth;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Resource;
+import javax.enterprise.context.ApplicationScoped;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+import javax.transaction.Transactional;
+
+/**
+ * <p>Runs actions once the current transaction is committed.</p>
+ *
+ * The in-memory caches and the authorization snapshot must only see a change once it is committed:
+ * invalidated before, a request running in between reloads the old state and caches it as the new one,
+ * and a change rolled back would be served anyway.
+ * <br>
+ * Without a transaction, the action runs right away.
+ */
+@ApplicationScoped
+public class AfterCommit {
+
+    private Logger logger = LoggerFactory.getLogger(AfterCommit.class);
+
+    @Resource(lookup = "java:comp/TransactionSynchronizationRegistry")
+    TransactionSynchronizationRegistry transactions;
+
+    public AfterCommit() {
+    }
+
+    public AfterCommit(TransactionSynchronizationRegistry transactions) {
+        this.transactions = transactions;
+    }
+
+    /**
+     * run the action once the current transaction is committed, never if it rolls back
+     *
+     * @param action
+     */
+    public void run(Runnable action) {
+        int status = transactions == null ? Status.STATUS_NO_TRANSACTION : transactions.getTransactionStatus();
+        if (status == Status.STATUS_MARKED_ROLLBACK || status == Status.STATUS_ROLLING_BACK
+                || status == Status.STATUS_ROLLEDBACK)
+            return;
+        if (status != Status.STATUS_ACTIVE) {
+            action.run();
+            return;
+        }
+
+        transactions.registerInterposedSynchronization(new Synchronization() {
+            @Override
+            public void beforeCompletion() {
+            }
+
+            @Override
+            public void afterCompletion(int status) {
+                if (status != Status.STATUS_COMMITTED)
+                    return;
+
+                try {
+                    action.run();
+                } catch (RuntimeException ex) {
+                    // the transaction is over, failing here would only hide the change from the caller
+                    logger.error("afterCompletion() cannot run an action after commit - "
+                            + ex.getClass().getSimpleName() + ": " + ex.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * run the action in its own transaction, for actions run after commit that read from the database
+     *
+     * @param action
+     */
+    @Transactional(Transactional.TxType.REQUIRES_NEW)
+    public void inNewTransaction(Runnable action) {
+        action.run();
+    }
+}
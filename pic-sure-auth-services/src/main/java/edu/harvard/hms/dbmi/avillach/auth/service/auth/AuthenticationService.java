@@ -29,6 +29,7 @@ import edu.harvard.hms.dbmi.avillach.auth.service.MailService;
 import edu.harvard.hms.dbmi.avillach.auth.service.OauthUserMatchingService;
 import edu.harvard.hms.dbmi.avillach.auth.service.TOSService;
 import edu.harvard.hms.dbmi.avillach.auth.utils.AuthUtils;
+import edu.harvard.hms.dbmi.avillach.auth.utils.Metrics;
 
 /**
  * This class provides authentication functionality. This implements an authenticationService interface
@@ -41,6 +42,8 @@ public class AuthenticationService {
 
 	private Logger logger = LoggerFactory.getLogger(AuthenticationService.class);
 
+	private static final Metrics.Timer userInfoTimer = Metrics.timer("psama_idp_request_seconds", "idp", "auth0", "call", "userinfo");
+
     @Inject
     OauthUserMatchingService matchingService;
 
@@ -61,6 +64,9 @@ public class AuthenticationService {
 
     @Inject
     AuthUtils authUtil;
+
+    @Inject
+    PrivilegeClaims privilegeClaims;
     
     private static final int AUTH_RETRY_LIMIT = 3;
 
@@ -111,6 +117,7 @@ public class AuthenticationService {
         claims.put("sub", userId);
         claims.put("name", user.getName());
         claims.put("email", user.getEmail());
+        privilegeClaims.addTo(claims, user);
         HashMap<String, String> responseMap = authUtil.getUserProfileResponse(claims);
         
 		logger.info("LOGIN SUCCESS ___ " + user.getEmail() + ":" + user.getUuid().toString() + " ___ Authorization will expire at  ___ " + responseMap.get("expirationDate") + "___");
@@ -128,6 +135,7 @@ public class AuthenticationService {
         RequestConfig requestConfig = createRequestConfigWithCustomTimeout(5000);
 
         for(int i = 1; i <= AUTH_RETRY_LIMIT && auth0Response == null; i++) {
+	         long start = System.nanoTime();
 	         try {
 	        	auth0Response = HttpClientUtil.simpleGetWithConfig(
                     auth0UserInfoURI,
@@ -143,6 +151,8 @@ public class AuthenticationService {
 	        		 logger.error("Failed to authenticate.  Giving up!");
 	        		 throw e;
 	        	 }
+	         } finally {
+	        	 userInfoTimer.recordSince(start);
 	         }
         }
         return auth0Response;
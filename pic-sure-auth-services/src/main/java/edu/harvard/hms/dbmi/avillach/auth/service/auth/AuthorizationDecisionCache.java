@@ -0,0 +1,176 @@
+package edu.harvard.hms.dbmi.avillach.auth.service.auth;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import edu.harvard.hms.dbmi.avillach.auth.JAXRSConfiguration;
+import edu.harvard.hms.dbmi.avillach.auth.data.entity.AccessRule;
+import edu.harvard.hms.dbmi.avillach.auth.data.entity.Application;
+import edu.harvard.hms.dbmi.avillach.auth.data.entity.Privilege;
+import edu.harvard.hms.dbmi.avillach.auth.data.entity.Role;
+import edu.harvard.hms.dbmi.avillach.auth.data.entity.User;
+import edu.harvard.hms.dbmi.avillach.auth.utils.Metrics;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Opt-in cache of authorization decisions, keyed by user, application and a SHA-256 fingerprint
+ * of the canonicalized request body (map keys sorted), so that repeated introspections of the same
+ * request by the same user skip the accessRule evaluation.</p>
+ *
+ * Entries expire after {@link JAXRSConfiguration#decisionCacheTTL} milliseconds and the least recently
+ * used ones are dropped beyond {@link JAXRSConfiguration#decisionCacheMaxSize} entries.
+ * Any change to a user's roles, or to roles, privileges, accessRules or applications, must invalidate it
+ * once it is committed, see {@link AfterCommit}.
+ */
+@ApplicationScoped
+public class AuthorizationDecisionCache {
+
+    private Logger logger = LoggerFactory.getLogger(AuthorizationDecisionCache.class);
+
+    /**
+     * separate from JAXRSConfiguration.objectMapper, the fingerprint needs map keys in a stable order
+     */
+    private static final ObjectMapper canonicalMapper = new ObjectMapper()
+            .configure(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS, true);
+
+    public static class Decision {
+        private final boolean authorized;
+        private final String reason;
+        private final List<String> rules;
+        private final long expiresAt;
+
+        Decision(boolean authorized, String reason, List<String> rules, long expiresAt) {
+            this.authorized = authorized;
+            this.reason = reason;
+            this.rules = rules;
+            this.expiresAt = expiresAt;
+        }
+
+        public boolean isAuthorized() {
+            return authorized;
+        }
+
+        /**
+         * @return the ACCESS_LOG explanation of the original decision
+         */
+        public String getReason() {
+            return reason;
+        }
+
+        /**
+         * @return the accessRule names of the ACCESS_LOG explanation
+         */
+        public List<String> getRules() {
+            return rules;
+        }
+    }
+
+    private final Map<String, Decision> decisions = new LinkedHashMap<String, Decision>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Decision> eldest) {
+            return size() > JAXRSConfiguration.decisionCacheMaxSize;
+        }
+    };
+
+    /**
+     * bumped by every invalidation, a decision computed before an invalidation is not stored
+     */
+    private final AtomicLong generation = new AtomicLong();
+
+    private static final Metrics.Counter hits = Metrics.cacheHits("authorization_decision");
+    private static final Metrics.Counter misses = Metrics.cacheMisses("authorization_decision");
+
+    public boolean isEnabled() {
+        return JAXRSConfiguration.decisionCacheEnabled;
+    }
+
+    public long generation() {
+        return generation.get();
+    }
+
+    /**
+     * @return the cache key, or null if caching is disabled or the request body cannot be fingerprinted
+     */
+    public String key(User user, Application application, Object requestBody) {
+        if (!isEnabled() || user.getUuid() == null || application.getUuid() == null)
+            return null;
+
+        try {
+            return user.getUuid() + "|" + application.getUuid() + "|"
+                    + DigestUtils.sha256Hex(canonicalMapper.writeValueAsBytes(requestBody));
+        } catch (JsonProcessingException ex) {
+            logger.debug("key() cannot fingerprint request body - " + ex.getMessage());
+            return null;
+        }
+    }
+
+    public Decision get(String key) {
+        if (key == null)
+            return null;
+
+        synchronized (decisions) {
+            Decision decision = decisions.get(key);
+            if (decision != null && decision.expiresAt < System.currentTimeMillis()) {
+                decisions.remove(key);
+                decision = null;
+            }
+            (decision == null ? misses : hits).increment();
+            return decision;
+        }
+    }
+
+    /**
+     * @param key
+     * @param generation the generation read before the decision was computed
+     * @param authorized
+     * @param reason
+     * @param rules
+     */
+    public void put(String key, long generation, boolean authorized, String reason, List<String> rules) {
+        if (key == null)
+            return;
+
+        synchronized (decisions) {
+            if (generation != this.generation.get())
+                return;
+            decisions.put(key, new Decision(authorized, reason, rules, System.currentTimeMillis() + JAXRSConfiguration.decisionCacheTTL));
+        }
+    }
+
+    public void invalidateUser(UUID userId) {
+        if (userId == null) {
+            invalidateAll();
+            return;
+        }
+
+        String prefix = userId + "|";
+        synchronized (decisions) {
+            generation.incrementAndGet();
+            decisions.keySet().removeIf(key -> key.startsWith(prefix));
+        }
+    }
+
+    public void invalidateAll() {
+        synchronized (decisions) {
+            generation.incrementAndGet();
+            decisions.clear();
+        }
+    }
+
+    public void onEntityChanged(@Observes EntityChanged event) {
+        if (event.is(User.class))
+            invalidateUser(event.getUuid());
+        else if (event.is(Role.class) || event.is(Privilege.class) || event.is(AccessRule.class) || event.is(Application.class))
+            invalidateAll();
+    }
+}
@@ -1,16 +1,16 @@
 package edu.harvard.hms.dbmi.avillach.auth.service.auth;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.jayway.jsonpath.JsonPath;
-import com.jayway.jsonpath.PathNotFoundException;
 import edu.harvard.hms.dbmi.avillach.auth.data.entity.AccessRule;
 import edu.harvard.hms.dbmi.avillach.auth.data.entity.Application;
 import edu.harvard.hms.dbmi.avillach.auth.data.entity.Privilege;
 import edu.harvard.hms.dbmi.avillach.auth.data.entity.User;
+import edu.harvard.hms.dbmi.avillach.auth.utils.Metrics;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.inject.Inject;
+
 import java.util.*;
 import java.util.stream.Collectors;
 
@@ -36,6 +36,29 @@ import java.util.stream.Collectors;
 public class AuthorizationService {
 	private Logger logger = LoggerFactory.getLogger(AuthorizationService.class);
 
+	@Inject
+	AccessRulePlanCache accessRulePlanCache;
+
+	@Inject
+	AuthorizationDecisionCache decisionCache;
+
+	@Inject
+	AuthorizationSnapshotHolder authorizationSnapshot;
+
+	@Inject
+	AccessLogWriter accessLogWriter;
+
+	@Inject
+	AccessRuleTraceStats traceStats;
+
+	@Inject
+	ParallelRuleEvaluator parallelEvaluator;
+
+	// from the request to the compiled accessRules
+	private static final Metrics.Timer preprocessingTimer = Metrics.timer("psama_authorization_seconds", "phase", "preprocessing");
+	// the evaluation of the accessRules against the request
+	private static final Metrics.Timer evaluationTimer = Metrics.timer("psama_authorization_seconds", "phase", "evaluation");
+
 	/**
 	 * Checking based on AccessRule in Privilege
      * <br><br>
@@ -65,14 +88,29 @@ public class AuthorizationService {
 	 * @see AccessRule
 	 */
 	public boolean isAuthorized(Application application , Object requestBody, User user){
+		return isAuthorized(application, requestBody, user, null);
+	}
+
+	/**
+	 * Same as {@link #isAuthorized(Application, Object, User)}, recording the evaluation in the trace.
+	 * A traced check never takes its decision from the decision cache.
+	 *
+	 * @param application
+	 * @param requestBody
+	 * @param user
+	 * @param trace filled in with the accessRules, gates and subAccessRules evaluated, null if not tracing
+	 * @return
+	 */
+	public boolean isAuthorized(Application application , Object requestBody, User user, EvaluationTrace trace){
 
 	    // (application.getPrivileges().isEmpty() && !user.getPrivilegeNameSetByApplication(application).isEmpty())
 
+        long start = System.nanoTime();
         String applicationName = application.getName();
 		//in some cases, we don't go through the evaluation
 		if (requestBody == null) {
-			logger.info("ACCESS_LOG ___ " + user.getUuid().toString() + "," + user.getEmail() + "," + user.getName() + 
-					" ___ has been granted access to application ___ " + applicationName + " ___ NO REQUEST BODY FORWARDED BY APPLICATION");        
+			accessLog(new AccessLogEvent(user, applicationName, true, null, null,
+					"NO REQUEST BODY FORWARDED BY APPLICATION", null, false));
 			return true;
 		}
 
@@ -86,25 +124,32 @@ public class AuthorizationService {
 
 		// start to process the jsonpath checking
 
+		// if there is no formatted query info present, the access log serializes the request body instead
 		String formattedQuery = null;
 		try {
 			formattedQuery = (String) ((Map)requestBody).get("formattedQuery");
-			
-			if(formattedQuery == null) {
-				//fallback in case no formatted query info present
-				formattedQuery = new ObjectMapper().writeValueAsString(requestBody);
-			}
-			
-		} catch (ClassCastException | JsonProcessingException e1) {
+		} catch (ClassCastException e1) {
 			// TODO Auto-generated catch block
 			e1.printStackTrace();
-			logger.info("ACCESS_LOG ___ " + user.getUuid().toString() + "," + user.getEmail() + "," + user.getName() + 
-					" ___ has been denied access to execute query ___ " + requestBody + " ___ in application ___ " + applicationName
-                    + " ___ UNABLE TO PARSE REQUEST");
+			accessLog(new AccessLogEvent(user, applicationName, false, null, requestBody,
+					"UNABLE TO PARSE REQUEST", null, false));
 			return false;
 		}
 
-		Set<Privilege> privileges = user.getPrivilegesByApplication(application);
+		// repeated introspections of the same request skip the evaluation when the decision cache is turned on
+		String decisionKey = decisionCache == null ? null : decisionCache.key(user, application, requestBody);
+		long decisionGeneration = decisionKey == null ? 0 : decisionCache.generation();
+		AuthorizationDecisionCache.Decision cachedDecision = decisionKey == null || trace != null ? null : decisionCache.get(decisionKey);
+		if (cachedDecision != null) {
+			accessLog(new AccessLogEvent(user, applicationName, cachedDecision.isAuthorized(), formattedQuery, requestBody,
+					cachedDecision.getReason(), cachedDecision.getRules(), true));
+			return cachedDecision.isAuthorized();
+		}
+
+		AuthorizationSnapshot snapshot = authorizationSnapshot == null ? null : authorizationSnapshot.get();
+		Set<Privilege> privileges = snapshot == null ?
+				user.getPrivilegesByApplication(application) :
+				snapshot.getPrivilegesByApplication(user, application);
 
 		// If the user doesn't have any privileges associated to the application,
         // it will return false. The logic is if there are any privileges associated with the application,
@@ -113,58 +158,89 @@ public class AuthorizationService {
         // The check if the application has privileges or not should be outside this function.
         // Here we assume that the application has at least one privilege
 		if (privileges == null || privileges.isEmpty()) {
-		    logger.info("ACCESS_LOG ___ " + user.getUuid().toString() + "," + user.getEmail() + "," + user.getName() +
-                    " ___ has been denied access to execute query ___ " + formattedQuery + " ___ in application ___ " + applicationName
-                    + " __ USER HAS NO PRIVILEGES ASSOCIATED TO THE APPLICATION, BUT APPLICATION HAS PRIVILEGES");
+		    decide(decisionKey, decisionGeneration, new AccessLogEvent(user, applicationName, false, formattedQuery, requestBody,
+					"USER HAS NO PRIVILEGES ASSOCIATED TO THE APPLICATION, BUT APPLICATION HAS PRIVILEGES", null, false));
             return false;
         }
 
-        Set<AccessRule> accessRules = preProcessAccessRules(privileges);
+        AccessRulePlan plan = getPlan(snapshot == null ? 0 : snapshot.getVersion(), privileges);
 
-		if (accessRules == null || accessRules.isEmpty()) {
-			logger.info("ACCESS_LOG ___ " + user.getUuid().toString() + "," + user.getEmail() + "," + user.getName() + 
-					" ___ has been granted access to execute query ___ " + formattedQuery + " ___ in application ___ " + applicationName
-                    + " ___ NO ACCESS RULES EVALUATED");
+		if (plan.isEmpty()) {
+			decide(decisionKey, decisionGeneration, new AccessLogEvent(user, applicationName, true, formattedQuery, requestBody,
+					"NO ACCESS RULES EVALUATED", null, false));
 			return true;        	
 		}
 
+        long evaluationStart = System.nanoTime();
+        preprocessingTimer.record(evaluationStart - start);
+
+        // the request body is wrapped only once, all accessRules, gates and subAccessRules read from it,
+        // and gates shared between accessRules are only evaluated once
+        EvaluationContext context = new EvaluationContext(JsonPath.parse(requestBody));
+
          // loop through all accessRules
-         // Current logic here is: among all accessRules, they are OR relationship
-		Set<AccessRule> failedRules = new HashSet<>();
-		AccessRule passByRule = null;
+         // Current logic here is: among all accessRules, they are OR relationship,
+         // so the ones most likely to pass for the least work go first
+		List<String> failedRules = new ArrayList<>();
+		CompiledAccessRule passByRule = null;
         boolean result = false;
-		for (AccessRule accessRule : accessRules) {
-
-			if (evaluateAccessRule(requestBody, accessRule)){
-				result = true;
-				passByRule = accessRule;
-				break;
-			} else {
-			    failedRules.add(accessRule);
-            }
+		if (trace == null && parallelEvaluator != null && parallelEvaluator.appliesTo(plan)) {
+			// heavy plans are spread over several threads, traced checks always stay on this one
+			ParallelRuleEvaluator.Outcome outcome = parallelEvaluator.evaluate(plan.getEvaluationOrder(), context);
+			passByRule = outcome.getPassedBy();
+			result = passByRule != null;
+			failedRules = outcome.getFailedRules();
+		} else {
+			for (CompiledAccessRule accessRule : plan.getEvaluationOrder()) {
+
+				if (accessRule.evaluate(context, trace == null ? null : trace.accessRule(accessRule.getName()))){
+					result = true;
+					passByRule = accessRule;
+					break;
+				} else {
+				    failedRules.add(accessRule.getName());
+	            }
+			}
 		}
 
-		String passRuleName = null;
-
-		if (passByRule != null){
-		    if (passByRule.getMergedName().isEmpty())
-		        passRuleName = passByRule.getName();
-             else
-                passRuleName = passByRule.getMergedName();
-        }
+		long evaluationEnd = System.nanoTime();
+		evaluationTimer.record(evaluationEnd - evaluationStart);
 
-		logger.info("ACCESS_LOG ___ " + user.getUuid().toString() + "," + user.getEmail() + "," + user.getName() + 
-				" ___ has been " + (result?"granted":"denied") + " access to execute query ___ " + formattedQuery + 
-				" ___ in application ___ " + applicationName + " ___ " +
-                (result?"passed by " + passRuleName:"failed by rules: ["
-                        + failedRules.stream()
-                        .map(ar->(ar.getMergedName().isEmpty()?ar.getName():ar.getMergedName()))
-                        .collect(Collectors.joining(", ")) + "]"
-                ));
+		if (trace != null) {
+			int skipped = plan.getAccessRules().size() - failedRules.size() - (result ? 1 : 0);
+			trace.finish(result, evaluationStart - start, evaluationEnd - evaluationStart,
+					result && skipped > 0 ? "passed by " + passByRule.getName() + ", " + skipped + " accessRules skipped" : null);
+			if (traceStats != null)
+				traceStats.record(trace);
+		}
 
+		decide(decisionKey, decisionGeneration, result ?
+				new AccessLogEvent(user, applicationName, true, formattedQuery, requestBody,
+						"passed by", Collections.singletonList(passByRule.getName()), false) :
+				new AccessLogEvent(user, applicationName, false, formattedQuery, requestBody,
+						"failed by rules", failedRules, false));
 		return result;
 	}
 
+	/**
+	 * the access log is written by the background writer, or straight to this logger if there is none
+	 */
+	private void accessLog(AccessLogEvent event){
+		if (accessLogWriter != null)
+			accessLogWriter.log(event);
+		else
+			logger.info(event.toLogLine());
+	}
+
+	/**
+	 * log the decision, and keep it in the decision cache if it is turned on
+	 */
+	private void decide(String decisionKey, long decisionGeneration, AccessLogEvent event){
+		accessLog(event);
+		if (decisionKey != null)
+			decisionCache.put(decisionKey, decisionGeneration, event.isGranted(), event.getReason(), event.getRules());
+	}
+
     /**
      * This class is for preparing for a set of accessRule that used by the further checking
      *
@@ -281,21 +357,24 @@ public class AuthorizationService {
      * Notice: we don't need to worry about if any accessRule value is null
      * since the mergedValues is a Set, it allows adding null value,
      * and later on when doing evaluation, this null value will be handled
+     * <br><br>
+     * The accessRules coming in are managed by the persistence context and shared
+     * between requests, so they are never modified here. The first accessRule of a group
+     * is copied, and the others are merged into that copy.
      *
-     * @param baseAccessRule the base accessRule and this will be returned
+     * @param baseAccessRule the detached copy that collects the merge, null for the first accessRule
      * @param accessRuleToBeMerged the one that waits to be merged into base accessRule
-     * @return
+     * @return the detached merged accessRule
      */
     private AccessRule mergeAccessRules(AccessRule baseAccessRule, AccessRule accessRuleToBeMerged){
         if (baseAccessRule == null) {
-            accessRuleToBeMerged.getMergedValues().add(accessRuleToBeMerged.getValue());
-            return accessRuleToBeMerged;
+            return detachedCopy(accessRuleToBeMerged);
         }
 
-        if (baseAccessRule.getSubAccessRule()!= null && accessRuleToBeMerged.getSubAccessRule() != null){
+        if (accessRuleToBeMerged.getSubAccessRule() != null){
+            if (baseAccessRule.getSubAccessRule() == null)
+                baseAccessRule.setSubAccessRule(new HashSet<>());
             baseAccessRule.getSubAccessRule().addAll(accessRuleToBeMerged.getSubAccessRule());
-        } else if (baseAccessRule.getSubAccessRule() == null && accessRuleToBeMerged.getSubAccessRule() != null){
-            baseAccessRule.setSubAccessRule(accessRuleToBeMerged.getSubAccessRule());
         }
 
         baseAccessRule.getMergedValues().add(accessRuleToBeMerged.getValue());
@@ -309,6 +388,35 @@ public class AuthorizationService {
         return baseAccessRule;
     }
 
+    /**
+     * copy everything evaluation needs into a new, unmanaged accessRule,
+     * with the value as the only merged value.
+     * Gates and subAccessRules are referenced, but the sets holding them are new.
+     */
+    private AccessRule detachedCopy(AccessRule accessRule){
+        AccessRule copy = new AccessRule();
+        copy.setUuid(accessRule.getUuid());
+        copy.setName(accessRule.getName());
+        copy.setDescription(accessRule.getDescription());
+        copy.setType(accessRule.getType());
+        copy.setRule(accessRule.getRule());
+        copy.setValue(accessRule.getValue());
+        copy.setGateAnyRelation(accessRule.getGateAnyRelation());
+        copy.setEvaluateOnlyByGates(accessRule.getEvaluateOnlyByGates());
+        copy.setCheckMapNode(accessRule.getCheckMapNode());
+        copy.setCheckMapKeyOnly(accessRule.getCheckMapKeyOnly());
+        if (accessRule.getGates() != null)
+            copy.setGates(new HashSet<>(accessRule.getGates()));
+        if (accessRule.getSubAccessRule() != null)
+            copy.setSubAccessRule(new HashSet<>(accessRule.getSubAccessRule()));
+
+        Set<String> mergedValues = new HashSet<>();
+        mergedValues.add(accessRule.getValue());
+        copy.setMergedValues(mergedValues);
+        copy.setMergedName("");
+        return copy;
+    }
+
     /**
      * inside one accessRule, it might contain a set of gates and a set of subAccessRule.
      * <br>
@@ -316,394 +424,42 @@ public class AuthorizationService {
      * it will start to check the rules. But relationship between gates could be set to OR.
      * <br>
      * All rules (rules and subAccessRules) under one accessRule are AND relationship .
+     * <br>
+     * The accessRule is compiled on the fly here, {@link #isAuthorized(Application, Object, User)}
+     * uses the cached compiled plans instead.
      *
      * @param parsedRequestBody
      * @param accessRule
      * @return
+     *
+     * @see CompiledAccessRule
      */
 	protected boolean evaluateAccessRule(Object parsedRequestBody, AccessRule accessRule) {
-	    logger.debug("evaluateAccessRule() starting with:");
-	    logger.debug(parsedRequestBody.toString());
-	    logger.debug("evaluateAccessRule()  access rule:"+accessRule.getName());
-
-		Set<AccessRule> gates = accessRule.getGates();
-
-		// if no gates in this accessRule, this flag will be set to true
-        // meaning the rules in this accessRule will be evaluated
-		boolean gatesPassed = true;
-
-		// depends on the flag getGateAnyRelation is true or false,
-        // the logic of checking if apply gate will be changed
-        // the following cases are gate passed:
-        // 1. if gates are null or empty
-        // 2. if getGateAnyRelation is false, all gates passed
-        // 3. if getGateAnyRelation is true, one of the gate passed
-		if (gates != null && !gates.isEmpty()) {
-		    if (accessRule.getGateAnyRelation() == null || accessRule.getGateAnyRelation() == false) {
-
-		        // All gates are AND relationship
-                // means one fails all fail
-                for (AccessRule gate : gates){
-                    if (!evaluateAccessRule(parsedRequestBody, gate)){
-                        logger.error("evaluateAccessRule() gate "+gate.getName()+" failed ");
-                        gatesPassed = false;
-                        break;
-                    }
-                }
-            } else {
-
-		        // All gates are OR relationship
-                // means one passes all pass
-		        gatesPassed = false;
-                for (AccessRule gate : gates){
-                    if (evaluateAccessRule(parsedRequestBody, gate)){
-                        logger.debug("evaluateAccessRule() gate "+gate.getName()+" passed ");
-                        gatesPassed = true;
-                        break;
-                    }
-                }
-            }
-
-		}
-
-		// the result is based on if gates passed or not
-		if (accessRule.getEvaluateOnlyByGates() != null && accessRule.getEvaluateOnlyByGates()){
-            logger.debug("evaluateAccessRule() eval only by gates");
-		    return gatesPassed;
-        }
-
-        if (gatesPassed) {
-            logger.debug("evaluateAccessRule() gates passed");
-            if (extractAndCheckRule(accessRule, parsedRequestBody) == false)
-                return false;
-            else {
-                if (accessRule.getSubAccessRule() != null) {
-                    for (AccessRule subAccessRule : accessRule.getSubAccessRule()) {
-                        if (extractAndCheckRule(subAccessRule, parsedRequestBody) == false)
-                            return false;
-                    }
-                }
-            }
-        } else {
-            logger.debug("evaluateAccessRule() gates failed");
-		    // if gates not applied, this accessRule will consider deny
-		    return false;
-        }
-
-        return true;
+	    logger.debug("evaluateAccessRule() access rule:" + accessRule.getName());
+	    return CompiledAccessRule.compile(accessRule).evaluate(JsonPath.parse(parsedRequestBody));
 	}
 
     /**
-     * This function does two parts: extract the value from current node, then
-     * call the evaluateNode() to check if it passed or not
-     *
-     * <br>
-     * Note: if rule is empty, the check will always return true
+     * merge the accessRules of the privileges and compile them
      *
-     * @param accessRule
-     * @param parsedRequestBody
+     * @param privileges
      * @return
      */
-	private boolean extractAndCheckRule(AccessRule accessRule, Object parsedRequestBody){
-	    logger.debug("extractAndCheckRule() starting");
-        String rule = accessRule.getRule();
-
-        if (rule == null || rule.isEmpty())
-            return true;
-
-        Object requestBodyValue;
-        int accessRuleType = accessRule.getType();
-        
-        try {
-            requestBodyValue = JsonPath.parse(parsedRequestBody).read(rule);
-        } catch (PathNotFoundException ex){
-        	//if path doesn't exist; that's enough to match 'is empty' rule.  
-        	if(accessRuleType == AccessRule.TypeNaming.IS_EMPTY) {
-        		logger.debug("extractAndCheckRule() -> JsonPath.parse().read() PathNotFound;  passing IS_EMPTY rule");
-        		return true;
-        	}
-            logger.debug("extractAndCheckRule() -> JsonPath.parse().read() throws exception with parsedRequestBody - {} : {} - {}", parsedRequestBody, ex.getClass().getSimpleName(), ex.getMessage());
-            return false;
-        }
-
-        // AccessRule type IS_EMPTY is very special, needs to be checked in front of any others
-        // in type IS_EMPTY, it doens't matter if the value is null or anything
-        if (accessRuleType == AccessRule.TypeNaming.IS_EMPTY
-                || accessRuleType == AccessRule.TypeNaming.IS_NOT_EMPTY){
-            if (requestBodyValue == null
-                    || (requestBodyValue instanceof String && ((String)requestBodyValue).isEmpty())
-                    || (requestBodyValue instanceof Collection && ((Collection)requestBodyValue).isEmpty())
-                    || (requestBodyValue instanceof Map && ((Map)requestBodyValue).isEmpty())){
-                if (accessRuleType == AccessRule.TypeNaming.IS_EMPTY)
-                    return true;
-                else
-                    return false;
-            } else {
-                if (accessRuleType == AccessRule.TypeNaming.IS_NOT_EMPTY)
-                    return true;
-                else
-                    return false;
-            }
-        }
-
-        return evaluateNode(requestBodyValue, accessRule);
-    }
-
-
-    private boolean evaluateNode(Object requestBodyValue, AccessRule accessRule){
-	    logger.debug("evaluateNode() starting...");
-
-        /**
-         * NOTE: if the path(driven by attribute rule) eventually leads to String values, we can do check,
-         * otherwise, only means the path is not driving to useful places, just return true.
-         *
-         * a possible requestBodyValue could be:
-         *
-         *     NOTE: this size 13 JSONArray contains every element in the root node,
-         *     which means the parent node and child node will be separately counted, meaning
-         *     13 elements contains duplicated but parent-child related nodes.
-         *
-         * requestBodyValue = {JSONArray@1560}  size = 13
-         *  0 = {LinkedHashMap@1566}  size = 5
-         *  1 = "8e8c7ed0-87ea-4342-b8da-f939e46bac26"
-         *  2 = {LinkedHashMap@1568}  size = 0
-         *  3 = {LinkedHashMap@1569}  size = 1
-         *  4 = {LinkedHashMap@1570}  size = 0
-         *  5 = {ArrayList@1571}  size = 1
-         *  6 = "COUNT"
-         *  7 = {ArrayList@1573}  size = 2
-         *  8 = {ArrayList@1574}  size = 1
-         *  9 = "male"
-         *  10 = "\demographics\AGE\"
-         *  11 = "\demographics\SEX\"
-         *  12 = "\demographics\AGE\"
-         */
-
-        if (requestBodyValue instanceof String){
-            return decisionMaker(accessRule, (String)requestBodyValue);
-        } else if (requestBodyValue instanceof Collection) {
-            switch (accessRule.getType()){
-                case (AccessRule.TypeNaming.ANY_EQUALS):
-                case (AccessRule.TypeNaming.ANY_CONTAINS):
-                case(AccessRule.TypeNaming.ANY_REG_MATCH):
-                    for (Object item : (Collection)requestBodyValue) {
-                        if (item instanceof String){
-                            if (decisionMaker(accessRule, (String)item)){
-                                return true;
-                            }
-                        } else {
-                            if (evaluateNode(item, accessRule)){
-                                return true;
-                            }
-                        }
-                    }
-                    // need to take care if the collection is empty
-                    return false;
-                default:
-                    if (((Collection) requestBodyValue).isEmpty()){
-                        // need to take care if the collection is empty
-                        switch (accessRule.getType()){
-                            case (AccessRule.TypeNaming.ALL_EQUALS_IGNORE_CASE):
-                            case (AccessRule.TypeNaming.ALL_EQUALS):
-                            case (AccessRule.TypeNaming.ALL_CONTAINS):
-                            case (AccessRule.TypeNaming.ALL_CONTAINS_IGNORE_CASE):
-                                // since collection is empty, nothing is complimented to the rule,
-                                // it should return false
-                                return false;
-                            default:
-                                // since collection is empty, nothing will be denied by the rule,
-                                // so return true
-                                return true;
-                        }
-                    }
-
-                    for (Object item : (Collection)requestBodyValue){
-                        if (item instanceof String) {
-                            if (decisionMaker(accessRule, (String)item) == false){
-                                return false;
-                            }
-                        } else {
-                            if (evaluateNode(item, accessRule) == false)
-                                return false;
-                        }
-                    }
-            }
-        } else if (accessRule.getCheckMapNode() != null && accessRule.getCheckMapNode() && requestBodyValue instanceof Map) {
-            switch (accessRule.getType()) {
-                case (AccessRule.TypeNaming.ANY_EQUALS):
-                case (AccessRule.TypeNaming.ANY_CONTAINS):
-                case(AccessRule.TypeNaming.ANY_REG_MATCH):
-                    for (Map.Entry entry : ((Map<String, Object>) requestBodyValue).entrySet()){
-                        if (decisionMaker(accessRule, (String) entry.getKey()))
-                            return true;
-
-                        if((accessRule.getCheckMapKeyOnly() == null || !accessRule.getCheckMapKeyOnly())
-                                && evaluateNode(entry.getValue(), accessRule))
-                            return true;
-                    }
-                    return false;
-                default:
-                    if (((Map) requestBodyValue).isEmpty()){
-                        // need to take care if the collection is empty
-                        switch (accessRule.getType()){
-                            case (AccessRule.TypeNaming.ALL_EQUALS_IGNORE_CASE):
-                            case (AccessRule.TypeNaming.ALL_EQUALS):
-                            case (AccessRule.TypeNaming.ALL_CONTAINS):
-                            case (AccessRule.TypeNaming.ALL_CONTAINS_IGNORE_CASE):
-                                // since collection is empty, nothing is complimented to the rule,
-                                // it should return false
-                                return false;
-                            default:
-                                // since collection is empty, nothing will be denied by the rule,
-                                // so return true
-                                return true;
-                        }
-                    }
-                    for (Map.Entry entry : ((Map<String, Object>) requestBodyValue).entrySet()){
-                        if (decisionMaker(accessRule, (String) entry.getKey()) == false)
-                            return false;
-
-                        if( (accessRule.getCheckMapKeyOnly() == null || !accessRule.getCheckMapKeyOnly())
-                                && evaluateNode(entry.getValue(), accessRule) == false)
-                            return false;
-                    }
-
+    private AccessRulePlan compilePlan(Set<Privilege> privileges){
+        Set<AccessRule> accessRules = preProcessAccessRules(privileges);
+        List<CompiledAccessRule> compiledAccessRules = new ArrayList<>();
+        if (accessRules != null) {
+            for (AccessRule accessRule : accessRules) {
+                compiledAccessRules.add(CompiledAccessRule.compile(accessRule));
             }
-
         }
-
-        return true;
+        return new AccessRulePlan(compiledAccessRules);
     }
 
-    /**
-     * The reason that the relationship between the mergedValues is OR is
-     * the mergedValues actually come from merging multiple accessRules.
-     * The relationship between multiple accessRules(=privileges/roles) is a OR relationship,
-     * so as mergedValues sharing the same OR relationship
-     *
-     * <br><br>
-     * Notice: all the values that need to be evaluated, will in accessRule.getMergedValues()
-     * if the accessRule.getValue() is null, or accessRule.getMergedValues() is empty, meaning
-     * it is a special case, which should be handle before the program hits this function
-     *
-     * @param accessRule
-     * @param requestBodyValue
-     * @return
-     */
-    private boolean decisionMaker(AccessRule accessRule, String requestBodyValue){
-
-        // it might be possible that sometimes there is value in the accessRule.getValue()
-        // but the mergedValues doesn't have elements in it...
-        if (accessRule.getMergedValues().isEmpty()){
-            String value = accessRule.getValue();
-            if (value == null){
-                if (requestBodyValue == null) {
-                    return true;
-                } else {
-                    return false;
-                }
-            }
-            return _decisionMaker(accessRule, requestBodyValue, value);
-        }
-
-
-        // recursively check the values
-        // until one of them is true
-        // if there is only one element in the merged value set
-        // the operation equals to _decisionMaker(accessRule, requestBodyValue, value)
-        boolean res = false;
-        for (String s : accessRule.getMergedValues()){
-
-            // check the special case value is null
-            // if value is null, the check will stop here and
-            // not goes to _decisionMaker()
-            if (s == null){
-                if (requestBodyValue == null) {
-                    res = true;
-                    break;
-                } else {
-                    res = false;
-                    continue;
-                }
-            }
-
-            // all the merged values are OR relationship
-            // means if you pass one of them, you pass the rule
-            if (_decisionMaker(accessRule, requestBodyValue, s)) {
-                res = true;
-                break;
-            }
-        }
-        return res;
+    private AccessRulePlan getPlan(long snapshotVersion, Set<Privilege> privileges){
+	    if (accessRulePlanCache == null)
+	        return compilePlan(privileges);
+	    return accessRulePlanCache.getPlan(snapshotVersion, privileges, this::compilePlan);
     }
 
-	private boolean _decisionMaker(AccessRule accessRule, String requestBodyValue, String value){
-        logger.debug("_decisionMaker() starting");
-        logger.debug("_decisionMaker() access rule:"+accessRule.getName());
-        logger.debug(requestBodyValue);
-        logger.debug(value);
-
-
-	    switch (accessRule.getType()){
-            case AccessRule.TypeNaming.NOT_CONTAINS:
-                if (!requestBodyValue.contains(value))
-                    return true;
-                else
-                    return false;
-            case AccessRule.TypeNaming.NOT_CONTAINS_IGNORE_CASE:
-                if (!requestBodyValue.toLowerCase().contains(value.toLowerCase()))
-                    return true;
-                else
-                    return false;
-            case(AccessRule.TypeNaming.NOT_EQUALS):
-                if (!value.equals(requestBodyValue))
-                    return true;
-                else
-                    return false;
-            case(AccessRule.TypeNaming.ANY_EQUALS):
-            case(AccessRule.TypeNaming.ALL_EQUALS):
-                if (value.equals(requestBodyValue))
-                    return true;
-                else
-                    return false;
-            case(AccessRule.TypeNaming.ALL_CONTAINS):
-            case(AccessRule.TypeNaming.ANY_CONTAINS):
-                if (requestBodyValue.contains(value))
-                    return true;
-                else
-                    return false;
-            case(AccessRule.TypeNaming.ALL_CONTAINS_IGNORE_CASE):
-                if (requestBodyValue.toLowerCase().contains(value.toLowerCase()))
-                    return true;
-                else
-                    return false;
-            case(AccessRule.TypeNaming.NOT_EQUALS_IGNORE_CASE):
-                if (!value.equalsIgnoreCase(requestBodyValue))
-                    return true;
-                else
-                    return false;
-            case(AccessRule.TypeNaming.ALL_EQUALS_IGNORE_CASE):
-                if (value.equalsIgnoreCase(requestBodyValue))
-                    return true;
-                else
-                    return false;
-            case(AccessRule.TypeNaming.ALL_REG_MATCH):
-            case(AccessRule.TypeNaming.ANY_REG_MATCH):
-                if (requestBodyValue.matches(value))
-                    return true;
-                else
-                    return false;
-            case(AccessRule.TypeNaming.IS_EMPTY):
-//                if (requestBodyValue == null
-//                        || (requestBodyValue instanceof String && requestBodyValue.isEmpty())
-//                        || (requestBodyValue instanceof Collection))
-//                    return true;
-
-
-		default:
-			logger.warn("evaluateAccessRule() incoming accessRule type is out of scope. Just return true.");
-			return true;
-		}
-	}
-
 }
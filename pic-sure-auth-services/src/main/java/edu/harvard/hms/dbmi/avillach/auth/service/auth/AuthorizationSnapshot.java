@@ -0,0 +1,378 @@
+package edu.harvard.hms.dbmi.avillach.auth.service.auth;
+
+import edu.harvard.hms.dbmi.avillach.auth.data.entity.AccessRule;
+import edu.harvard.hms.dbmi.avillach.auth.data.entity.Application;
+import edu.harvard.hms.dbmi.avillach.auth.data.entity.Privilege;
+import edu.harvard.hms.dbmi.avillach.auth.data.entity.Role;
+import edu.harvard.hms.dbmi.avillach.auth.data.entity.User;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * <p>A read-only, versioned copy of the Role/Privilege/AccessRule/Application graph.</p>
+ *
+ * <p>Every privilege, accessRule, gate and subAccessRule in here is a detached copy, so reading it
+ * never goes back to the database. A snapshot is never modified after it is built; a change
+ * to the authorization metadata builds a new one.</p>
+ *
+ * @see AuthorizationSnapshotHolder
+ */
+public class AuthorizationSnapshot {
+
+    /**
+     * the number of distinct role combinations is bounded by the users,
+     * this is only a safety net in case something goes wrong
+     */
+    private static final int MAX_EFFECTIVE_PRIVILEGES = 10000;
+
+    private final long version;
+
+    /**
+     * privileges are interned to their index in this array, the bitsets below refer to these ids
+     */
+    private final Privilege[] privileges;
+
+    private final Map<UUID, BitSet> privilegeBitsByRole;
+
+    private final Map<UUID, BitSet> privilegeBitsByApplication;
+
+    /**
+     * keyed by the sorted role UUIDs of the users, users with the same roles share one index
+     */
+    private final Map<String, EffectivePrivileges> effectivePrivileges = new ConcurrentHashMap<>();
+
+    private AuthorizationSnapshot(long version, Privilege[] privileges, Map<UUID, BitSet> privilegeBitsByRole,
+                                  Map<UUID, BitSet> privilegeBitsByApplication) {
+        this.version = version;
+        this.privileges = privileges;
+        this.privilegeBitsByRole = privilegeBitsByRole;
+        this.privilegeBitsByApplication = privilegeBitsByApplication;
+    }
+
+    /**
+     * @param version
+     * @param roles all roles, with their privileges
+     * @param privileges all privileges, including the ones no role holds yet
+     * @return
+     */
+    public static AuthorizationSnapshot build(long version, Collection<Role> roles, Collection<Privilege> privileges) {
+        Map<UUID, Privilege> privilegeCopies = new LinkedHashMap<>();
+        Map<UUID, AccessRule> accessRuleCopies = new HashMap<>();
+        Map<UUID, Application> applicationCopies = new HashMap<>();
+
+        if (privileges != null) {
+            for (Privilege privilege : privileges) {
+                copyOf(privilege, privilegeCopies, accessRuleCopies, applicationCopies);
+            }
+        }
+        if (roles != null) {
+            for (Role role : roles) {
+                if (role.getPrivileges() != null) {
+                    for (Privilege privilege : role.getPrivileges()) {
+                        copyOf(privilege, privilegeCopies, accessRuleCopies, applicationCopies);
+                    }
+                }
+            }
+        }
+
+        Privilege[] interned = privilegeCopies.values().toArray(new Privilege[0]);
+        Map<UUID, Integer> privilegeIds = new HashMap<>();
+        Map<UUID, BitSet> privilegeBitsByApplication = new HashMap<>();
+        for (int id = 0; id < interned.length; id++) {
+            privilegeIds.put(interned[id].getUuid(), id);
+            if (interned[id].getApplication() != null)
+                privilegeBitsByApplication.computeIfAbsent(interned[id].getApplication().getUuid(), k -> new BitSet()).set(id);
+        }
+
+        Map<UUID, BitSet> privilegeBitsByRole = new HashMap<>();
+        if (roles != null) {
+            for (Role role : roles) {
+                BitSet bits = new BitSet(interned.length);
+                if (role.getPrivileges() != null) {
+                    for (Privilege privilege : role.getPrivileges()) {
+                        bits.set(privilegeIds.get(privilege.getUuid()));
+                    }
+                }
+                privilegeBitsByRole.put(role.getUuid(), bits);
+            }
+        }
+
+        return new AuthorizationSnapshot(version, interned, privilegeBitsByRole, privilegeBitsByApplication);
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * <p>The privileges of the user, already split by application.</p>
+     *
+     * @param user
+     * @return null if the user has no roles
+     */
+    public EffectivePrivileges getEffectivePrivileges(User user) {
+        if (user.getRoles() == null)
+            return null;
+
+        List<Role> unknownRoles = null;
+        for (Role role : user.getRoles()) {
+            if (!privilegeBitsByRole.containsKey(role.getUuid())) {
+                if (unknownRoles == null)
+                    unknownRoles = new ArrayList<>();
+                unknownRoles.add(role);
+            }
+        }
+
+        // a role created after this snapshot was built is read from the entity instead,
+        // the next rebuild will pick it up, so this result is not kept
+        if (unknownRoles != null)
+            return buildEffectivePrivileges(user.getRoles(), unknownRoles);
+
+        String key = user.getRoles().stream()
+                .map(r -> String.valueOf(r.getUuid()))
+                .sorted()
+                .collect(Collectors.joining(","));
+        EffectivePrivileges effective = effectivePrivileges.get(key);
+        if (effective != null)
+            return effective;
+
+        if (effectivePrivileges.size() >= MAX_EFFECTIVE_PRIVILEGES)
+            effectivePrivileges.clear();
+        return effectivePrivileges.computeIfAbsent(key, k -> buildEffectivePrivileges(user.getRoles(), Collections.emptyList()));
+    }
+
+    /**
+     * same as {@link User#getTotalPrivilege()}, but read from the snapshot
+     *
+     * @param user
+     * @return null if the user has no roles
+     */
+    public Set<Privilege> getTotalPrivilege(User user) {
+        EffectivePrivileges effective = getEffectivePrivileges(user);
+        return effective == null ? null : effective.getTotalPrivilege();
+    }
+
+    /**
+     * same as {@link User#getPrivilegesByApplication(Application)}, but read from the snapshot
+     *
+     * @param user
+     * @param application
+     * @return null if the user has no roles
+     */
+    public Set<Privilege> getPrivilegesByApplication(User user, Application application) {
+        EffectivePrivileges effective = getEffectivePrivileges(user);
+        if (effective == null)
+            return null;
+
+        if (application == null || application.getUuid() == null)
+            return effective.getTotalPrivilege();
+
+        return effective.getPrivileges(application.getUuid());
+    }
+
+    /**
+     * same as {@link User#getPrivilegeNameSetByApplication(Application)}, but read from the snapshot
+     *
+     * @param user
+     * @param application
+     * @return null if the user has no roles
+     */
+    public Set<String> getPrivilegeNameSetByApplication(User user, Application application) {
+        EffectivePrivileges effective = getEffectivePrivileges(user);
+        if (effective == null)
+            return null;
+
+        if (application == null || application.getUuid() == null)
+            return Collections.emptySet();
+
+        return effective.getPrivilegeNames(application.getUuid());
+    }
+
+    /**
+     * @param role
+     * @return true if the role existed when this snapshot was built
+     */
+    public boolean hasRole(UUID role) {
+        return privilegeBitsByRole.containsKey(role);
+    }
+
+    /**
+     * @param application
+     * @return true if any privilege belongs to the application
+     */
+    public boolean hasApplicationPrivileges(Application application) {
+        if (application == null || application.getUuid() == null)
+            return false;
+
+        BitSet bits = privilegeBitsByApplication.get(application.getUuid());
+        return bits != null && !bits.isEmpty();
+    }
+
+    private EffectivePrivileges buildEffectivePrivileges(Collection<Role> roles, Collection<Role> unknownRoles) {
+        BitSet total = new BitSet(privileges.length);
+        for (Role role : roles) {
+            BitSet bits = privilegeBitsByRole.get(role.getUuid());
+            if (bits != null)
+                total.or(bits);
+        }
+
+        Set<Privilege> uninterned = new HashSet<>();
+        for (Role role : unknownRoles) {
+            if (role.getPrivileges() != null)
+                uninterned.addAll(role.getPrivileges());
+        }
+
+        return new EffectivePrivileges(total, uninterned);
+    }
+
+    /**
+     * The privileges of one role combination, both in total and by application UUID.
+     * Everything in here is read-only.
+     */
+    public class EffectivePrivileges {
+
+        private final Set<Privilege> totalPrivilege;
+
+        private final String totalPrivilegeNames;
+
+        private final Map<UUID, Set<Privilege>> privilegesByApplication = new HashMap<>();
+
+        private final Map<UUID, Set<String>> privilegeNamesByApplication = new HashMap<>();
+
+        private EffectivePrivileges(BitSet total, Set<Privilege> uninterned) {
+            Set<Privilege> totalPrivilege = new HashSet<>(uninterned);
+            for (int id = total.nextSetBit(0); id >= 0; id = total.nextSetBit(id + 1)) {
+                totalPrivilege.add(privileges[id]);
+            }
+            this.totalPrivilege = Collections.unmodifiableSet(totalPrivilege);
+            this.totalPrivilegeNames = totalPrivilege.stream().map(Privilege::getName).collect(Collectors.joining(","));
+
+            for (Map.Entry<UUID, BitSet> application : privilegeBitsByApplication.entrySet()) {
+                if (!total.intersects(application.getValue()))
+                    continue;
+
+                BitSet bits = (BitSet) total.clone();
+                bits.and(application.getValue());
+                Set<Privilege> applicationPrivileges = new HashSet<>();
+                Set<String> applicationPrivilegeNames = new HashSet<>();
+                for (int id = bits.nextSetBit(0); id >= 0; id = bits.nextSetBit(id + 1)) {
+                    applicationPrivileges.add(privileges[id]);
+                    applicationPrivilegeNames.add(privileges[id].getName());
+                }
+                privilegesByApplication.put(application.getKey(), applicationPrivileges);
+                privilegeNamesByApplication.put(application.getKey(), applicationPrivilegeNames);
+            }
+
+            for (Privilege privilege : uninterned) {
+                if (privilege.getApplication() == null || privilege.getApplication().getUuid() == null)
+                    continue;
+                UUID applicationId = privilege.getApplication().getUuid();
+                privilegesByApplication.computeIfAbsent(applicationId, k -> new HashSet<>()).add(privilege);
+                privilegeNamesByApplication.computeIfAbsent(applicationId, k -> new HashSet<>()).add(privilege.getName());
+            }
+
+            privilegesByApplication.replaceAll((k, v) -> Collections.unmodifiableSet(v));
+            privilegeNamesByApplication.replaceAll((k, v) -> Collections.unmodifiableSet(v));
+        }
+
+        public Set<Privilege> getTotalPrivilege() {
+            return totalPrivilege;
+        }
+
+        /**
+         * @return the privilege names joined by comma
+         */
+        public String getTotalPrivilegeNames() {
+            return totalPrivilegeNames;
+        }
+
+        public Set<Privilege> getPrivileges(UUID applicationId) {
+            return privilegesByApplication.getOrDefault(applicationId, Collections.emptySet());
+        }
+
+        public Set<String> getPrivilegeNames(UUID applicationId) {
+            return privilegeNamesByApplication.getOrDefault(applicationId, Collections.emptySet());
+        }
+    }
+
+    private static Privilege copyOf(Privilege privilege, Map<UUID, Privilege> privilegeCopies,
+                                    Map<UUID, AccessRule> accessRuleCopies, Map<UUID, Application> applicationCopies) {
+        Privilege copy = privilegeCopies.get(privilege.getUuid());
+        if (copy != null)
+            return copy;
+
+        copy = new Privilege();
+        copy.setUuid(privilege.getUuid());
+        copy.setName(privilege.getName());
+        copy.setDescription(privilege.getDescription());
+        copy.setQueryTemplate(privilege.getQueryTemplate());
+        copy.setQueryScope(privilege.getQueryScope());
+        privilegeCopies.put(copy.getUuid(), copy);
+
+        Application application = privilege.getApplication();
+        if (application != null) {
+            Application applicationCopy = applicationCopies.get(application.getUuid());
+            if (applicationCopy == null) {
+                applicationCopy = new Application();
+                applicationCopy.setUuid(application.getUuid());
+                applicationCopy.setName(application.getName());
+                applicationCopy.setDescription(application.getDescription());
+                applicationCopy.setEnable(application.isEnable());
+                applicationCopies.put(applicationCopy.getUuid(), applicationCopy);
+            }
+            copy.setApplication(applicationCopy);
+        }
+
+        Set<AccessRule> accessRules = new HashSet<>();
+        if (privilege.getAccessRules() != null) {
+            for (AccessRule accessRule : privilege.getAccessRules()) {
+                accessRules.add(copyOf(accessRule, accessRuleCopies));
+            }
+        }
+        copy.setAccessRules(Collections.unmodifiableSet(accessRules));
+        return copy;
+    }
+
+    /**
+     * gates and subAccessRules are copied too, an accessRule shared by several
+     * privileges or used as a gate is only copied once
+     */
+    private static AccessRule copyOf(AccessRule accessRule, Map<UUID, AccessRule> accessRuleCopies) {
+        AccessRule copy = accessRule.getUuid() == null ? null : accessRuleCopies.get(accessRule.getUuid());
+        if (copy != null)
+            return copy;
+
+        copy = new AccessRule();
+        copy.setUuid(accessRule.getUuid());
+        copy.setName(accessRule.getName());
+        copy.setDescription(accessRule.getDescription());
+        copy.setType(accessRule.getType());
+        copy.setRule(accessRule.getRule());
+        copy.setValue(accessRule.getValue());
+        copy.setGateAnyRelation(accessRule.getGateAnyRelation());
+        copy.setEvaluateOnlyByGates(accessRule.getEvaluateOnlyByGates());
+        copy.setCheckMapNode(accessRule.getCheckMapNode());
+        copy.setCheckMapKeyOnly(accessRule.getCheckMapKeyOnly());
+        if (copy.getUuid() != null)
+            accessRuleCopies.put(copy.getUuid(), copy);
+
+        if (accessRule.getGates() != null) {
+            Set<AccessRule> gates = new HashSet<>();
+            for (AccessRule gate : accessRule.getGates()) {
+                gates.add(copyOf(gate, accessRuleCopies));
+            }
+            copy.setGates(Collections.unmodifiableSet(gates));
+        }
+
+        if (accessRule.getSubAccessRule() != null) {
+            Set<AccessRule> subAccessRules = new HashSet<>();
+            for (AccessRule subAccessRule : accessRule.getSubAccessRule()) {
+                subAccessRules.add(copyOf(subAccessRule, accessRuleCopies));
+            }
+            copy.setSubAccessRule(Collections.unmodifiableSet(subAccessRules));
+        }
+        return copy;
+    }
+}
@@ -0,0 +1,92 @@
+package edu.harvard.hms.dbmi.avillach.auth.service.auth;
+
+import edu.harvard.hms.dbmi.avillach.auth.data.entity.AccessRule;
+import edu.harvard.hms.dbmi.avillach.auth.data.entity.Application;
+import edu.harvard.hms.dbmi.avillach.auth.data.entity.Privilege;
+import edu.harvard.hms.dbmi.avillach.auth.data.entity.Role;
+import edu.harvard.hms.dbmi.avillach.auth.data.repository.PrivilegeRepository;
+import edu.harvard.hms.dbmi.avillach.auth.data.repository.RoleRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+
+/**
+ * <p>Holds the current {@link AuthorizationSnapshot}, so token introspection doesn't have
+ * to load roles, privileges and accessRules from the database.</p>
+ *
+ * The snapshot is built on first use. Every endpoint changing roles, privileges, accessRules
+ * or applications has to call {@link #refresh()}, which swaps in a new snapshot once its
+ * change is committed. When they are changed on another node, the snapshot is dropped
+ * and built again on next use.
+ */
+@ApplicationScoped
+public class AuthorizationSnapshotHolder {
+
+    private Logger logger = LoggerFactory.getLogger(AuthorizationSnapshotHolder.class);
+
+    @Inject
+    RoleRepository roleRepo;
+
+    @Inject
+    PrivilegeRepository privilegeRepo;
+
+    @Inject
+    AfterCommit afterCommit;
+
+    private volatile AuthorizationSnapshot snapshot;
+
+    private long version = 0;
+
+    public AuthorizationSnapshot get() {
+        AuthorizationSnapshot current = snapshot;
+        if (current != null)
+            return current;
+
+        synchronized (this) {
+            if (snapshot == null)
+                rebuild();
+            return snapshot;
+        }
+    }
+
+    /**
+     * rebuilds the snapshot once the current transaction is committed, a change rolled back is never seen.
+     * <br>
+     * The rebuild reads in a new transaction, the one just committed cannot be used anymore.
+     */
+    public void refresh() {
+        afterCommit.run(() -> afterCommit.inNewTransaction(this::rebuildCommitted));
+    }
+
+    /**
+     * rebuilds are serialized, so the last one to finish always read the latest committed state
+     */
+    private synchronized void rebuildCommitted() {
+        try {
+            rebuild();
+        } catch (RuntimeException ex) {
+            // the next request builds it again instead of using a snapshot missing this change
+            snapshot = null;
+            throw ex;
+        }
+    }
+
+    /**
+     * the {@link InvalidationBus} thread only drops the snapshot, the next request builds the new one
+     */
+    public synchronized void onEntityChanged(@Observes EntityChanged event) {
+        if (event.is(Role.class) || event.is(Privilege.class) || event.is(AccessRule.class) || event.is(Application.class))
+            snapshot = null;
+    }
+
+    private void rebuild() {
+        long start = System.currentTimeMillis();
+        AuthorizationSnapshot rebuilt = AuthorizationSnapshot.build(++version, roleRepo.list(), privilegeRepo.list());
+        snapshot = rebuilt;
+        logger.info("rebuild() authorization snapshot version " + rebuilt.getVersion() + " built in "
+                + (System.currentTimeMillis() - start) + " ms");
+    }
+}
@@ -0,0 +1,32 @@
+package edu.harvard.hms.dbmi.avillach.auth.service.auth;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * <p>Creates the long running threads of the access log writer, the revocation epoch poller,
+ * the cache invalidation transports and the parallel accessRule evaluation.</p>
+ *
+ * The threads come from the container's <code>java:comp/DefaultManagedThreadFactory</code>, so they carry
+ * the naming and class loading context of the application and are stopped with it. Outside of the container,
+ * in tests and benchmarks, the factory is not injected and plain threads are used.
+ */
+final class BackgroundThreads {
+
+    static final String MANAGED_THREAD_FACTORY = "java:comp/DefaultManagedThreadFactory";
+
+    private BackgroundThreads() {
+    }
+
+    /**
+     * @param threadFactory the managed thread factory, null outside of the container
+     * @param task
+     * @param name
+     * @return the daemon thread running the task, not started yet
+     */
+    static Thread newThread(ThreadFactory threadFactory, Runnable task, String name) {
+        Thread thread = threadFactory == null ? new Thread(task) : threadFactory.newThread(task);
+        thread.setName(name);
+        thread.setDaemon(true);
+        return thread;
+    }
+}
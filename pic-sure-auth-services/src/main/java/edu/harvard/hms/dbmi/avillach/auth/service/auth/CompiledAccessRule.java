@@ -0,0 +1,589 @@
+package edu.harvard.hms.dbmi.avillach.auth.service.auth;
+
+import com.jayway.jsonpath.InvalidPathException;
+import com.jayway.jsonpath.JsonPath;
+import com.jayway.jsonpath.PathNotFoundException;
+import com.jayway.jsonpath.ReadContext;
+import edu.harvard.hms.dbmi.avillach.auth.data.entity.AccessRule;
+import edu.harvard.hms.dbmi.avillach.auth.utils.PatternCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * <p>Immutable, evaluation-ready form of an {@link AccessRule}.</p>
+ *
+ * The jsonpath rule is compiled once, the values to check (including the merged values of
+ * the accessRules that were merged into this one) are turned into matchers picked by the
+ * accessRule type (with regex patterns compiled and ignore case needles lowered up front),
+ * and gates and subAccessRules are compiled recursively.
+ * Once compiled, an instance never touches the JPA entity again, so it can be shared
+ * between threads and cached for as long as the underlying accessRules don't change.
+ * <br>
+ * The only state changing after compiling is the number of evaluations passed, which, with a static
+ * cost estimate, decides the order gates and subAccessRules are evaluated in, see {@link EvaluationOrder}.
+ *
+ * @see AuthorizationService#evaluateAccessRule(Object, AccessRule)
+ */
+public class CompiledAccessRule {
+
+    private static Logger logger = LoggerFactory.getLogger(CompiledAccessRule.class);
+
+    /**
+     * checks one String value found in the request body against one value of the accessRule
+     */
+    interface ValueMatcher {
+        /**
+         * @param requestBodyValue never null
+         * @param loweredRequestBodyValue requestBodyValue in lower case, only set for the ignore case contains types
+         */
+        boolean matches(String requestBodyValue, String loweredRequestBodyValue);
+    }
+
+    private final UUID uuid;
+
+    private final String name;
+
+    private final int type;
+
+    private final String rule;
+
+    /**
+     * null if the rule is empty (always passes) or is not a valid jsonpath (never passes)
+     */
+    private final JsonPath path;
+
+    private final boolean invalidPath;
+
+    /**
+     * all values that are OR relationship, a null element only matches a null request value
+     */
+    private final List<String> values;
+
+    /**
+     * one matcher per value, in the same order, null for a null value
+     */
+    private final List<ValueMatcher> matchers;
+
+    private final boolean lowerCaseRequestBodyValue;
+
+    private final boolean gateAnyRelation;
+
+    private final boolean evaluateOnlyByGates;
+
+    private final boolean checkMapNode;
+
+    private final boolean checkMapKeyOnly;
+
+    private final List<CompiledAccessRule> gates;
+
+    private final List<CompiledAccessRule> subAccessRules;
+
+    private final EvaluationOrder gateOrder;
+
+    private final EvaluationOrder subAccessRuleOrder;
+
+    private final double cost;
+
+    private final LongAdder evaluations = new LongAdder();
+
+    private final LongAdder passes = new LongAdder();
+
+    private CompiledAccessRule(AccessRule accessRule, List<CompiledAccessRule> gates, List<CompiledAccessRule> subAccessRules){
+        this.uuid = accessRule.getUuid();
+        this.name = accessRule.getMergedName() == null || accessRule.getMergedName().isEmpty() ?
+                accessRule.getName() : accessRule.getMergedName();
+        this.type = accessRule.getType() == null ? 0 : accessRule.getType();
+        this.rule = accessRule.getRule();
+
+        JsonPath compiledPath = null;
+        boolean invalid = false;
+        if (rule != null && !rule.isEmpty()) {
+            try {
+                compiledPath = JsonPath.compile(rule);
+            } catch (InvalidPathException ex) {
+                logger.error("CompiledAccessRule() accessRule " + accessRule.getName()
+                        + " has an invalid jsonpath rule: " + rule + ", it will never pass - " + ex.getMessage());
+                invalid = true;
+            }
+        }
+        this.path = compiledPath;
+        this.invalidPath = invalid;
+
+        List<String> ruleValues = new ArrayList<>();
+        if (accessRule.getMergedValues() == null || accessRule.getMergedValues().isEmpty())
+            ruleValues.add(accessRule.getValue());
+        else
+            ruleValues.addAll(accessRule.getMergedValues());
+        this.values = Collections.unmodifiableList(ruleValues);
+
+        List<ValueMatcher> valueMatchers = new ArrayList<>();
+        for (String value : values) {
+            valueMatchers.add(matcherFor(value));
+        }
+        this.matchers = Collections.unmodifiableList(valueMatchers);
+        this.lowerCaseRequestBodyValue = needsLowerCaseRequestBodyValue(type);
+        this.gateAnyRelation = Boolean.TRUE.equals(accessRule.getGateAnyRelation());
+        this.evaluateOnlyByGates = Boolean.TRUE.equals(accessRule.getEvaluateOnlyByGates());
+        this.checkMapNode = Boolean.TRUE.equals(accessRule.getCheckMapNode());
+        this.checkMapKeyOnly = Boolean.TRUE.equals(accessRule.getCheckMapKeyOnly());
+        this.gates = Collections.unmodifiableList(gates);
+        this.subAccessRules = Collections.unmodifiableList(subAccessRules);
+        this.gateOrder = new EvaluationOrder(this.gates, gateAnyRelation);
+        this.subAccessRuleOrder = new EvaluationOrder(this.subAccessRules, false);
+        this.cost = estimateCost();
+    }
+
+    /**
+     * Compile an accessRule together with its gates and subAccessRules.
+     * <br>
+     * The merged values and merged name of the given accessRule are taken as they are
+     * at the moment of compiling.
+     *
+     * @param accessRule
+     * @return
+     */
+    public static CompiledAccessRule compile(AccessRule accessRule){
+        List<CompiledAccessRule> gates = new ArrayList<>();
+        if (accessRule.getGates() != null) {
+            for (AccessRule gate : accessRule.getGates()) {
+                gates.add(compile(gate));
+            }
+        }
+
+        List<CompiledAccessRule> subAccessRules = new ArrayList<>();
+        if (accessRule.getSubAccessRule() != null) {
+            for (AccessRule subAccessRule : accessRule.getSubAccessRule()) {
+                // subAccessRules are only checked by their own rule, their gates
+                // and subAccessRules have never been part of the evaluation
+                subAccessRules.add(new CompiledAccessRule(subAccessRule, new ArrayList<>(), new ArrayList<>()));
+            }
+        }
+
+        return new CompiledAccessRule(accessRule, gates, subAccessRules);
+    }
+
+    /**
+     * @return the UUID of the accessRule compiled, the UUID of the first accessRule for a merged one
+     */
+    public UUID getUuid() {
+        return uuid;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public String getRule() {
+        return rule;
+    }
+
+    public List<String> getValues() {
+        return values;
+    }
+
+    public List<CompiledAccessRule> getGates() {
+        return gates;
+    }
+
+    public List<CompiledAccessRule> getSubAccessRules() {
+        return subAccessRules;
+    }
+
+    /**
+     * @return a relative estimate of the work one evaluation takes, only meant to be compared to other accessRules
+     */
+    public double getCost() {
+        return cost;
+    }
+
+    /**
+     * @return the share of the evaluations so far that passed, with one pass and one fail assumed
+     * up front, so it is never 0 or 1
+     */
+    public double getPassRate() {
+        return (passes.sum() + 1) / (double) (evaluations.sum() + 2);
+    }
+
+    /**
+     * The cost of reading the jsonpath, weighted up for deep scans, wildcards and filters since they
+     * visit more of the request, plus the cost of matching the values, weighted by the type,
+     * plus all the gates and subAccessRules.
+     */
+    private double estimateCost(){
+        double pathCost = 0;
+        double matchCost = 0;
+        if (path != null) {
+            int deepScans = occurrences(rule, "..");
+            boolean multipleMatches = deepScans > 0 || rule.contains("*") || rule.contains("?(");
+            pathCost = 1 + occurrences(rule, ".") + occurrences(rule, "[")
+                    + 10 * deepScans + 4 * occurrences(rule, "*") + 8 * occurrences(rule, "?(");
+            matchCost = values.size() * valueCost(type) * (multipleMatches ? 4 : 1);
+        }
+
+        double total = pathCost + matchCost;
+        for (CompiledAccessRule gate : gates) {
+            total += gate.getCost();
+        }
+        for (CompiledAccessRule subAccessRule : subAccessRules) {
+            total += subAccessRule.getCost();
+        }
+        return total;
+    }
+
+    private static double valueCost(int type){
+        switch (type){
+            case AccessRule.TypeNaming.IS_EMPTY:
+            case AccessRule.TypeNaming.IS_NOT_EMPTY:
+                return 0;
+            case AccessRule.TypeNaming.NOT_EQUALS_IGNORE_CASE:
+            case AccessRule.TypeNaming.ALL_EQUALS_IGNORE_CASE:
+                return 1.5;
+            case AccessRule.TypeNaming.NOT_CONTAINS:
+            case AccessRule.TypeNaming.ALL_CONTAINS:
+            case AccessRule.TypeNaming.ANY_CONTAINS:
+                return 2;
+            case AccessRule.TypeNaming.NOT_CONTAINS_IGNORE_CASE:
+            case AccessRule.TypeNaming.ALL_CONTAINS_IGNORE_CASE:
+                return 3;
+            case AccessRule.TypeNaming.ALL_REG_MATCH:
+            case AccessRule.TypeNaming.ANY_REG_MATCH:
+                return 8;
+            default:
+                return 1;
+        }
+    }
+
+    private static int occurrences(String text, String part){
+        int count = 0;
+        for (int i = text.indexOf(part); i >= 0; i = text.indexOf(part, i + part.length())) {
+            count++;
+        }
+        return count;
+    }
+
+    private boolean record(boolean passed){
+        evaluations.increment();
+        if (passed)
+            passes.increment();
+        return passed;
+    }
+
+    /**
+     * The default relationship between gates are AND, could be set to OR by gateAnyRelation.
+     * If gates are passed, the rule and all subAccessRules are checked with an AND relationship.
+     * Gates and subAccessRules are evaluated cheapest and most decisive first.
+     *
+     * @param requestBody the request body parsed once per introspection, shared by all rules, gates and subAccessRules
+     * @return
+     */
+    public boolean evaluate(ReadContext requestBody){
+        return evaluate(new EvaluationContext(requestBody), null);
+    }
+
+    /**
+     * @param context the request body and the gates already evaluated for it
+     * @param trace the trace node of this accessRule, filled in with its gates and subAccessRules, null if not tracing
+     * @return
+     * @see #evaluate(ReadContext)
+     */
+    public boolean evaluate(EvaluationContext context, EvaluationTrace.Node trace){
+        if (trace == null)
+            return record(evaluateTraced(context, null));
+
+        long start = System.nanoTime();
+        boolean result = record(evaluateTraced(context, trace));
+        trace.finish(result, System.nanoTime() - start);
+        return result;
+    }
+
+    /**
+     * evaluate a gate of this accessRule, or reuse its result if another accessRule already evaluated it for this request
+     */
+    private static boolean evaluateGate(CompiledAccessRule gate, EvaluationContext context, EvaluationTrace.Node trace){
+        UUID gateUuid = gate.getUuid();
+        Boolean memoized = gateUuid == null ? null : context.getGateResult(gateUuid);
+        if (memoized != null) {
+            if (trace != null) {
+                trace.setMemoized();
+                trace.finish(memoized, 0);
+            }
+            return memoized;
+        }
+
+        boolean passed = gate.evaluate(context, trace);
+        if (gateUuid != null)
+            context.putGateResult(gateUuid, passed);
+        return passed;
+    }
+
+    private boolean evaluateTraced(EvaluationContext context, EvaluationTrace.Node trace){
+        boolean gatesPassed = true;
+
+        if (!gates.isEmpty()) {
+            List<CompiledAccessRule> gates = gateOrder.get();
+            if (!gateAnyRelation) {
+                for (int i = 0; i < gates.size(); i++){
+                    CompiledAccessRule gate = gates.get(i);
+                    if (!evaluateGate(gate, context, trace == null ? null : trace.child(gate.getName(), EvaluationTrace.GATE))){
+                        logger.debug("evaluate() gate " + gate.getName() + " failed ");
+                        if (trace != null)
+                            trace.setShortCircuit("gate " + gate.getName() + " failed, "
+                                    + (gates.size() - i - 1) + " gates and the rule skipped");
+                        gatesPassed = false;
+                        break;
+                    }
+                }
+            } else {
+                gatesPassed = false;
+                for (int i = 0; i < gates.size(); i++){
+                    CompiledAccessRule gate = gates.get(i);
+                    if (evaluateGate(gate, context, trace == null ? null : trace.child(gate.getName(), EvaluationTrace.GATE))){
+                        logger.debug("evaluate() gate " + gate.getName() + " passed ");
+                        if (trace != null && i < gates.size() - 1)
+                            trace.setShortCircuit("gate " + gate.getName() + " passed, "
+                                    + (gates.size() - i - 1) + " gates skipped");
+                        gatesPassed = true;
+                        break;
+                    }
+                }
+                if (!gatesPassed && trace != null)
+                    trace.setShortCircuit("no gate passed, the rule skipped");
+            }
+        }
+
+        if (evaluateOnlyByGates)
+            return gatesPassed;
+
+        if (!gatesPassed)
+            return false;
+
+        if (!extractAndCheckRule(context, trace)) {
+            if (trace != null && !subAccessRules.isEmpty())
+                trace.setShortCircuit("rule failed, " + subAccessRules.size() + " subAccessRules skipped");
+            return false;
+        }
+
+        List<CompiledAccessRule> subAccessRules = subAccessRuleOrder.get();
+        for (int i = 0; i < subAccessRules.size(); i++) {
+            CompiledAccessRule subAccessRule = subAccessRules.get(i);
+            EvaluationTrace.Node subTrace = trace == null ? null : trace.child(subAccessRule.getName(), EvaluationTrace.SUB_ACCESS_RULE);
+            long start = subTrace == null ? 0 : System.nanoTime();
+            boolean passed = subAccessRule.record(subAccessRule.extractAndCheckRule(context, subTrace));
+            if (subTrace != null)
+                subTrace.finish(passed, System.nanoTime() - start);
+
+            if (!passed) {
+                if (trace != null && i < subAccessRules.size() - 1)
+                    trace.setShortCircuit("subAccessRule " + subAccessRule.getName() + " failed, "
+                            + (subAccessRules.size() - i - 1) + " subAccessRules skipped");
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * extract the value by the compiled jsonpath, then check the node
+     * <br>
+     * Note: if rule is empty, the check will always return true
+     *
+     * @param context the request body, read through it so each jsonpath is only read once per request
+     * @param trace the node the number of matched values is recorded in, null if not tracing
+     */
+    boolean extractAndCheckRule(EvaluationContext context, EvaluationTrace.Node trace){
+        if (invalidPath)
+            return false;
+
+        if (path == null)
+            return true;
+
+        Object requestBodyValue;
+        try {
+            requestBodyValue = context.read(path);
+        } catch (PathNotFoundException ex){
+            if (trace != null)
+                trace.setMatches(0);
+            //if path doesn't exist; that's enough to match 'is empty' rule.
+            if (type == AccessRule.TypeNaming.IS_EMPTY)
+                return true;
+            logger.debug("extractAndCheckRule() -> path {} not found: {}", rule, ex.getMessage());
+            return false;
+        }
+
+        if (trace != null)
+            trace.setMatches(requestBodyValue == null ? 0 :
+                    requestBodyValue instanceof Collection ? ((Collection) requestBodyValue).size() : 1);
+
+        // AccessRule type IS_EMPTY is very special, needs to be checked in front of any others
+        if (type == AccessRule.TypeNaming.IS_EMPTY || type == AccessRule.TypeNaming.IS_NOT_EMPTY){
+            boolean empty = requestBodyValue == null
+                    || (requestBodyValue instanceof String && ((String)requestBodyValue).isEmpty())
+                    || (requestBodyValue instanceof Collection && ((Collection)requestBodyValue).isEmpty())
+                    || (requestBodyValue instanceof Map && ((Map)requestBodyValue).isEmpty());
+            return (type == AccessRule.TypeNaming.IS_EMPTY) == empty;
+        }
+
+        return evaluateNode(requestBodyValue);
+    }
+
+    /**
+     * if the path eventually leads to String values, we can do check,
+     * otherwise, only means the path is not driving to useful places, just return true.
+     */
+    private boolean evaluateNode(Object requestBodyValue){
+        if (requestBodyValue instanceof String){
+            return decisionMaker((String)requestBodyValue);
+        } else if (requestBodyValue instanceof Collection) {
+            Collection collection = (Collection) requestBodyValue;
+            if (isAnyType()) {
+                for (Object item : collection) {
+                    if (evaluateNode(item))
+                        return true;
+                }
+                // need to take care if the collection is empty
+                return false;
+            }
+
+            if (collection.isEmpty())
+                return emptyNodeResult();
+
+            for (Object item : collection){
+                if (!evaluateNode(item))
+                    return false;
+            }
+        } else if (checkMapNode && requestBodyValue instanceof Map) {
+            Map<String, Object> map = (Map<String, Object>) requestBodyValue;
+            if (isAnyType()) {
+                for (Map.Entry<String, Object> entry : map.entrySet()){
+                    if (decisionMaker(entry.getKey()))
+                        return true;
+
+                    if (!checkMapKeyOnly && evaluateNode(entry.getValue()))
+                        return true;
+                }
+                return false;
+            }
+
+            if (map.isEmpty())
+                return emptyNodeResult();
+
+            for (Map.Entry<String, Object> entry : map.entrySet()){
+                if (!decisionMaker(entry.getKey()))
+                    return false;
+
+                if (!checkMapKeyOnly && !evaluateNode(entry.getValue()))
+                    return false;
+            }
+        }
+
+        return true;
+    }
+
+    private boolean isAnyType(){
+        return type == AccessRule.TypeNaming.ANY_EQUALS
+                || type == AccessRule.TypeNaming.ANY_CONTAINS
+                || type == AccessRule.TypeNaming.ANY_REG_MATCH;
+    }
+
+    /**
+     * an empty collection complies with nothing for ALL_ types, so they fail,
+     * but nothing will be denied by the other types, so they pass
+     */
+    private boolean emptyNodeResult(){
+        switch (type){
+            case AccessRule.TypeNaming.ALL_EQUALS_IGNORE_CASE:
+            case AccessRule.TypeNaming.ALL_EQUALS:
+            case AccessRule.TypeNaming.ALL_CONTAINS:
+            case AccessRule.TypeNaming.ALL_CONTAINS_IGNORE_CASE:
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * all the values are OR relationship, since they come from merging
+     * multiple accessRules, which are OR relationship.
+     */
+    private boolean decisionMaker(String requestBodyValue){
+        // lowered once here, instead of once per value
+        String loweredRequestBodyValue = lowerCaseRequestBodyValue && requestBodyValue != null ?
+                requestBodyValue.toLowerCase() : null;
+
+        for (int i = 0; i < values.size(); i++){
+            if (values.get(i) == null) {
+                if (requestBodyValue == null)
+                    return true;
+                continue;
+            }
+
+            if (requestBodyValue != null && matchers.get(i).matches(requestBodyValue, loweredRequestBodyValue))
+                return true;
+        }
+        return false;
+    }
+
+    private static boolean needsLowerCaseRequestBodyValue(int type){
+        return type == AccessRule.TypeNaming.NOT_CONTAINS_IGNORE_CASE
+                || type == AccessRule.TypeNaming.ALL_CONTAINS_IGNORE_CASE;
+    }
+
+    /**
+     * build the matcher of one value, anything that only depends on the value
+     * (lowered needles, compiled patterns) is done here once
+     */
+    private ValueMatcher matcherFor(String value){
+        if (value == null)
+            return null;
+
+        switch (type){
+            case AccessRule.TypeNaming.NOT_CONTAINS:
+                return (requestBodyValue, lowered) -> !requestBodyValue.contains(value);
+            case AccessRule.TypeNaming.NOT_CONTAINS_IGNORE_CASE: {
+                String needle = value.toLowerCase();
+                return (requestBodyValue, lowered) -> !lowered.contains(needle);
+            }
+            case AccessRule.TypeNaming.NOT_EQUALS:
+                return (requestBodyValue, lowered) -> !value.equals(requestBodyValue);
+            case AccessRule.TypeNaming.ANY_EQUALS:
+            case AccessRule.TypeNaming.ALL_EQUALS:
+                return (requestBodyValue, lowered) -> value.equals(requestBodyValue);
+            case AccessRule.TypeNaming.ALL_CONTAINS:
+            case AccessRule.TypeNaming.ANY_CONTAINS:
+                return (requestBodyValue, lowered) -> requestBodyValue.contains(value);
+            case AccessRule.TypeNaming.ALL_CONTAINS_IGNORE_CASE: {
+                String needle = value.toLowerCase();
+                return (requestBodyValue, lowered) -> lowered.contains(needle);
+            }
+            case AccessRule.TypeNaming.NOT_EQUALS_IGNORE_CASE:
+                return (requestBodyValue, lowered) -> !value.equalsIgnoreCase(requestBodyValue);
+            case AccessRule.TypeNaming.ALL_EQUALS_IGNORE_CASE:
+                return (requestBodyValue, lowered) -> value.equalsIgnoreCase(requestBodyValue);
+            case AccessRule.TypeNaming.ALL_REG_MATCH:
+            case AccessRule.TypeNaming.ANY_REG_MATCH: {
+                Pattern pattern;
+                try {
+                    pattern = PatternCache.compile(value);
+                } catch (PatternSyntaxException ex) {
+                    logger.error("matcherFor() accessRule " + name + " has an invalid regex value: " + value
+                            + ", it will never match - " + ex.getDescription());
+                    return (requestBodyValue, lowered) -> false;
+                }
+                return (requestBodyValue, lowered) -> pattern.matcher(requestBodyValue).matches();
+            }
+            default:
+                logger.warn("matcherFor() accessRule type " + type + " is out of scope. Values will always match.");
+                return (requestBodyValue, lowered) -> true;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package edu.harvard.hms.dbmi.avillach.auth.service.auth;
+
+import java.util.UUID;
+
+/**
+ * <p>A change committed on another node, fired as a CDI event by the {@link InvalidationBus}.</p>
+ *
+ * Caches subscribe with an observer method taking an <code>@Observes EntityChanged</code> parameter,
+ * it is called on the thread receiving the change, never on a request thread.
+ */
+public class EntityChanged {
+
+    private final String entityType;
+    private final UUID uuid;
+    private final UUID origin;
+
+    /**
+     * @param entityType the simple class name of the entity
+     * @param uuid null if every entity of the type may have changed
+     * @param origin the node the change has been made on
+     */
+    public EntityChanged(String entityType, UUID uuid, UUID origin) {
+        this.entityType = entityType;
+        this.uuid = uuid;
+        this.origin = origin;
+    }
+
+    public String getEntityType() {
+        return entityType;
+    }
+
+    /**
+     * @return null if every entity of the type may have changed
+     */
+    public UUID getUuid() {
+        return uuid;
+    }
+
+    public UUID getOrigin() {
+        return origin;
+    }
+
+    public boolean is(Class<?> type) {
+        return type.getSimpleName().equals(entityType);
+    }
+
+    @Override
+    public String toString() {
+        return entityType + " " + (uuid == null ? "*" : uuid) + " from " + origin;
+    }
+}
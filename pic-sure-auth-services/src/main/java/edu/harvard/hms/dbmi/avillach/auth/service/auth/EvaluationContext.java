@@ -0,0 +1,91 @@
+package edu.harvard.hms.dbmi.avillach.auth.service.auth;
+
+import com.jayway.jsonpath.JsonPath;
+import com.jayway.jsonpath.PathNotFoundException;
+import com.jayway.jsonpath.ReadContext;
+import edu.harvard.hms.dbmi.avillach.auth.utils.Metrics;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>Everything one authorization check shares between the accessRules it evaluates:
+ * the request body, parsed once, the values read from it by jsonpath, and the results
+ * of the gates evaluated so far.</p>
+ *
+ * The same gates are attached to many accessRules, every FENCE consent accessRule has the same
+ * GATE_ accessRules for example. A gate only reads the request body, so once evaluated its result
+ * is reused by the other accessRules referencing it, by the UUID of the gate.
+ * <br>
+ * In the same way, each distinct jsonpath is only read once per request. Deep scans like
+ * <code>$..categoryFilters</code> walk the whole request and build a new list of matches on every read,
+ * which adds up for large queries checked by many accessRules. The values read are never modified.
+ * <br>
+ * A context belongs to a single check, it is shared by the threads of a {@link ParallelRuleEvaluator}.
+ * Two threads may then both evaluate the same gate or read the same path, with the same result.
+ */
+public class EvaluationContext {
+
+    private final ReadContext requestBody;
+
+    private final Map<UUID, Boolean> gateResults = new ConcurrentHashMap<>();
+
+    /**
+     * the value read for each jsonpath, {@link #NULL} for a null value,
+     * or the {@link PathNotFoundException} thrown reading it
+     */
+    private final Map<String, Object> pathValues = new ConcurrentHashMap<>();
+
+    private static final Object NULL = new Object();
+
+    private static final Metrics.Counter hits = Metrics.cacheHits("jsonpath_read");
+    private static final Metrics.Counter misses = Metrics.cacheMisses("jsonpath_read");
+
+    public EvaluationContext(ReadContext requestBody) {
+        this.requestBody = requestBody;
+    }
+
+    public ReadContext getRequestBody() {
+        return requestBody;
+    }
+
+    /**
+     * read a compiled jsonpath from the request body, or return what has already been read for the same path
+     *
+     * @param path
+     * @return
+     * @throws PathNotFoundException every time the path is read, if the path doesn't exist in the request body
+     */
+    Object read(JsonPath path) {
+        String key = path.getPath();
+        Object value = pathValues.get(key);
+        if (value == null) {
+            misses.increment();
+            try {
+                value = requestBody.read(path);
+            } catch (PathNotFoundException ex) {
+                value = ex;
+            }
+            pathValues.put(key, value == null ? NULL : value);
+        } else {
+            hits.increment();
+        }
+
+        if (value instanceof PathNotFoundException)
+            throw (PathNotFoundException) value;
+        return value == NULL ? null : value;
+    }
+
+    /**
+     * @param gate
+     * @return the result of the gate if it has already been evaluated for this request, null otherwise
+     */
+    Boolean getGateResult(UUID gate) {
+        return gateResults.get(gate);
+    }
+
+    void putGateResult(UUID gate, boolean passed) {
+        gateResults.put(gate, passed);
+    }
+}
@@ -0,0 +1,74 @@
+package edu.harvard.hms.dbmi.avillach.auth.service.auth;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * <p>The order a list of accessRules under an OR or an AND relationship is evaluated in.</p>
+ *
+ * Evaluating an accessRule has no side effect, so the order doesn't change the outcome, only how soon
+ * it is known. An OR stops at the first accessRule passing, so the accessRules are sorted by
+ * their cost divided by how likely they are to pass; an AND stops at the first one failing, so
+ * they are sorted by their cost divided by how likely they are to fail.
+ * <br>
+ * The cost is the static estimate of {@link CompiledAccessRule#getCost()}, the likelihood is the pass rate
+ * observed so far, starting from even odds. The order is recomputed on about one evaluation in
+ * {@value #REORDER_INTERVAL}, so the evaluations themselves only read it.
+ */
+class EvaluationOrder {
+
+    static final int REORDER_INTERVAL = 1024;
+
+    private final List<CompiledAccessRule> accessRules;
+
+    private final boolean anyRelation;
+
+    private volatile List<CompiledAccessRule> order;
+
+    /**
+     * @param accessRules
+     * @param anyRelation true for an OR between the accessRules, false for an AND
+     */
+    EvaluationOrder(List<CompiledAccessRule> accessRules, boolean anyRelation) {
+        this.accessRules = accessRules;
+        this.anyRelation = anyRelation;
+        this.order = sort();
+    }
+
+    /**
+     * @return the accessRules in the order they should be evaluated
+     */
+    List<CompiledAccessRule> get() {
+        if (accessRules.size() > 1 && ThreadLocalRandom.current().nextInt(REORDER_INTERVAL) == 0)
+            order = sort();
+        return order;
+    }
+
+    private List<CompiledAccessRule> sort() {
+        if (accessRules.size() < 2)
+            return accessRules;
+
+        // the pass rates keep moving while evaluations run, the sort needs ranks that don't
+        double[] ranks = new double[accessRules.size()];
+        Integer[] indexes = new Integer[ranks.length];
+        for (int i = 0; i < ranks.length; i++) {
+            ranks[i] = rank(accessRules.get(i));
+            indexes[i] = i;
+        }
+        Arrays.sort(indexes, Comparator.comparingDouble(i -> ranks[i]));
+
+        List<CompiledAccessRule> sorted = new ArrayList<>(ranks.length);
+        for (Integer index : indexes)
+            sorted.add(accessRules.get(index));
+        return Collections.unmodifiableList(sorted);
+    }
+
+    private double rank(CompiledAccessRule accessRule) {
+        double passRate = accessRule.getPassRate();
+        return accessRule.getCost() / (anyRelation ? passRate : 1 - passRate);
+    }
+}
@@ -0,0 +1,173 @@
+package edu.harvard.hms.dbmi.avillach.auth.service.auth;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>The accessRules, gates and subAccessRules visited by one authorization check, with the time spent
+ * in each of them, the number of values their jsonpath matched, and which branch cut the evaluation short.</p>
+ *
+ * A trace is only filled in when one is passed to
+ * {@link AuthorizationService#isAuthorized(edu.harvard.hms.dbmi.avillach.auth.data.entity.Application, Object,
+ * edu.harvard.hms.dbmi.avillach.auth.data.entity.User, EvaluationTrace)}, otherwise the evaluation doesn't
+ * pay for it. It is serialized as is into the introspection response.
+ *
+ * @see AccessRuleTraceStats
+ */
+@JsonInclude(JsonInclude.Include.NON_EMPTY)
+public class EvaluationTrace {
+
+    public static final String ACCESS_RULE = "accessRule";
+    public static final String GATE = "gate";
+    public static final String SUB_ACCESS_RULE = "subAccessRule";
+
+    @JsonInclude(JsonInclude.Include.NON_EMPTY)
+    public static class Node {
+        private final String name;
+        private final String kind;
+        private boolean passed;
+        private long nanos;
+        private Integer matches;
+        private String shortCircuit;
+        private Boolean memoized;
+        private final List<Node> children = new ArrayList<>();
+
+        Node(String name, String kind) {
+            this.name = name;
+            this.kind = kind;
+        }
+
+        Node child(String name, String kind) {
+            Node child = new Node(name, kind);
+            children.add(child);
+            return child;
+        }
+
+        void finish(boolean passed, long nanos) {
+            this.passed = passed;
+            this.nanos = nanos;
+        }
+
+        void setMatches(int matches) {
+            this.matches = matches;
+        }
+
+        void setShortCircuit(String shortCircuit) {
+            this.shortCircuit = shortCircuit;
+        }
+
+        void setMemoized() {
+            this.memoized = true;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getKind() {
+            return kind;
+        }
+
+        public boolean isPassed() {
+            return passed;
+        }
+
+        @JsonIgnore
+        public long getNanos() {
+            return nanos;
+        }
+
+        public long getMicros() {
+            return TimeUnit.NANOSECONDS.toMicros(nanos);
+        }
+
+        /**
+         * @return the number of values the jsonpath of the node matched, null if it hasn't been read
+         */
+        public Integer getMatches() {
+            return matches;
+        }
+
+        /**
+         * @return why the evaluation of the node stopped before all its children have been visited
+         */
+        public String getShortCircuit() {
+            return shortCircuit;
+        }
+
+        /**
+         * @return true if the result of the gate was taken from an earlier evaluation of the same request, null otherwise
+         */
+        public Boolean getMemoized() {
+            return memoized;
+        }
+
+        public List<Node> getChildren() {
+            return children;
+        }
+    }
+
+    private final List<Node> accessRules = new ArrayList<>();
+    private boolean granted;
+    private long preprocessingNanos;
+    private long evaluationNanos;
+    private String shortCircuit;
+
+    Node accessRule(String name) {
+        Node node = new Node(name, ACCESS_RULE);
+        accessRules.add(node);
+        return node;
+    }
+
+    void finish(boolean granted, long preprocessingNanos, long evaluationNanos, String shortCircuit) {
+        this.granted = granted;
+        this.preprocessingNanos = preprocessingNanos;
+        this.evaluationNanos = evaluationNanos;
+        this.shortCircuit = shortCircuit;
+    }
+
+    public boolean isGranted() {
+        return granted;
+    }
+
+    public long getPreprocessingMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(preprocessingNanos);
+    }
+
+    public long getEvaluationMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(evaluationNanos);
+    }
+
+    public String getShortCircuit() {
+        return shortCircuit;
+    }
+
+    /**
+     * @return the accessRules in the order they have been evaluated
+     */
+    public List<Node> getAccessRules() {
+        return accessRules;
+    }
+
+    /**
+     * @return every node of the trace, depth first
+     */
+    @JsonIgnore
+    public List<Node> getNodes() {
+        List<Node> nodes = new ArrayList<>();
+        collect(accessRules, nodes);
+        return nodes;
+    }
+
+    private static void collect(Collection<Node> from, List<Node> into) {
+        for (Node node : from) {
+            into.add(node);
+            collect(node.children, into);
+        }
+    }
+}
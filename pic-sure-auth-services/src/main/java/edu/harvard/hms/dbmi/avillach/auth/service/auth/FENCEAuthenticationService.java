@@ -17,7 +17,9 @@ import edu.harvard.hms.dbmi.avillach.auth.data.repository.ConnectionRepository;
 import edu.harvard.hms.dbmi.avillach.auth.data.repository.PrivilegeRepository;
 import edu.harvard.hms.dbmi.avillach.auth.data.repository.RoleRepository;
 import edu.harvard.hms.dbmi.avillach.auth.data.repository.UserRepository;
+import edu.harvard.hms.dbmi.avillach.auth.security.UserPrincipalCache;
 import edu.harvard.hms.dbmi.avillach.auth.utils.AuthUtils;
+import edu.harvard.hms.dbmi.avillach.auth.utils.Metrics;
 
 import org.apache.http.Header;
 import org.apache.http.entity.StringEntity;
@@ -41,6 +43,9 @@ import java.util.*;
 public class FENCEAuthenticationService {
     private Logger logger = LoggerFactory.getLogger(FENCEAuthenticationService.class);
 
+    private static final Metrics.Timer accessTokenTimer = Metrics.timer("psama_idp_request_seconds", "idp", "fence", "call", "access_token");
+    private static final Metrics.Timer userProfileTimer = Metrics.timer("psama_idp_request_seconds", "idp", "fence", "call", "user_profile");
+
     @Inject
     UserRepository userRepo;
 
@@ -65,6 +70,27 @@ public class FENCEAuthenticationService {
     @Inject
     AuthUtils authUtil;
 
+    @Inject
+    AuthorizationDecisionCache decisionCache;
+
+    @Inject
+    AfterCommit afterCommit;
+
+    @Inject
+    UserPrincipalCache principalCache;
+
+    @Inject
+    RevocationEpochs revocationEpochs;
+
+    @Inject
+    PrivilegeClaims privilegeClaims;
+
+    @Inject
+    AuthorizationSnapshotHolder authorizationSnapshot;
+
+    @Inject
+    InvalidationBus invalidationBus;
+
     private Application picSureApp;
     private Connection fenceConnection;
     private Map<String, String> fenceMapping;
@@ -82,12 +108,18 @@ public class FENCEAuthenticationService {
         headers.add(new BasicHeader("Authorization", "Bearer " + access_token));
 
         logger.debug("getFENCEUserProfile() getting user profile from uri:"+JAXRSConfiguration.idp_provider_uri+"/user/user");
-        JsonNode fence_user_profile_response = HttpClientUtil.simpleGet(
-                JAXRSConfiguration.idp_provider_uri+"/user/user",
-                JAXRSConfiguration.client,
-                JAXRSConfiguration.objectMapper,
-                headers.toArray(new Header[headers.size()])
-        );
+        long start = System.nanoTime();
+        JsonNode fence_user_profile_response;
+        try {
+            fence_user_profile_response = HttpClientUtil.simpleGet(
+                    JAXRSConfiguration.idp_provider_uri+"/user/user",
+                    JAXRSConfiguration.client,
+                    JAXRSConfiguration.objectMapper,
+                    headers.toArray(new Header[headers.size()])
+            );
+        } finally {
+            userProfileTimer.recordSince(start);
+        }
 
         logger.debug("getFENCEUserProfile() finished, returning user profile"+fence_user_profile_response.asText());
         return fence_user_profile_response;
@@ -112,6 +144,7 @@ public class FENCEAuthenticationService {
         String fence_token_url = JAXRSConfiguration.idp_provider_uri+"/user/oauth2/token";
 
         JsonNode resp = null;
+        long start = System.nanoTime();
         try {
             resp = HttpClientUtil.simplePost(
                     fence_token_url,
@@ -122,6 +155,8 @@ public class FENCEAuthenticationService {
             );
         } catch (Exception ex) {
             logger.error("getFENCEAccessToken() failed to call FENCE token service, "+ex.getMessage());
+        } finally {
+            accessTokenTimer.recordSince(start);
         }
         logger.debug("getFENCEAccessToken() finished. "+resp.asText());
         return resp;
@@ -197,6 +232,10 @@ public class FENCEAuthenticationService {
         }
         try {
             userRepo.changeRole(current_user, current_user.getRoles());
+            UUID userId = current_user.getUuid();
+            afterCommit.run(() -> decisionCache.invalidateUser(userId));
+            afterCommit.run(() -> principalCache.invalidateUser(userId));
+            revocationEpochs.bumpUser(userId);
             logger.debug("upsertRole() updated user, who now has "+current_user.getRoles().size()+" roles.");
         } catch (Exception ex) {
             logger.error("upsertRole() Could not add roles to user, because "+ex.getMessage());
@@ -205,6 +244,7 @@ public class FENCEAuthenticationService {
         claims.put("name", fence_user_profile.get("name"));
         claims.put("email", current_user.getEmail());
         claims.put("sub", current_user.getSubject());
+        privilegeClaims.addTo(claims, current_user);
         HashMap<String, String> responseMap = authUtil.getUserProfileResponse(claims);
         logger.debug("getFENCEProfile() UserProfile response object has been generated");
 
@@ -274,6 +314,9 @@ public class FENCEAuthenticationService {
                 // corresponding Privilege (with gates) and AccessRule is added.
                 //r.setPrivileges(upsertPrivilege(u, r));
                 roleRepo.persist(r);
+                // both wait for the login to be committed
+                authorizationSnapshot.refresh();
+                invalidationBus.publish(Role.class, r.getUuid());
                 logger.info("upsertRole() created new role");
             }
             u.getRoles().add(r);
@@ -361,6 +404,8 @@ public class FENCEAuthenticationService {
             }
 
             privilegeRepo.persist(priv);
+            authorizationSnapshot.refresh();
+            invalidationBus.publish(Privilege.class, priv.getUuid());
             logger.info("createNewPrivilege() Added new privilege "+priv.getName()+" to DB");
         } catch (Exception ex) {
             ex.printStackTrace();
@@ -408,6 +453,7 @@ public class FENCEAuthenticationService {
         ar.setGates(gates);
 
         accessruleRepo.persist(ar);
+        invalidationBus.publish(AccessRule.class, ar.getUuid());
 
         logger.debug("upsertAccessRule() finished");
         return ar;
@@ -0,0 +1,539 @@
+package edu.harvard.hms.dbmi.avillach.auth.service.auth;
+
+import edu.harvard.hms.dbmi.avillach.auth.JAXRSConfiguration;
+import edu.harvard.hms.dbmi.avillach.auth.data.entity.CacheInvalidation;
+import edu.harvard.hms.dbmi.avillach.auth.data.repository.CacheInvalidationRepository;
+import edu.harvard.hms.dbmi.avillach.auth.utils.Metrics;
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.enterprise.concurrent.ManagedThreadFactory;
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Event;
+import javax.inject.Inject;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Consumer;
+
+/**
+ * <p>Tells the other nodes about the entities changed on this one, so they can invalidate their caches.</p>
+ *
+ * Every change made through {@link edu.harvard.hms.dbmi.avillach.auth.service.BaseEntityService} is published
+ * with the type and UUID of the entity. The node making the change invalidates its own caches directly, as before,
+ * the other nodes receive the change once it is committed and fire it as an {@link EntityChanged} CDI event,
+ * which the caches observe.
+ * <br>
+ * The changes travel through the {@link Transport} set by {@link JAXRSConfiguration#invalidationTransport}:
+ * <ul>
+ *     <li>database, the default: a change log table written in the transaction of the change, and polled
+ *     by every node every {@link JAXRSConfiguration#invalidationPollInterval} milliseconds</li>
+ *     <li>peers: a UDP datagram sent to each of {@link JAXRSConfiguration#invalidationPeers} once the change
+ *     is committed, faster but best effort, a lost datagram leaves the caches of a node stale until the next
+ *     change of the same kind or a restart. The datagrams are signed with a key derived from
+ *     {@link JAXRSConfiguration#clientSecret}, and only accepted from the peers</li>
+ *     <li>none: for a single node</li>
+ * </ul>
+ */
+@ApplicationScoped
+public class InvalidationBus {
+
+    private Logger logger = LoggerFactory.getLogger(InvalidationBus.class);
+
+    public static final String DATABASE = "database";
+    public static final String PEERS = "peers";
+
+    /**
+     * Carries the changes between the nodes.
+     */
+    public interface Transport {
+        /**
+         * @return true if {@link #send(EntityChanged)} has to be called in the transaction of the change,
+         * false if it has to be called once the change is committed
+         */
+        boolean isTransactional();
+
+        void send(EntityChanged event) throws IOException;
+
+        /**
+         * start handing the changes sent by all nodes, this one included, to the receiver
+         */
+        void start(Consumer<EntityChanged> receiver) throws IOException;
+
+        default void stop() {}
+    }
+
+    public static class DatabaseTransport implements Transport {
+
+        private Logger logger = LoggerFactory.getLogger(DatabaseTransport.class);
+
+        /**
+         * how far back before the latest change seen each poll looks, to still pick up the changes
+         * written by a node with its clock behind, or committed late
+         */
+        static final long POLL_OVERLAP = 1000L * 60;
+
+        /**
+         * how long the changes are kept in the table
+         */
+        static final long RETENTION = 1000L * 60 * 60;
+
+        private final CacheInvalidationRepository cacheInvalidationRepo;
+        private final long pollInterval;
+        private final ThreadFactory threadFactory;
+
+        /**
+         * the changes seen within the overlap, only used by the poller thread
+         */
+        private final Map<UUID, Long> seen = new HashMap<>();
+        private long latest;
+        private long lastCleanup;
+
+        private Thread pollerThread;
+        private volatile boolean running;
+
+        public DatabaseTransport(CacheInvalidationRepository cacheInvalidationRepo, long pollInterval) {
+            this(cacheInvalidationRepo, pollInterval, null);
+        }
+
+        /**
+         * @param cacheInvalidationRepo
+         * @param pollInterval
+         * @param threadFactory the managed thread factory the poller thread comes from, null for a plain thread
+         */
+        public DatabaseTransport(CacheInvalidationRepository cacheInvalidationRepo, long pollInterval, ThreadFactory threadFactory) {
+            this.cacheInvalidationRepo = cacheInvalidationRepo;
+            this.pollInterval = pollInterval;
+            this.threadFactory = threadFactory;
+        }
+
+        @Override
+        public boolean isTransactional() {
+            return true;
+        }
+
+        @Override
+        public void send(EntityChanged event) {
+            cacheInvalidationRepo.persist(new CacheInvalidation()
+                    .setEntityType(event.getEntityType())
+                    .setEntityId(event.getUuid())
+                    .setOrigin(event.getOrigin())
+                    .setCreated(System.currentTimeMillis()));
+        }
+
+        @Override
+        public void start(Consumer<EntityChanged> receiver) {
+            // the caches are empty when a node starts, the changes made before don't matter
+            latest = System.currentTimeMillis();
+            lastCleanup = latest;
+            running = true;
+            pollerThread = BackgroundThreads.newThread(threadFactory, () -> pollEvery(receiver), "cache-invalidation-poller");
+            pollerThread.start();
+        }
+
+        @Override
+        public void stop() {
+            running = false;
+            pollerThread.interrupt();
+        }
+
+        private void pollEvery(Consumer<EntityChanged> receiver) {
+            while (running) {
+                try {
+                    Thread.sleep(pollInterval);
+                    poll(receiver);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (RuntimeException ex) {
+                    logger.warn("pollEvery() cannot poll the cache invalidations - " + ex.getMessage());
+                }
+            }
+        }
+
+        void poll(Consumer<EntityChanged> receiver) {
+            for (CacheInvalidation change : cacheInvalidationRepo.getCreatedSince(latest - POLL_OVERLAP)) {
+                if (seen.putIfAbsent(change.getUuid(), change.getCreated()) != null)
+                    continue;
+
+                latest = Math.max(latest, change.getCreated());
+                receiver.accept(new EntityChanged(change.getEntityType(), change.getEntityId(), change.getOrigin()));
+            }
+            // the next poll doesn't return them anymore
+            seen.values().removeIf(created -> created <= latest - POLL_OVERLAP);
+
+            long now = System.currentTimeMillis();
+            if (now - lastCleanup > RETENTION) {
+                int removed = cacheInvalidationRepo.removeCreatedBefore(now - RETENTION);
+                lastCleanup = now;
+                logger.debug("poll() removed " + removed + " cache invalidations older than " + RETENTION + " milliseconds");
+            }
+        }
+    }
+
+    /**
+     * <p>Sends the changes as UDP datagrams to the configured peers.</p>
+     *
+     * Only the datagrams sent from the port of a configured peer and signed with the shared key are accepted,
+     * anything else is dropped, so a host that can reach the port cannot make the nodes invalidate their caches.
+     * A replayed datagram only invalidates the caches once more.
+     */
+    public static class PeerTransport implements Transport {
+
+        private Logger logger = LoggerFactory.getLogger(PeerTransport.class);
+
+        private static final int MAX_DATAGRAM = 512;
+
+        private static final String HMAC = "HmacSHA256";
+
+        /**
+         * how often the addresses of the peers may be looked up again, when a datagram comes from an unknown one
+         */
+        static final long PEER_RESOLVE_INTERVAL = 1000L * 30;
+
+        /**
+         * how often dropped datagrams are logged
+         */
+        private static final long DROPPED_LOG_INTERVAL = 1000L * 60;
+
+        private final int port;
+        private final List<InetSocketAddress> peers;
+        private final SecretKeySpec key;
+        private final ThreadFactory threadFactory;
+
+        private DatagramSocket socket;
+        private Thread receiverThread;
+
+        /**
+         * the resolved addresses of the peers, only used by the receiver thread
+         */
+        private Set<InetSocketAddress> peerAddresses = new HashSet<>();
+        private long lastResolved;
+        private long dropped;
+        private long lastDroppedLogged;
+
+        /**
+         * @param port the UDP port to listen on, and to send from
+         * @param peers the nodes to send the changes to and accept them from, unresolved,
+         *              so a peer moving to another address is still reached
+         * @param key the key the datagrams are signed with, the same on every node
+         */
+        public PeerTransport(int port, List<InetSocketAddress> peers, byte[] key) {
+            this(port, peers, key, null);
+        }
+
+        /**
+         * @param port the UDP port to listen on, and to send from
+         * @param peers the nodes to send the changes to and accept them from, unresolved,
+         *              so a peer moving to another address is still reached
+         * @param key the key the datagrams are signed with, the same on every node
+         * @param threadFactory the managed thread factory the receiver thread comes from, null for a plain thread
+         */
+        public PeerTransport(int port, List<InetSocketAddress> peers, byte[] key, ThreadFactory threadFactory) {
+            if (key == null || key.length == 0)
+                throw new IllegalArgumentException("the cache invalidations cannot be sent to peers without a key");
+
+            this.port = port;
+            this.peers = peers;
+            this.key = new SecretKeySpec(key, HMAC);
+            this.threadFactory = threadFactory;
+        }
+
+        /**
+         * @param clientSecret the secret shared by the nodes
+         * @return the key the datagrams are signed with, derived from the secret so the secret itself is not used
+         */
+        public static byte[] deriveKey(String clientSecret) {
+            if (clientSecret == null || clientSecret.isEmpty())
+                throw new IllegalArgumentException("the client secret is not set");
+
+            return sign(new SecretKeySpec(clientSecret.getBytes(StandardCharsets.UTF_8), HMAC),
+                    "psama cache invalidation".getBytes(StandardCharsets.UTF_8));
+        }
+
+        private static byte[] sign(SecretKeySpec key, byte[] message) {
+            try {
+                Mac mac = Mac.getInstance(HMAC);
+                mac.init(key);
+                return mac.doFinal(message);
+            } catch (GeneralSecurityException ex) {
+                // HmacSHA256 is available on every Java platform
+                throw new IllegalStateException(ex);
+            }
+        }
+
+        @Override
+        public boolean isTransactional() {
+            return false;
+        }
+
+        @Override
+        public void send(EntityChanged event) throws IOException {
+            String message = event.getEntityType() + " " + (event.getUuid() == null ? "*" : event.getUuid())
+                    + " " + event.getOrigin();
+            byte[] datagram = (message + " " + Hex.encodeHexString(sign(key, message.getBytes(StandardCharsets.UTF_8))))
+                    .getBytes(StandardCharsets.UTF_8);
+            for (InetSocketAddress peer : peers) {
+                InetSocketAddress address = new InetSocketAddress(peer.getHostString(), peer.getPort());
+                if (address.isUnresolved()) {
+                    logger.warn("send() cannot resolve peer " + peer.getHostString());
+                    continue;
+                }
+                socket.send(new DatagramPacket(datagram, datagram.length, address));
+            }
+        }
+
+        @Override
+        public void start(Consumer<EntityChanged> receiver) throws IOException {
+            socket = new DatagramSocket(port);
+            resolvePeers();
+            receiverThread = BackgroundThreads.newThread(threadFactory, () -> receive(receiver), "cache-invalidation-receiver");
+            receiverThread.start();
+        }
+
+        @Override
+        public void stop() {
+            socket.close();
+        }
+
+        private void resolvePeers() {
+            Set<InetSocketAddress> addresses = new HashSet<>();
+            for (InetSocketAddress peer : peers) {
+                try {
+                    for (InetAddress address : InetAddress.getAllByName(peer.getHostString()))
+                        addresses.add(new InetSocketAddress(address, peer.getPort()));
+                } catch (UnknownHostException ex) {
+                    logger.warn("resolvePeers() cannot resolve peer " + peer.getHostString());
+                }
+            }
+            peerAddresses = addresses;
+            lastResolved = System.currentTimeMillis();
+        }
+
+        /**
+         * @return true if the datagram comes from a peer, looking the peers up again if they may have moved
+         */
+        private boolean isFromPeer(InetSocketAddress source) {
+            if (peerAddresses.contains(source))
+                return true;
+            if (System.currentTimeMillis() - lastResolved < PEER_RESOLVE_INTERVAL)
+                return false;
+
+            resolvePeers();
+            return peerAddresses.contains(source);
+        }
+
+        private void drop(DatagramPacket packet, String reason) {
+            dropped++;
+            long now = System.currentTimeMillis();
+            if (now - lastDroppedLogged >= DROPPED_LOG_INTERVAL) {
+                logger.warn("receive() dropped " + dropped + " cache invalidations, the last one from "
+                        + packet.getSocketAddress() + " " + reason);
+                dropped = 0;
+                lastDroppedLogged = now;
+            }
+        }
+
+        private void receive(Consumer<EntityChanged> receiver) {
+            byte[] buffer = new byte[MAX_DATAGRAM];
+            while (!socket.isClosed()) {
+                try {
+                    DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                    socket.receive(packet);
+                    if (!isFromPeer((InetSocketAddress) packet.getSocketAddress())) {
+                        drop(packet, "is not a peer");
+                        continue;
+                    }
+
+                    String datagram = new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8);
+                    int signature = datagram.lastIndexOf(' ');
+                    if (signature < 0 || !MessageDigest.isEqual(
+                            sign(key, datagram.substring(0, signature).getBytes(StandardCharsets.UTF_8)),
+                            Hex.decodeHex(datagram.substring(signature + 1).toCharArray()))) {
+                        drop(packet, "is not signed with the key of the peers");
+                        continue;
+                    }
+
+                    String[] message = datagram.substring(0, signature).split(" ");
+                    if (message.length != 3) {
+                        logger.warn("receive() ignoring a malformed message from " + packet.getSocketAddress());
+                        continue;
+                    }
+                    receiver.accept(new EntityChanged(message[0],
+                            "*".equals(message[1]) ? null : UUID.fromString(message[1]),
+                            UUID.fromString(message[2])));
+                } catch (SocketException ex) {
+                    // closed by stop()
+                    return;
+                } catch (DecoderException ex) {
+                    logger.warn("receive() ignoring a cache invalidation with a malformed signature - " + ex.getMessage());
+                } catch (IOException | IllegalArgumentException ex) {
+                    logger.warn("receive() cannot read a cache invalidation - " + ex.getMessage());
+                }
+            }
+        }
+    }
+
+    private final UUID nodeId = UUID.randomUUID();
+
+    @Inject
+    CacheInvalidationRepository cacheInvalidationRepo;
+
+    @Inject
+    Event<EntityChanged> events;
+
+    @Resource(lookup = "java:comp/TransactionSynchronizationRegistry")
+    TransactionSynchronizationRegistry transactions;
+
+    @Resource(lookup = BackgroundThreads.MANAGED_THREAD_FACTORY)
+    ManagedThreadFactory threadFactory;
+
+    private volatile Transport transport;
+
+    private static final Metrics.Counter published = Metrics.counter("psama_cache_invalidations_total", "direction", "published");
+    private static final Metrics.Counter received = Metrics.counter("psama_cache_invalidations_total", "direction", "received");
+
+    /**
+     * start the transport set in {@link JAXRSConfiguration}, called once the configuration is read
+     */
+    public void start() {
+        String mode = JAXRSConfiguration.invalidationTransport;
+        if (DATABASE.equalsIgnoreCase(mode)) {
+            start(new DatabaseTransport(cacheInvalidationRepo, JAXRSConfiguration.invalidationPollInterval, threadFactory));
+        } else if (PEERS.equalsIgnoreCase(mode)) {
+            List<InetSocketAddress> peers;
+            byte[] key;
+            try {
+                peers = parsePeers(JAXRSConfiguration.invalidationPeers);
+                key = PeerTransport.deriveKey(JAXRSConfiguration.clientSecret);
+            } catch (IllegalArgumentException ex) {
+                logger.error("start() cannot send cache invalidations to the peers, changes made on other nodes are not seen by the caches - "
+                        + ex.getMessage());
+                return;
+            }
+            start(new PeerTransport(JAXRSConfiguration.invalidationPort, peers, key, threadFactory));
+        } else {
+            logger.info("start() cache invalidation bus is off, changes made on other nodes are not seen by the caches");
+        }
+    }
+
+    public synchronized void start(Transport transport) {
+        if (this.transport != null)
+            return;
+
+        try {
+            transport.start(this::receive);
+        } catch (IOException ex) {
+            logger.error("start() cannot start " + transport.getClass().getSimpleName()
+                    + ", changes made on other nodes are not seen by the caches - " + ex.getMessage());
+            return;
+        }
+        this.transport = transport;
+        logger.info("start() cache invalidation bus started with " + transport.getClass().getSimpleName() + " as node " + nodeId);
+    }
+
+    @PreDestroy
+    public synchronized void stop() {
+        if (transport != null) {
+            transport.stop();
+            transport = null;
+        }
+    }
+
+    /**
+     * tell the other nodes about a change, once it is committed
+     *
+     * @param type the class of the entity
+     * @param uuid of the entity, null if every entity of the type may have changed
+     */
+    public void publish(Class<?> type, UUID uuid) {
+        Transport transport = this.transport;
+        if (transport == null)
+            return;
+
+        EntityChanged event = new EntityChanged(type.getSimpleName(), uuid, nodeId);
+        if (transport.isTransactional() || transactions == null
+                || transactions.getTransactionStatus() != Status.STATUS_ACTIVE) {
+            send(transport, event);
+            return;
+        }
+
+        transactions.registerInterposedSynchronization(new Synchronization() {
+            @Override
+            public void beforeCompletion() {
+            }
+
+            @Override
+            public void afterCompletion(int status) {
+                if (status == Status.STATUS_COMMITTED)
+                    send(transport, event);
+            }
+        });
+    }
+
+    private void send(Transport transport, EntityChanged event) {
+        try {
+            transport.send(event);
+            published.increment();
+        } catch (IOException ex) {
+            logger.warn("send() cannot send cache invalidation " + event + " - " + ex.getMessage());
+        }
+    }
+
+    void receive(EntityChanged event) {
+        // this node has already invalidated its own caches
+        if (nodeId.equals(event.getOrigin()))
+            return;
+
+        received.increment();
+        logger.debug("receive() " + event);
+        try {
+            events.fire(event);
+        } catch (RuntimeException ex) {
+            logger.error("receive() cannot invalidate the caches for " + event + " - " + ex.getMessage());
+        }
+    }
+
+    static List<InetSocketAddress> parsePeers(String peers) {
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        if (peers == null)
+            return addresses;
+
+        for (String peer : peers.split(",")) {
+            peer = peer.trim();
+            int colon = peer.lastIndexOf(':');
+            if (colon < 1) {
+                if (!peer.isEmpty())
+                    throw new IllegalArgumentException("peer " + peer + " is not host:port");
+                continue;
+            }
+            addresses.add(InetSocketAddress.createUnresolved(peer.substring(0, colon),
+                    Integer.parseInt(peer.substring(colon + 1))));
+        }
+        return addresses;
+    }
+}
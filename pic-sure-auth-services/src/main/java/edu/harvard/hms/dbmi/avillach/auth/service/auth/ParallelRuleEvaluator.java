@@ -0,0 +1,160 @@
+package edu.harvard.hms.dbmi.avillach.auth.service.auth;
+
+import edu.harvard.hms.dbmi.avillach.auth.JAXRSConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.enterprise.concurrent.ManagedThreadFactory;
+import javax.enterprise.context.ApplicationScoped;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * <p>Evaluates the OR'ed accessRules of a plan on several threads, for users with many accessRules
+ * checked against heavy requests.</p>
+ *
+ * The accessRules, in their evaluation order, are dealt out to one group per thread, so every group starts
+ * with some of the cheapest and most likely to pass. The calling thread evaluates the first group itself,
+ * the others go to a dedicated pool of threads from the managed thread factory, see {@link BackgroundThreads}.
+ * Every group checks before each accessRule whether another group already found one passing, and stops if so.
+ * <br>
+ * It is off unless {@link JAXRSConfiguration#parallelEvaluationThreads} is set, and only used for plans of
+ * at least {@link JAXRSConfiguration#parallelEvaluationMinCost}, see {@link CompiledAccessRule#getCost()},
+ * so the common case of a few cheap accessRules never pays for the hand off.
+ */
+@ApplicationScoped
+public class ParallelRuleEvaluator {
+
+    private Logger logger = LoggerFactory.getLogger(ParallelRuleEvaluator.class);
+
+    /**
+     * the outcome of evaluating the accessRules of a plan
+     */
+    public static class Outcome {
+        private final CompiledAccessRule passedBy;
+        private final List<String> failedRules;
+
+        Outcome(CompiledAccessRule passedBy, List<String> failedRules) {
+            this.passedBy = passedBy;
+            this.failedRules = failedRules;
+        }
+
+        /**
+         * @return the accessRule that passed, null if none did
+         */
+        public CompiledAccessRule getPassedBy() {
+            return passedBy;
+        }
+
+        /**
+         * @return the names of the accessRules evaluated that failed, the ones skipped are not listed
+         */
+        public List<String> getFailedRules() {
+            return failedRules;
+        }
+    }
+
+    @Resource(lookup = BackgroundThreads.MANAGED_THREAD_FACTORY)
+    ManagedThreadFactory threadFactory;
+
+    private ExecutorService pool;
+
+    private int threads;
+
+    private double minCost;
+
+    @PostConstruct
+    public void start() {
+        start(JAXRSConfiguration.parallelEvaluationThreads, JAXRSConfiguration.parallelEvaluationMinCost);
+    }
+
+    public synchronized void start(int threads, double minCost) {
+        if (pool != null || threads < 2)
+            return;
+
+        this.threads = threads;
+        this.minCost = minCost;
+        AtomicInteger threadIndex = new AtomicInteger();
+        this.pool = Executors.newFixedThreadPool(threads - 1, task -> BackgroundThreads.newThread(threadFactory, task,
+                "access-rule-evaluator-" + threadIndex.incrementAndGet()));
+        logger.info("start() parallel accessRule evaluation on " + threads + " threads for plans costing at least " + minCost);
+    }
+
+    @PreDestroy
+    public synchronized void stop() {
+        if (pool != null) {
+            pool.shutdownNow();
+            pool = null;
+        }
+    }
+
+    /**
+     * @param plan
+     * @return true if the plan is worth evaluating on several threads
+     */
+    public boolean appliesTo(AccessRulePlan plan) {
+        return pool != null && plan.getAccessRules().size() > 1 && plan.getCost() >= minCost;
+    }
+
+    /**
+     * @param accessRules OR'ed accessRules, in the order they should be evaluated
+     * @param context shared by all threads
+     * @return
+     */
+    public Outcome evaluate(List<CompiledAccessRule> accessRules, EvaluationContext context) {
+        int groups = Math.min(threads, accessRules.size());
+        AtomicReference<CompiledAccessRule> passedBy = new AtomicReference<>();
+        List<List<String>> failedRules = new ArrayList<>();
+        for (int group = 0; group < groups; group++) {
+            failedRules.add(new ArrayList<>());
+        }
+
+        List<Future<?>> futures = new ArrayList<>();
+        for (int group = 1; group < groups; group++) {
+            int index = group;
+            futures.add(pool.submit(() -> evaluateGroup(accessRules, index, groups, context, passedBy, failedRules.get(index))));
+        }
+        evaluateGroup(accessRules, 0, groups, context, passedBy, failedRules.get(0));
+
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("interrupted while evaluating accessRules", ex);
+            } catch (ExecutionException ex) {
+                if (ex.getCause() instanceof RuntimeException)
+                    throw (RuntimeException) ex.getCause();
+                throw new IllegalStateException(ex.getCause());
+            }
+        }
+
+        List<String> failed = new ArrayList<>();
+        failedRules.forEach(failed::addAll);
+        return new Outcome(passedBy.get(), failed);
+    }
+
+    private static void evaluateGroup(List<CompiledAccessRule> accessRules, int group, int groups, EvaluationContext context,
+                                      AtomicReference<CompiledAccessRule> passedBy, List<String> failedRules) {
+        for (int i = group; i < accessRules.size(); i += groups) {
+            if (passedBy.get() != null)
+                return;
+
+            CompiledAccessRule accessRule = accessRules.get(i);
+            if (accessRule.evaluate(context, null)) {
+                passedBy.compareAndSet(null, accessRule);
+                return;
+            }
+            failedRules.add(accessRule.getName());
+        }
+    }
+}
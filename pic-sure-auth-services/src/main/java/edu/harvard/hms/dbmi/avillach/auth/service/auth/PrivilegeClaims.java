@@ -0,0 +1,108 @@
+package edu.harvard.hms.dbmi.avillach.auth.service.auth;
+
+import edu.harvard.hms.dbmi.avillach.auth.JAXRSConfiguration;
+import edu.harvard.hms.dbmi.avillach.auth.data.entity.Role;
+import edu.harvard.hms.dbmi.avillach.auth.data.entity.User;
+import edu.harvard.hms.dbmi.avillach.auth.utils.Metrics;
+import io.jsonwebtoken.Claims;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * <p>Claims that let token introspection authorize a user without loading it from the database.</p>
+ *
+ * When {@link JAXRSConfiguration#statelessIntrospectionEnabled} is on, the tokens issued to users carry
+ * the UUID of the user, the UUIDs of its roles and its {@link RevocationEpochs revocation epoch}, all covered
+ * by the signature of the token. The privileges and accessRules of the roles are not in the token,
+ * they are read from the current {@link AuthorizationSnapshot}, so only the roles of the user can go
+ * stale, and changing the user moves its epoch on.
+ * <br>
+ * The claims are only trusted once the epochs have been loaded, while the epoch still matches
+ * and every role is in the snapshot, otherwise the user is loaded from the database as before.
+ */
+@ApplicationScoped
+public class PrivilegeClaims {
+
+    public static final String USER_ID = "psama_uid";
+    public static final String ROLES = "psama_roles";
+    public static final String EPOCH = "psama_epoch";
+
+    private static final Metrics.Counter fromClaims = Metrics.counter("psama_introspection_users_total", "source", "claims");
+    private static final Metrics.Counter staleClaims = Metrics.counter("psama_introspection_users_total", "source", "stale_claims");
+
+    @Inject
+    RevocationEpochs revocationEpochs;
+
+    /**
+     * add the privilege claims of the user, or remove them if stateless introspection is off,
+     * so a refreshed token never carries the claims of the token it replaces
+     *
+     * @param claims the claims of the token to issue
+     * @param user with its roles
+     */
+    public void addTo(Map<String, Object> claims, User user) {
+        removeFrom(claims);
+        if (!JAXRSConfiguration.statelessIntrospectionEnabled || user == null || user.getUuid() == null
+                || user.getRoles() == null)
+            return;
+
+        claims.put(USER_ID, user.getUuid().toString());
+        claims.put(ROLES, user.getRoles().stream()
+                .map(role -> String.valueOf(role.getUuid()))
+                .sorted()
+                .collect(Collectors.toList()));
+        claims.put(EPOCH, revocationEpochs.getUserEpoch(user.getUuid()));
+    }
+
+    public static void removeFrom(Map<String, Object> claims) {
+        claims.remove(USER_ID);
+        claims.remove(ROLES);
+        claims.remove(EPOCH);
+    }
+
+    /**
+     * @param claims of a verified token
+     * @param snapshot the snapshot the introspection reads the privileges from
+     * @return a user holding only its UUID, subject, email and roles, with only their UUIDs,
+     * or null if the token has no privilege claims or they can't be trusted anymore
+     */
+    public User userFrom(Claims claims, AuthorizationSnapshot snapshot) {
+        // until the epochs are loaded, a user changed since the token was issued would still read as epoch 0
+        if (!JAXRSConfiguration.statelessIntrospectionEnabled || !revocationEpochs.isLoaded())
+            return null;
+
+        Object userId = claims.get(USER_ID), roles = claims.get(ROLES), epoch = claims.get(EPOCH);
+        if (!(userId instanceof String) || !(roles instanceof Collection) || !(epoch instanceof Number))
+            return null;
+
+        User user = new User();
+        Set<Role> userRoles = new HashSet<>();
+        try {
+            user.setUuid(UUID.fromString((String) userId));
+            if (((Number) epoch).longValue() != revocationEpochs.getUserEpoch(user.getUuid())) {
+                staleClaims.increment();
+                return null;
+            }
+
+            for (Object roleId : (Collection) roles) {
+                Role role = new Role();
+                role.setUuid(UUID.fromString(String.valueOf(roleId)));
+                // a role created after the snapshot was built would need its privileges from the database
+                if (!snapshot.hasRole(role.getUuid()))
+                    return null;
+                userRoles.add(role);
+            }
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
+
+        user.setSubject(claims.getSubject());
+        user.setEmail((String) claims.get("email"));
+        user.setRoles(userRoles);
+        fromClaims.increment();
+        return user;
+    }
+}
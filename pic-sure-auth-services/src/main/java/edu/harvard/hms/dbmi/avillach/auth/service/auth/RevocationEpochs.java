@@ -0,0 +1,188 @@
+package edu.harvard.hms.dbmi.avillach.auth.service.auth;
+
+import edu.harvard.hms.dbmi.avillach.auth.JAXRSConfiguration;
+import edu.harvard.hms.dbmi.avillach.auth.data.entity.RevocationEpoch;
+import edu.harvard.hms.dbmi.avillach.auth.data.repository.RevocationEpochRepository;
+import edu.harvard.hms.dbmi.avillach.auth.utils.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.enterprise.concurrent.ManagedThreadFactory;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>A revocation epoch per user and per application. Tokens carrying {@link PrivilegeClaims} are stamped with
+ * the epoch of their user when they are issued, and every change to the user moves the epoch on, so the claims
+ * of the tokens issued before the change are no longer trusted. The caches of users and applications keep
+ * the epoch they have been loaded at, and reload them once it has moved on.</p>
+ *
+ * The epochs are raised in the database in the transaction of the change, see
+ * {@link RevocationEpochRepository#raise(UUID, String, long)}, and in memory once it is committed, so a change
+ * rolled back never revokes anything. Every node loads them all when it starts, then
+ * polls the ones raised since every {@link JAXRSConfiguration#revocationEpochPollInterval} milliseconds,
+ * so a change made on one node revokes the claims and cached entries on the others within the interval.
+ * <br>
+ * A user or application never changed has epoch 0 on every node. Until the epochs have been loaded once,
+ * {@link #isLoaded()} is false and every epoch reads as 0, so the claims and caches relying on them must not
+ * be trusted; the load is retried every {@link #LOAD_RETRY_INTERVAL} milliseconds even if polling is turned off.
+ */
+@ApplicationScoped
+public class RevocationEpochs {
+
+    private Logger logger = LoggerFactory.getLogger(RevocationEpochs.class);
+
+    /**
+     * how far back before the highest epoch seen each poll looks, to still pick up the epochs
+     * raised by a node with its clock behind, or committed late
+     */
+    static final long POLL_OVERLAP = 1000L * 60;
+
+    /**
+     * how often the first load is retried when polling is turned off
+     */
+    static final long LOAD_RETRY_INTERVAL = 1000L * 10;
+
+    @Inject
+    RevocationEpochRepository revocationEpochRepo;
+
+    @Inject
+    AfterCommit afterCommit;
+
+    @Resource(lookup = BackgroundThreads.MANAGED_THREAD_FACTORY)
+    ManagedThreadFactory threadFactory;
+
+    private final Map<UUID, Long> userEpochs = new ConcurrentHashMap<>();
+    private final Map<UUID, Long> applicationEpochs = new ConcurrentHashMap<>();
+
+    private volatile long highestEpoch = Long.MIN_VALUE;
+
+    private volatile boolean loaded;
+
+    private Thread pollerThread;
+    private volatile boolean running;
+
+    @PostConstruct
+    public void start() {
+        start(JAXRSConfiguration.revocationEpochPollInterval);
+    }
+
+    public synchronized void start(long pollInterval) {
+        if (running)
+            return;
+
+        try {
+            poll();
+        } catch (RuntimeException ex) {
+            logger.error("start() cannot load the revocation epochs, token claims and cached users are not trusted until they are - "
+                    + ex.getMessage());
+        }
+
+        Metrics.gauge("psama_revocation_epochs", userEpochs::size, "type", RevocationEpoch.USER);
+        Metrics.gauge("psama_revocation_epochs", applicationEpochs::size, "type", RevocationEpoch.APPLICATION);
+        if (pollInterval <= 0 && loaded) {
+            logger.info("start() revocation epochs are not polled, changes made on other nodes are not seen");
+            return;
+        }
+
+        running = true;
+        pollerThread = BackgroundThreads.newThread(threadFactory,
+                () -> pollEvery(pollInterval > 0 ? pollInterval : LOAD_RETRY_INTERVAL, pollInterval > 0),
+                "revocation-epoch-poller");
+        pollerThread.start();
+        if (pollInterval > 0)
+            logger.info("start() polling revocation epochs every " + pollInterval + " milliseconds");
+        else
+            logger.info("start() revocation epochs are not polled, retrying to load them every " + LOAD_RETRY_INTERVAL + " milliseconds");
+    }
+
+    /**
+     * @return true once the epochs have been loaded, until then they all read as 0
+     */
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    @PreDestroy
+    public synchronized void stop() {
+        if (!running)
+            return;
+
+        running = false;
+        pollerThread.interrupt();
+    }
+
+    public long getUserEpoch(UUID user) {
+        return userEpochs.getOrDefault(user, 0L);
+    }
+
+    public long getApplicationEpoch(UUID application) {
+        return applicationEpochs.getOrDefault(application, 0L);
+    }
+
+    /**
+     * move the epoch of the user on, to be called once a change to the user is made,
+     * in the same transaction
+     */
+    public void bumpUser(UUID user) {
+        bump(userEpochs, user, RevocationEpoch.USER);
+    }
+
+    /**
+     * move the epoch of the application on, to be called once a change to the application is made,
+     * in the same transaction
+     */
+    public void bumpApplication(UUID application) {
+        bump(applicationEpochs, application, RevocationEpoch.APPLICATION);
+    }
+
+    private void bump(Map<UUID, Long> epochs, UUID uuid, String type) {
+        if (uuid == null)
+            return;
+
+        long epoch = Math.max(System.currentTimeMillis(), epochs.getOrDefault(uuid, 0L) + 1);
+        revocationEpochRepo.raise(uuid, type, epoch);
+        afterCommit.run(() -> epochs.merge(uuid, epoch, Math::max));
+    }
+
+    /**
+     * load the epochs raised since the last poll, all of them the first time
+     */
+    public void poll() {
+        long since = highestEpoch == Long.MIN_VALUE ? Long.MIN_VALUE : highestEpoch - POLL_OVERLAP;
+        List<RevocationEpoch> raised = revocationEpochRepo.getRaisedSince(since);
+        long highest = highestEpoch;
+        for (RevocationEpoch epoch : raised) {
+            Map<UUID, Long> epochs = RevocationEpoch.APPLICATION.equals(epoch.getType()) ? applicationEpochs : userEpochs;
+            epochs.merge(epoch.getUuid(), epoch.getEpoch(), Math::max);
+            highest = Math.max(highest, epoch.getEpoch());
+        }
+        highestEpoch = highest;
+        loaded = true;
+    }
+
+    /**
+     * @param pollInterval
+     * @param keepPolling false to stop once the epochs are loaded
+     */
+    private void pollEvery(long pollInterval, boolean keepPolling) {
+        while (running && (keepPolling || !loaded)) {
+            try {
+                Thread.sleep(pollInterval);
+                poll();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (RuntimeException ex) {
+                logger.warn("pollEvery() cannot poll the revocation epochs - " + ex.getMessage());
+            }
+        }
+    }
+}
@@ -3,14 +3,14 @@ package edu.harvard.hms.dbmi.avillach.auth.utils;
 import edu.harvard.hms.dbmi.avillach.auth.JAXRSConfiguration;
 import edu.harvard.hms.dbmi.avillach.auth.service.TOSService;
 import io.jsonwebtoken.*;
-import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.inject.Inject;
 import javax.validation.constraints.NotNull;
 import javax.ws.rs.NotAuthorizedException;
-import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
 import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
 import java.util.Calendar;
@@ -29,38 +29,22 @@ public class AuthUtils {
 	TOSService tosService;
 
 	/**
-	 * support both Base64 encrypted and non-Base64 encrypted
+	 * verified by the {@link TokenCodec} for the clientSecret, which supports both Base64 encrypted
+	 * and non-Base64 encrypted secrets
+	 * <br>
+	 * A token that has been verified before is served from {@link VerifiedTokenCache} until it expires.
 	 * @param clientSecret
 	 * @param token
 	 * @return
 	 */
 	public static Jws<Claims> parseToken(@NotNull String clientSecret, String token)
 			throws NotAuthorizedException{
-		Jws<Claims> jws;
+		Jws<Claims> jws = token == null ? null : VerifiedTokenCache.get(clientSecret, token);
+		if (jws != null)
+			return jws;
 
 		try {
-			jws = Jwts.parser().setSigningKey(clientSecret.getBytes()).parseClaimsJws(token);
-		} catch (SignatureException e) {
-			try {
-				if(JAXRSConfiguration.clientSecretIsBase64.startsWith("true")) {
-					// handle if client secret is base64 encoded
-					jws = Jwts.parser().setSigningKey(Base64.decodeBase64(clientSecret
-							.getBytes("UTF-8")))
-							.parseClaimsJws(token);
-				} else {
-					// handle if client secret is not base64 encoded
-					jws = Jwts.parser().setSigningKey(clientSecret
-							.getBytes("UTF-8"))
-							.parseClaimsJws(token);
-				} 
-			} catch (UnsupportedEncodingException ex){
-				logger.error("parseToken() clientSecret encoding UTF-8 is not supported. "
-						+ ex.getClass().getSimpleName() + ": " + ex.getMessage());
-				throw new NotAuthorizedException("encoding is not supported");
-			} catch (JwtException | IllegalArgumentException ex) {
-				logger.error("parseToken() throws: " + e.getClass().getSimpleName() + ", " + e.getMessage());
-				throw new NotAuthorizedException(ex.getClass().getSimpleName());
-			}
+			jws = TokenCodec.forSecret(clientSecret).parse(token);
 		} catch (JwtException | IllegalArgumentException e) {
 			logger.error("parseToken() throws: " + e.getClass().getSimpleName() + ", " + e.getMessage());
 			throw new NotAuthorizedException(e.getClass().getSimpleName());
@@ -71,6 +55,7 @@ public class AuthUtils {
 			throw new NotAuthorizedException("please contact admin to see the log");
 		}
 
+		VerifiedTokenCache.put(clientSecret, token, jws);
 		return jws;
 	}
 
@@ -118,6 +103,25 @@ public class AuthUtils {
 		return responseMap;
 	}
 
+	/**
+	 * @param token a long term or application token
+	 * @return the fixed length digest the token is stored, looked up and compared by, null for a null token
+	 */
+	public static byte[] tokenDigest(String token) {
+		return token == null ? null : DigestUtils.sha256(token);
+	}
+
+	/**
+	 * compares in constant time, so the time taken doesn't tell how much of the token matched
+	 *
+	 * @param token
+	 * @param tokenDigest the stored digest
+	 * @return true if the token has the given digest
+	 */
+	public static boolean matchesTokenDigest(String token, byte[] tokenDigest) {
+		return token != null && tokenDigest != null && MessageDigest.isEqual(tokenDigest(token), tokenDigest);
+	}
+
 	public  boolean acceptedTOSBySub(String subject) {
 		return JAXRSConfiguration.tosEnabled.startsWith("true") ?
 				tosService.getLatest() == null || tosService.hasUserAcceptedLatest(subject) : true;
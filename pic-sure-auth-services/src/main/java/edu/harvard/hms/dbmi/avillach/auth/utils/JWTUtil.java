@@ -2,12 +2,9 @@ package edu.harvard.hms.dbmi.avillach.auth.utils;
 
 import io.jsonwebtoken.JwtBuilder;
 import io.jsonwebtoken.Jwts;
-import io.jsonwebtoken.SignatureAlgorithm;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.crypto.spec.SecretKeySpec;
-import java.security.Key;
 import java.util.Date;
 import java.util.Map;
 
@@ -40,14 +37,9 @@ public class JWTUtil {
         if (ttlMillis == 0)
             ttlMillis = 999L * 1000 * 60 * 60 * 24;
 
-        SignatureAlgorithm signatureAlgorithm = SignatureAlgorithm.HS256;
         long nowMillis = System.currentTimeMillis();
         Date now = new Date(nowMillis);
 
-        //We will sign our JWT with our ApiKey secret
-        byte[] apiKeySecretBytes = clientSecret.getBytes();
-        Key signingKey = new SecretKeySpec(apiKeySecretBytes, signatureAlgorithm.getJcaName());
-
         //Let's set the JWT Claims
         JwtBuilder builder = null;
         try {
@@ -57,8 +49,7 @@ public class JWTUtil {
                     .setId(id)
                     .setIssuedAt(now)
                     .setSubject(subject)
-                    .setIssuer(issuer)
-                    .signWith(signatureAlgorithm, signingKey);
+                    .setIssuer(issuer);
 
             //if it has been specified, let's add the expiration
             if (ttlMillis >= 0) {
@@ -67,7 +58,8 @@ public class JWTUtil {
                 builder.setExpiration(exp);
             }
 
-            jwt_token = builder.compact();
+            //We will sign our JWT with the key derived from our ApiKey secret
+            jwt_token = TokenCodec.forSecret(clientSecret).sign(builder);
         } catch (Exception ex) {
             logger.error("createJwtToken() Exception:"+ex.getClass().getSimpleName());
             ex.printStackTrace();
@@ -0,0 +1,259 @@
+package edu.harvard.hms.dbmi.avillach.auth.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * <p>A process-wide registry of timers, counters and gauges, rendered in the Prometheus text format
+ * by {@link edu.harvard.hms.dbmi.avillach.auth.rest.MetricsEndpoint}.</p>
+ *
+ * <p>Timers are histograms with fixed latency buckets, in seconds. Cache hit ratios are exposed as
+ * {@value #CACHE_REQUESTS} counters with a cache and a result label, so the ratio can be computed over any
+ * window by the scraper.</p>
+ *
+ * Looking a metric up builds its key, so metrics recorded on a hot path with constant labels should be
+ * kept in a field.
+ */
+public class Metrics {
+
+    public static final String CACHE_REQUESTS = "psama_cache_requests_total";
+
+    /**
+     * the upper bounds of the timer buckets, in seconds
+     */
+    private static final double[] BUCKETS = {0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+    private static final long[] BUCKET_NANOS = new long[BUCKETS.length];
+    static {
+        for (int i = 0; i < BUCKETS.length; i++) {
+            BUCKET_NANOS[i] = (long) (BUCKETS[i] * TimeUnit.SECONDS.toNanos(1));
+        }
+    }
+
+    private interface Metric {
+        String type();
+
+        void render(String name, String labels, StringBuilder out);
+    }
+
+    public static class Timer implements Metric {
+        private final LongAdder[] buckets = new LongAdder[BUCKETS.length];
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sumNanos = new LongAdder();
+
+        private Timer() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        public void record(long nanos) {
+            for (int i = 0; i < BUCKET_NANOS.length; i++) {
+                if (nanos <= BUCKET_NANOS[i]) {
+                    buckets[i].increment();
+                    break;
+                }
+            }
+            count.increment();
+            sumNanos.add(nanos);
+        }
+
+        /**
+         * @param startNanos a {@link System#nanoTime()} taken before the timed work
+         */
+        public void recordSince(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        public <T> T record(Supplier<T> supplier) {
+            long start = System.nanoTime();
+            try {
+                return supplier.get();
+            } finally {
+                recordSince(start);
+            }
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        @Override
+        public String type() {
+            return "histogram";
+        }
+
+        @Override
+        public void render(String name, String labels, StringBuilder out) {
+            String separator = labels.isEmpty() ? "" : ",";
+            long cumulative = 0;
+            for (int i = 0; i < BUCKETS.length; i++) {
+                cumulative += buckets[i].sum();
+                out.append(name).append("_bucket{").append(labels).append(separator)
+                        .append("le=\"").append(BUCKETS[i]).append("\"} ").append(cumulative).append('\n');
+            }
+            long total = count.sum();
+            out.append(name).append("_bucket{").append(labels).append(separator)
+                    .append("le=\"+Inf\"} ").append(total).append('\n');
+            out.append(name).append("_sum").append(braces(labels)).append(' ')
+                    .append(sumNanos.sum() / (double) TimeUnit.SECONDS.toNanos(1)).append('\n');
+            out.append(name).append("_count").append(braces(labels)).append(' ').append(total).append('\n');
+        }
+    }
+
+    public static class Counter implements Metric {
+        private final LongAdder value = new LongAdder();
+
+        private Counter() {
+        }
+
+        public void increment() {
+            value.increment();
+        }
+
+        public long get() {
+            return value.sum();
+        }
+
+        @Override
+        public String type() {
+            return "counter";
+        }
+
+        @Override
+        public void render(String name, String labels, StringBuilder out) {
+            out.append(name).append(braces(labels)).append(' ').append(value.sum()).append('\n');
+        }
+    }
+
+    private static class Gauge implements Metric {
+        private final Supplier<Number> value;
+
+        private Gauge(Supplier<Number> value) {
+            this.value = value;
+        }
+
+        @Override
+        public String type() {
+            return "gauge";
+        }
+
+        @Override
+        public void render(String name, String labels, StringBuilder out) {
+            Number number = value.get();
+            if (number != null)
+                out.append(name).append(braces(labels)).append(' ').append(number).append('\n');
+        }
+    }
+
+    private static class Key implements Comparable<Key> {
+        private final String name;
+        private final String labels;
+
+        private Key(String name, String labels) {
+            this.name = name;
+            this.labels = labels;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && name.equals(((Key) o).name) && labels.equals(((Key) o).labels);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * name.hashCode() + labels.hashCode();
+        }
+
+        @Override
+        public int compareTo(Key o) {
+            int byName = name.compareTo(o.name);
+            return byName != 0 ? byName : labels.compareTo(o.labels);
+        }
+    }
+
+    private static final Map<Key, Metric> metrics = new ConcurrentHashMap<>();
+
+    /**
+     * @param name
+     * @param labels label names and values, alternating
+     * @return the timer, created on first use
+     */
+    public static Timer timer(String name, String... labels) {
+        return (Timer) metrics.computeIfAbsent(new Key(name, labels(labels)), k -> new Timer());
+    }
+
+    /**
+     * @param name
+     * @param labels label names and values, alternating
+     * @return the counter, created on first use
+     */
+    public static Counter counter(String name, String... labels) {
+        return (Counter) metrics.computeIfAbsent(new Key(name, labels(labels)), k -> new Counter());
+    }
+
+    /**
+     * register a gauge read at every scrape, replacing any gauge with the same name and labels
+     */
+    public static void gauge(String name, Supplier<Number> value, String... labels) {
+        metrics.put(new Key(name, labels(labels)), new Gauge(value));
+    }
+
+    public static Counter cacheHits(String cache) {
+        return counter(CACHE_REQUESTS, "cache", cache, "result", "hit");
+    }
+
+    public static Counter cacheMisses(String cache) {
+        return counter(CACHE_REQUESTS, "cache", cache, "result", "miss");
+    }
+
+    /**
+     * @return all the metrics in the Prometheus text exposition format
+     */
+    public static String scrape() {
+        StringBuilder out = new StringBuilder();
+        String currentName = null;
+        for (Map.Entry<Key, Metric> entry : new TreeMap<>(metrics).entrySet()) {
+            Key key = entry.getKey();
+            if (!key.name.equals(currentName)) {
+                currentName = key.name;
+                out.append("# TYPE ").append(key.name).append(' ').append(entry.getValue().type()).append('\n');
+            }
+            entry.getValue().render(key.name, key.labels, out);
+        }
+        return out.toString();
+    }
+
+    /**
+     * drop all the metrics, only for tests
+     */
+    public static void clear() {
+        metrics.clear();
+    }
+
+    private static String labels(String... labels) {
+        if (labels == null || labels.length == 0)
+            return "";
+
+        List<String> pairs = new ArrayList<>();
+        for (int i = 0; i + 1 < labels.length; i += 2) {
+            pairs.add(labels[i] + "=\"" + escape(labels[i + 1]) + "\"");
+        }
+        return String.join(",", pairs);
+    }
+
+    private static String braces(String labels) {
+        return labels.isEmpty() ? "" : "{" + labels + "}";
+    }
+
+    private static String escape(String value) {
+        if (value == null)
+            return "";
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
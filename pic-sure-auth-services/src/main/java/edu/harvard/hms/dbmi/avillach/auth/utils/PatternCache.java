@@ -0,0 +1,52 @@
+package edu.harvard.hms.dbmi.avillach.auth.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * <p>A bounded, least-recently-used cache of compiled regular expressions.</p>
+ * <p>AccessRule regex values are few and reused by every compiled plan, so they
+ * should only be compiled once instead of by every {@link String#matches(String)} call.</p>
+ */
+public class PatternCache {
+
+    public static final int MAX_PATTERNS = 1000;
+
+    private static final Map<String, Pattern> patterns = new LinkedHashMap<String, Pattern>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Pattern> eldest) {
+            return size() > MAX_PATTERNS;
+        }
+    };
+
+    /**
+     * @param regex
+     * @return the compiled pattern
+     * @throws PatternSyntaxException if the regex is not valid, invalid patterns are not cached
+     */
+    public static Pattern compile(String regex) throws PatternSyntaxException {
+        synchronized (patterns) {
+            Pattern pattern = patterns.get(regex);
+            if (pattern == null) {
+                pattern = Pattern.compile(regex);
+                patterns.put(regex, pattern);
+            }
+            return pattern;
+        }
+    }
+
+    /**
+     * @param regex
+     * @return null if the regex is valid, otherwise the reason why it is not
+     */
+    public static String validate(String regex) {
+        try {
+            compile(regex);
+            return null;
+        } catch (PatternSyntaxException ex) {
+            return ex.getDescription() + " near index " + ex.getIndex();
+        }
+    }
+}
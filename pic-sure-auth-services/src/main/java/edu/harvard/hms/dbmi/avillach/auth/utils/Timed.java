@@ -0,0 +1,26 @@
+package edu.harvard.hms.dbmi.avillach.auth.utils;
+
+import javax.enterprise.util.Nonbinding;
+import javax.interceptor.InterceptorBinding;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Records the latency of every business method of the annotated bean in a {@link Metrics} timer,
+ * labeled by bean class and method.
+ *
+ * @see TimedInterceptor
+ */
+@InterceptorBinding
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.TYPE, ElementType.METHOD})
+public @interface Timed {
+
+    /**
+     * @return the name of the timer
+     */
+    @Nonbinding
+    String value();
+}
@@ -0,0 +1,54 @@
+package edu.harvard.hms.dbmi.avillach.auth.utils;
+
+import javax.annotation.Priority;
+import javax.interceptor.AroundInvoke;
+import javax.interceptor.Interceptor;
+import javax.interceptor.InvocationContext;
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * @see Timed
+ */
+@Timed("")
+@Interceptor
+@Priority(Interceptor.Priority.APPLICATION)
+public class TimedInterceptor {
+
+    /**
+     * by bean class, then method, so the label strings are only built once
+     */
+    private static final Map<Class<?>, Map<Method, Metrics.Timer>> timers = new ConcurrentHashMap<>();
+
+    @AroundInvoke
+    public Object time(InvocationContext context) throws Exception {
+        long start = System.nanoTime();
+        try {
+            return context.proceed();
+        } finally {
+            timer(context).recordSince(start);
+        }
+    }
+
+    private static Metrics.Timer timer(InvocationContext context) {
+        Class<?> beanClass = context.getTarget().getClass();
+        // the container subclasses the bean, the label is the class it has been written as
+        while (beanClass.getName().contains("$$") && beanClass.getSuperclass() != null) {
+            beanClass = beanClass.getSuperclass();
+        }
+        Class<?> labelClass = beanClass;
+
+        Method method = context.getMethod();
+        return timers.computeIfAbsent(beanClass, c -> new ConcurrentHashMap<>())
+                .computeIfAbsent(method, m -> Metrics.timer(name(labelClass, m),
+                        "class", labelClass.getSimpleName(), "method", m.getName()));
+    }
+
+    private static String name(Class<?> beanClass, Method method) {
+        Timed timed = method.getAnnotation(Timed.class);
+        if (timed == null)
+            timed = beanClass.getAnnotation(Timed.class);
+        return timed == null ? "psama_method_seconds" : timed.value();
+    }
+}
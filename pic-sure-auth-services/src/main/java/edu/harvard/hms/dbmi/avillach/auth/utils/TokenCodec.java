@@ -0,0 +1,205 @@
+package edu.harvard.hms.dbmi.avillach.auth.utils;
+
+import edu.harvard.hms.dbmi.avillach.auth.JAXRSConfiguration;
+import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.Jws;
+import io.jsonwebtoken.JwsHeader;
+import io.jsonwebtoken.JwtBuilder;
+import io.jsonwebtoken.JwtException;
+import io.jsonwebtoken.JwtParser;
+import io.jsonwebtoken.Jwts;
+import io.jsonwebtoken.SignatureAlgorithm;
+import io.jsonwebtoken.SignatureException;
+import io.jsonwebtoken.SigningKeyResolverAdapter;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.Key;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * <p>Signs and verifies PSAMA tokens with keys derived once from the client secret, instead of on every call.</p>
+ *
+ * Every token signed carries the id of its key in the <code>kid</code> header, so verifying it picks the key up front.
+ * The id is derived from the key, every node signing with the same secret uses the same id.
+ * <br>
+ * Tokens without a key id, signed before, or with a key id that isn't one of ours, are verified as they used to be:
+ * with the secret, then with the secret decoded if {@link JAXRSConfiguration#clientSecretIsBase64},
+ * the second try only being made if the decoded secret differs.
+ * <br>
+ * To rotate the secret, set the new client_secret and move the old one to
+ * {@link JAXRSConfiguration#previousClientSecrets}: new tokens are signed with the new secret, the ones signed
+ * with the old one stay valid until they expire.
+ * <br>
+ * A codec never changes once built, the parsers are only configured when it is, so they are shared by all threads.
+ * {@link JAXRSConfiguration#init()} builds the one in use.
+ */
+public class TokenCodec {
+
+    private static Logger logger = LoggerFactory.getLogger(TokenCodec.class);
+
+    private static final SignatureAlgorithm SIGNATURE_ALGORITHM = SignatureAlgorithm.HS256;
+
+    private static volatile TokenCodec current;
+
+    private final String clientSecret;
+
+    private final String keyId;
+    private final Key signingKey;
+
+    /**
+     * the keys of the current and previous secrets, by key id
+     */
+    private final Map<String, Key> keys = new HashMap<>();
+
+    /**
+     * verifies the tokens with a key id of ours, and tries the first legacy key on the others
+     */
+    private final JwtParser parser;
+
+    /**
+     * try the other legacy keys on the tokens without a key id of ours
+     */
+    private final List<JwtParser> legacyParsers = new ArrayList<>();
+
+    /**
+     * @param clientSecret the secret new tokens are signed with
+     * @param clientSecretIsBase64 whether tokens signed before key ids may have been signed with the decoded secret
+     * @param previousClientSecrets the secrets tokens may still have been signed with, may be empty
+     */
+    public TokenCodec(String clientSecret, boolean clientSecretIsBase64, List<String> previousClientSecrets) {
+        this.clientSecret = clientSecret;
+
+        List<byte[]> legacyKeys = new ArrayList<>();
+        List<String> secrets = new ArrayList<>();
+        secrets.add(clientSecret);
+        secrets.addAll(previousClientSecrets);
+        for (String secret : secrets) {
+            // tokens have always been signed with the bytes of the secret, in the platform encoding
+            byte[] key = secret.getBytes();
+            keys.putIfAbsent(keyId(key), new SecretKeySpec(key, SIGNATURE_ALGORITHM.getJcaName()));
+            addDistinct(legacyKeys, key);
+            addDistinct(legacyKeys, clientSecretIsBase64 ? Base64.decodeBase64(secret.getBytes(StandardCharsets.UTF_8))
+                    : secret.getBytes(StandardCharsets.UTF_8));
+        }
+
+        this.keyId = keyId(clientSecret.getBytes());
+        this.signingKey = keys.get(keyId);
+
+        Key firstLegacyKey = new SecretKeySpec(legacyKeys.get(0), SIGNATURE_ALGORITHM.getJcaName());
+        this.parser = Jwts.parser().setSigningKeyResolver(new SigningKeyResolverAdapter() {
+            @Override
+            public Key resolveSigningKey(JwsHeader header, Claims claims) {
+                Key key = header.getKeyId() == null ? null : keys.get(header.getKeyId());
+                return key != null ? key : firstLegacyKey;
+            }
+        });
+        for (byte[] legacyKey : legacyKeys.subList(1, legacyKeys.size())) {
+            Key otherLegacyKey = new SecretKeySpec(legacyKey, SIGNATURE_ALGORITHM.getJcaName());
+            legacyParsers.add(Jwts.parser().setSigningKeyResolver(new SigningKeyResolverAdapter() {
+                @Override
+                public Key resolveSigningKey(JwsHeader header, Claims claims) {
+                    // the key of a token with a key id of ours has already been tried
+                    if (header.getKeyId() != null && keys.containsKey(header.getKeyId()))
+                        throw new SignatureException("JWT signature does not match the key " + header.getKeyId());
+                    return otherLegacyKey;
+                }
+            }));
+        }
+    }
+
+    /**
+     * build the codec in use from {@link JAXRSConfiguration}
+     */
+    public static void initialize() {
+        current = fromConfiguration(JAXRSConfiguration.clientSecret);
+        logger.info("initialize() signing tokens with key " + current.keyId + ", verifying "
+                + current.keys.size() + " keys and " + (current.legacyParsers.size() + 1) + " without key id");
+    }
+
+    /**
+     * @param clientSecret
+     * @return the codec in use if it signs with this secret, otherwise a new one used only by the caller,
+     * which doesn't verify with the previous secrets
+     */
+    public static TokenCodec forSecret(String clientSecret) {
+        TokenCodec codec = current;
+        if (codec != null && Objects.equals(codec.clientSecret, clientSecret))
+            return codec;
+
+        if (codec == null && Objects.equals(clientSecret, JAXRSConfiguration.clientSecret)) {
+            initialize();
+            return current;
+        }
+
+        return new TokenCodec(clientSecret, clientSecretIsBase64(), Collections.emptyList());
+    }
+
+    private static TokenCodec fromConfiguration(String clientSecret) {
+        String previousClientSecrets = JAXRSConfiguration.previousClientSecrets;
+        List<String> previous = previousClientSecrets == null || previousClientSecrets.trim().isEmpty() ? Collections.emptyList()
+                : Arrays.asList(previousClientSecrets.trim().split("\\s*,\\s*"));
+        return new TokenCodec(clientSecret, clientSecretIsBase64(), previous);
+    }
+
+    private static boolean clientSecretIsBase64() {
+        return JAXRSConfiguration.clientSecretIsBase64 != null && JAXRSConfiguration.clientSecretIsBase64.startsWith("true");
+    }
+
+    public String getKeyId() {
+        return keyId;
+    }
+
+    /**
+     * @param builder with the claims of the token set
+     * @return the compact signed token
+     */
+    public String sign(JwtBuilder builder) {
+        return builder.setHeaderParam(JwsHeader.KEY_ID, keyId)
+                .signWith(SIGNATURE_ALGORITHM, signingKey)
+                .compact();
+    }
+
+    /**
+     * @param token
+     * @return the verified token
+     * @throws JwtException if the token is invalid, expired, or signed with none of the keys
+     * @throws IllegalArgumentException if the token is empty
+     */
+    public Jws<Claims> parse(String token) throws JwtException, IllegalArgumentException {
+        try {
+            return parser.parseClaimsJws(token);
+        } catch (SignatureException ex) {
+            for (JwtParser legacyParser : legacyParsers) {
+                try {
+                    return legacyParser.parseClaimsJws(token);
+                } catch (SignatureException legacyEx) {
+                    // try the next one
+                }
+            }
+            throw ex;
+        }
+    }
+
+    private static String keyId(byte[] key) {
+        return DigestUtils.sha256Hex(key).substring(0, 16);
+    }
+
+    private static void addDistinct(List<byte[]> keys, byte[] key) {
+        for (byte[] other : keys) {
+            if (Arrays.equals(other, key))
+                return;
+        }
+        keys.add(key);
+    }
+}
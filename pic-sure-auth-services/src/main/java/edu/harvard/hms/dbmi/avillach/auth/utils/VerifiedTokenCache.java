@@ -0,0 +1,131 @@
+package edu.harvard.hms.dbmi.avillach.auth.utils;
+
+import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.Jws;
+import io.jsonwebtoken.JwsHeader;
+import io.jsonwebtoken.Jwts;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>A bounded, least-recently-used cache of tokens whose signature has already been verified,
+ * keyed by a SHA-256 digest of the compact token, so the token itself is never kept.</p>
+ * <p>The same token is sent with every request of a page load, so the HMAC verification and the
+ * claims parsing only need to happen once. An entry is only returned until the token's
+ * expiration, and tokens without an expiration are not cached at all.</p>
+ * The claims are copied when a token is cached and every time it is returned, so a caller changing
+ * them never changes what the next request sees.
+ *
+ * @see AuthUtils#parseToken(String, String)
+ */
+public class VerifiedTokenCache {
+
+    public static final int MAX_TOKENS = 10000;
+
+    private static class VerifiedToken implements Jws<Claims> {
+        private final String clientSecret;
+        private final JwsHeader header;
+        private final Claims body;
+        private final String signature;
+        private final long expiresAt;
+
+        VerifiedToken(String clientSecret, JwsHeader header, Claims body, String signature, long expiresAt) {
+            this.clientSecret = clientSecret;
+            this.header = header;
+            this.body = body;
+            this.signature = signature;
+            this.expiresAt = expiresAt;
+        }
+
+        @SuppressWarnings("unchecked")
+        VerifiedToken copy() {
+            return new VerifiedToken(clientSecret, header, Jwts.claims((Map<String, Object>) copyOf(body)), signature, expiresAt);
+        }
+
+        @Override
+        public JwsHeader getHeader() {
+            return header;
+        }
+
+        @Override
+        public Claims getBody() {
+            return body;
+        }
+
+        @Override
+        public String getSignature() {
+            return signature;
+        }
+    }
+
+    private static final Metrics.Counter hits = Metrics.cacheHits("verified_token");
+    private static final Metrics.Counter misses = Metrics.cacheMisses("verified_token");
+
+    private static final Map<String, VerifiedToken> tokens = new LinkedHashMap<String, VerifiedToken>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, VerifiedToken> eldest) {
+            return size() > MAX_TOKENS;
+        }
+    };
+
+    /**
+     * @param clientSecret the secret the token has to be verified with
+     * @param token
+     * @return the parsed token, or null if it has not been verified with this secret or it has expired
+     */
+    public static Jws<Claims> get(String clientSecret, String token) {
+        String key = DigestUtils.sha256Hex(token);
+        synchronized (tokens) {
+            VerifiedToken verifiedToken = tokens.get(key);
+            if (verifiedToken != null && verifiedToken.expiresAt <= System.currentTimeMillis()) {
+                tokens.remove(key);
+                verifiedToken = null;
+            }
+
+            Jws<Claims> jws = verifiedToken != null && verifiedToken.clientSecret.equals(clientSecret) ? verifiedToken.copy() : null;
+            (jws == null ? misses : hits).increment();
+            return jws;
+        }
+    }
+
+    /**
+     * @param clientSecret the secret the token has been verified with
+     * @param token
+     * @param jws the result of the verification
+     */
+    public static void put(String clientSecret, String token, Jws<Claims> jws) {
+        Date expiration = jws.getBody() == null ? null : jws.getBody().getExpiration();
+        if (clientSecret == null || expiration == null)
+            return;
+
+        VerifiedToken verifiedToken = new VerifiedToken(clientSecret, jws.getHeader(), jws.getBody(), jws.getSignature(),
+                expiration.getTime()).copy();
+        String key = DigestUtils.sha256Hex(token);
+        synchronized (tokens) {
+            tokens.put(key, verifiedToken);
+        }
+    }
+
+    /**
+     * the claims are parsed from JSON, so they only nest maps and lists
+     */
+    @SuppressWarnings("unchecked")
+    private static Object copyOf(Object value) {
+        if (value instanceof Map) {
+            Map<String, Object> copy = new LinkedHashMap<>();
+            ((Map<String, Object>) value).forEach((name, nested) -> copy.put(name, copyOf(nested)));
+            return copy;
+        }
+        if (value instanceof List) {
+            List<Object> copy = new ArrayList<>();
+            ((List<Object>) value).forEach(nested -> copy.add(copyOf(nested)));
+            return copy;
+        }
+        return value;
+    }
+}
@@ -0,0 +1,97 @@
+package edu.harvard.hms.dbmi.avillach;
+
+import edu.harvard.hms.dbmi.avillach.auth.data.entity.User;
+import edu.harvard.hms.dbmi.avillach.auth.service.auth.AccessLogEvent;
+import edu.harvard.hms.dbmi.avillach.auth.service.auth.AccessLogWriter;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+public class AccessLogWriterTest {
+
+    private static AccessLogEvent event() {
+        User user = new User();
+        user.setUuid(UUID.randomUUID());
+        user.setEmail("user@example.com");
+        return new AccessLogEvent(user, "PICSURE", true, "the query", null,
+                "passed by", Collections.singletonList("AR_ALLOWED"), false);
+    }
+
+    private static AccessLogEvent event(Map<String, Object> request, List<String> rules) {
+        User user = new User();
+        user.setUuid(UUID.randomUUID());
+        return new AccessLogEvent(user, "PICSURE", false, null, request, "failed by rules", rules, false);
+    }
+
+    private static List<String> write(boolean json, AccessLogEvent event) {
+        List<String> lines = Collections.synchronizedList(new ArrayList<>());
+        AccessLogWriter accessLogWriter = new AccessLogWriter();
+        accessLogWriter.start(lines::add, 10, json);
+        Assert.assertTrue(accessLogWriter.log(event));
+        // waits for the queue to be drained
+        accessLogWriter.stop();
+
+        Assert.assertEquals(1, accessLogWriter.getWritten());
+        return lines;
+    }
+
+    @Test
+    public void testTextLines() {
+        AccessLogEvent event = event();
+
+        Assert.assertEquals(Collections.singletonList(event.toLogLine()), write(false, event));
+    }
+
+    @Test
+    public void testJsonLines() {
+        List<String> lines = write(true, event());
+
+        Assert.assertEquals(1, lines.size());
+        Assert.assertTrue(lines.get(0).startsWith("{"));
+        Assert.assertTrue(lines.get(0).contains("\"granted\":true"));
+        Assert.assertTrue(lines.get(0).contains("\"AR_ALLOWED\""));
+    }
+
+    @Test
+    public void testRequestCapturedWithTheEvent() {
+        Map<String, Object> request = new HashMap<>();
+        request.put("query", "first");
+        List<String> rules = new ArrayList<>(Collections.singletonList("AR_FAILED"));
+
+        AccessLogEvent event = event(request, rules);
+        request.put("query", "changed once captured");
+        rules.add("AR_ADDED");
+
+        Assert.assertEquals("{\"query\":\"first\"}", event.getQuery());
+        Assert.assertEquals(Collections.singletonList("AR_FAILED"), event.getRules());
+    }
+
+    @Test
+    public void testLongRequestIsCut() {
+        StringBuilder variants = new StringBuilder();
+        for (int i = 0; i < 100000; i++)
+            variants.append("chr1,").append(i).append(',');
+        Map<String, Object> request = new HashMap<>();
+        request.put("variants", variants.toString());
+
+        String query = event(request, null).getQuery();
+
+        Assert.assertTrue(query.length() < 5000);
+        Assert.assertTrue(query.startsWith("{\"variants\":\"chr1,0,chr1,1,"));
+        Assert.assertTrue(query.matches("(?s).*\\.\\.\\. \\(\\d+ characters, sha256 [0-9a-f]{64}\\)$"));
+    }
+
+    @Test
+    public void testDroppedWhenStopped() {
+        AccessLogWriter accessLogWriter = new AccessLogWriter();
+
+        Assert.assertFalse(accessLogWriter.log(event()));
+        Assert.assertEquals(1, accessLogWriter.getDropped());
+    }
+}
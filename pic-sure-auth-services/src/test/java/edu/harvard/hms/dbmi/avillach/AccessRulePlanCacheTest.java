@@ -0,0 +1,128 @@
+package edu.harvard.hms.dbmi.avillach;
+
+import edu.harvard.hms.dbmi.avillach.auth.data.entity.AccessRule;
+import edu.harvard.hms.dbmi.avillach.auth.data.entity.Privilege;
+import edu.harvard.hms.dbmi.avillach.auth.service.auth.AccessRulePlan;
+import edu.harvard.hms.dbmi.avillach.auth.service.auth.AccessRulePlanCache;
+import edu.harvard.hms.dbmi.avillach.auth.service.auth.CompiledAccessRule;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class AccessRulePlanCacheTest {
+
+    private Privilege privilege(String name){
+        Privilege privilege = new Privilege();
+        privilege.setUuid(UUID.randomUUID());
+        privilege.setName(name);
+
+        AccessRule accessRule = new AccessRule();
+        accessRule.setUuid(UUID.randomUUID());
+        accessRule.setName("AR_" + name);
+        accessRule.setRule("$.queries..resourceUUID");
+        accessRule.setType(AccessRule.TypeNaming.ALL_EQUALS);
+        accessRule.setValue(name);
+        privilege.setAccessRules(new HashSet<>(Collections.singletonList(accessRule)));
+        return privilege;
+    }
+
+    private AccessRulePlan compile(Set<Privilege> privileges){
+        List<CompiledAccessRule> compiled = new ArrayList<>();
+        for (Privilege privilege : privileges) {
+            for (AccessRule accessRule : privilege.getAccessRules()) {
+                compiled.add(CompiledAccessRule.compile(accessRule));
+            }
+        }
+        return new AccessRulePlan(compiled);
+    }
+
+    @Test
+    public void testPlanIsReusedForSamePrivilegeSet(){
+        AccessRulePlanCache cache = new AccessRulePlanCache();
+        Privilege privilegeA = privilege("A"), privilegeB = privilege("B");
+        AtomicInteger compilations = new AtomicInteger();
+
+        AccessRulePlan first = cache.getPlan(1, new HashSet<>(Arrays.asList(privilegeA, privilegeB)),
+                p -> { compilations.incrementAndGet(); return compile(p); });
+        AccessRulePlan second = cache.getPlan(1, new LinkedHashSet<>(Arrays.asList(privilegeB, privilegeA)),
+                p -> { compilations.incrementAndGet(); return compile(p); });
+
+        Assert.assertSame(first, second);
+        Assert.assertEquals(1, compilations.get());
+        Assert.assertEquals(2, first.getAccessRules().size());
+    }
+
+    @Test
+    public void testInvalidateAllRecompiles(){
+        AccessRulePlanCache cache = new AccessRulePlanCache();
+        Set<Privilege> privileges = new HashSet<>(Collections.singletonList(privilege("A")));
+
+        AccessRulePlan first = cache.getPlan(1, privileges, this::compile);
+        cache.invalidateAll();
+        AccessRulePlan second = cache.getPlan(1, privileges, this::compile);
+
+        Assert.assertNotSame(first, second);
+    }
+
+    @Test
+    public void testPlansFollowTheSnapshotVersion(){
+        AccessRulePlanCache cache = new AccessRulePlanCache();
+        Privilege privilege = privilege("A");
+        Set<Privilege> privileges = new HashSet<>(Collections.singletonList(privilege));
+
+        AccessRulePlan first = cache.getPlan(1, privileges, this::compile);
+
+        // the accessRule is edited in place, the privilege keeps its UUID
+        privilege.getAccessRules().iterator().next().setValue("edited");
+        AccessRulePlan edited = cache.getPlan(2, privileges, this::compile);
+        Assert.assertNotSame(first, edited);
+        Assert.assertEquals("edited", edited.getAccessRules().get(0).getValues().iterator().next());
+        Assert.assertSame(edited, cache.getPlan(2, privileges, this::compile));
+
+        // a request still holding the previous snapshot doesn't cache its plan
+        AccessRulePlan stale = cache.getPlan(1, privileges, this::compile);
+        Assert.assertNotSame(first, stale);
+        Assert.assertNotSame(stale, cache.getPlan(1, privileges, this::compile));
+        Assert.assertSame(edited, cache.getPlan(2, privileges, this::compile));
+    }
+
+    @Test
+    public void testCompiledRuleKeepsMergedValues(){
+        AccessRule accessRule = new AccessRule();
+        accessRule.setName("AR");
+        accessRule.setRule("$.queries..resourceUUID");
+        accessRule.setType(AccessRule.TypeNaming.ALL_EQUALS);
+        accessRule.setValue("a");
+        accessRule.getMergedValues().add("a");
+        accessRule.getMergedValues().add("b");
+        accessRule.setMergedName("Merged|AR|AR2");
+
+        CompiledAccessRule compiled = CompiledAccessRule.compile(accessRule);
+        accessRule.getMergedValues().add("c");
+
+        Assert.assertEquals("Merged|AR|AR2", compiled.getName());
+        Assert.assertEquals(new HashSet<>(Arrays.asList("a", "b")), new HashSet<>(compiled.getValues()));
+    }
+
+    @Test
+    public void testCheapRulesAreEvaluatedFirst(){
+        AccessRule regex = new AccessRule();
+        regex.setName("AR_REGEX");
+        regex.setRule("$..fields[*]");
+        regex.setType(AccessRule.TypeNaming.ALL_REG_MATCH);
+        regex.setValue(".*phs000001.*");
+
+        AccessRule isEmpty = new AccessRule();
+        isEmpty.setName("AR_EMPTY");
+        isEmpty.setRule("$.query.fields");
+        isEmpty.setType(AccessRule.TypeNaming.IS_EMPTY);
+
+        AccessRulePlan plan = new AccessRulePlan(Arrays.asList(
+                CompiledAccessRule.compile(regex), CompiledAccessRule.compile(isEmpty)));
+
+        Assert.assertEquals("AR_REGEX", plan.getAccessRules().get(0).getName());
+        Assert.assertEquals("AR_EMPTY", plan.getEvaluationOrder().get(0).getName());
+    }
+}
@@ -0,0 +1,124 @@
+package edu.harvard.hms.dbmi.avillach;
+
+import edu.harvard.hms.dbmi.avillach.auth.service.auth.AfterCommit;
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class AfterCommitTest {
+
+    /**
+     * a transaction on the current thread, committed or rolled back by the test
+     */
+    public static class Transaction implements TransactionSynchronizationRegistry {
+        private int status = Status.STATUS_NO_TRANSACTION;
+        private final List<Synchronization> synchronizations = new ArrayList<>();
+        private final Map<Object, Object> resources = new HashMap<>();
+
+        public void begin() {
+            status = Status.STATUS_ACTIVE;
+        }
+
+        public void commit() {
+            end(Status.STATUS_COMMITTED);
+        }
+
+        public void rollback() {
+            end(Status.STATUS_ROLLEDBACK);
+        }
+
+        private void end(int outcome) {
+            synchronizations.forEach(Synchronization::beforeCompletion);
+            status = Status.STATUS_NO_TRANSACTION;
+            synchronizations.forEach(synchronization -> synchronization.afterCompletion(outcome));
+            synchronizations.clear();
+            resources.clear();
+        }
+
+        @Override
+        public Object getTransactionKey() {
+            return status == Status.STATUS_NO_TRANSACTION ? null : this;
+        }
+
+        @Override
+        public void putResource(Object key, Object value) {
+            resources.put(key, value);
+        }
+
+        @Override
+        public Object getResource(Object key) {
+            return resources.get(key);
+        }
+
+        @Override
+        public void registerInterposedSynchronization(Synchronization sync) {
+            if (status != Status.STATUS_ACTIVE)
+                throw new IllegalStateException("no active transaction");
+            synchronizations.add(sync);
+        }
+
+        @Override
+        public int getTransactionStatus() {
+            return status;
+        }
+
+        @Override
+        public void setRollbackOnly() {
+            status = Status.STATUS_MARKED_ROLLBACK;
+        }
+
+        @Override
+        public boolean getRollbackOnly() {
+            return status == Status.STATUS_MARKED_ROLLBACK;
+        }
+    }
+
+    @Test
+    public void testRunsOnceCommitted() {
+        Transaction transaction = new Transaction();
+        AfterCommit afterCommit = new AfterCommit(transaction);
+        AtomicInteger runs = new AtomicInteger();
+
+        transaction.begin();
+        afterCommit.run(runs::incrementAndGet);
+        Assert.assertEquals("should wait for the commit", 0, runs.get());
+
+        transaction.commit();
+        Assert.assertEquals(1, runs.get());
+    }
+
+    @Test
+    public void testNeverRunsOnRollback() {
+        Transaction transaction = new Transaction();
+        AfterCommit afterCommit = new AfterCommit(transaction);
+        AtomicInteger runs = new AtomicInteger();
+
+        transaction.begin();
+        afterCommit.run(runs::incrementAndGet);
+        transaction.rollback();
+        Assert.assertEquals(0, runs.get());
+
+        transaction.begin();
+        transaction.setRollbackOnly();
+        afterCommit.run(runs::incrementAndGet);
+        transaction.rollback();
+        Assert.assertEquals(0, runs.get());
+    }
+
+    @Test
+    public void testRunsRightAwayWithoutTransaction() {
+        AtomicInteger runs = new AtomicInteger();
+
+        new AfterCommit(new Transaction()).run(runs::incrementAndGet);
+        new AfterCommit().run(runs::incrementAndGet);
+        Assert.assertEquals(2, runs.get());
+    }
+}
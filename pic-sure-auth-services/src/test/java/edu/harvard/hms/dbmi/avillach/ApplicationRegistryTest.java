@@ -0,0 +1,128 @@
+package edu.harvard.hms.dbmi.avillach;
+
+import edu.harvard.hms.dbmi.avillach.auth.data.entity.Application;
+import edu.harvard.hms.dbmi.avillach.auth.data.repository.ApplicationRepository;
+import edu.harvard.hms.dbmi.avillach.auth.security.ApplicationRegistry;
+import edu.harvard.hms.dbmi.avillach.auth.service.auth.EntityChanged;
+import edu.harvard.hms.dbmi.avillach.auth.service.auth.RevocationEpochs;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.UUID;
+
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ApplicationRegistryTest {
+
+    @Mock
+    ApplicationRepository applicationRepo;
+
+    @Mock
+    RevocationEpochs revocationEpochs;
+
+    @InjectMocks
+    ApplicationRegistry applicationRegistry = new ApplicationRegistry();
+
+    private UUID applicationId;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        when(revocationEpochs.isLoaded()).thenReturn(true);
+        applicationId = UUID.randomUUID();
+    }
+
+    private Application application(String token) {
+        Application application = new Application();
+        application.setUuid(applicationId);
+        application.setName("PICSURE");
+        application.setToken(token);
+        return application;
+    }
+
+    @Test
+    public void testRegisteredOnce() {
+        Application application = application("token");
+        when(applicationRepo.getById(applicationId)).thenReturn(application);
+
+        Assert.assertSame(application, applicationRegistry.get(applicationId).getApplication());
+        Assert.assertSame(application, applicationRegistry.get(applicationId).getApplication());
+
+        verify(applicationRepo, times(1)).getById(applicationId);
+        Assert.assertNull("no such application", applicationRegistry.get(UUID.randomUUID()));
+    }
+
+    @Test
+    public void testNotRegisteredUntilEpochsLoaded() {
+        when(revocationEpochs.isLoaded()).thenReturn(false);
+        when(applicationRepo.getById(applicationId)).thenReturn(application("token"));
+
+        Assert.assertTrue(applicationRegistry.get(applicationId).matchesToken("token"));
+        Assert.assertTrue(applicationRegistry.get(applicationId).matchesToken("token"));
+        verify(applicationRepo, times(2)).getById(applicationId);
+        Assert.assertNull("no such application", applicationRegistry.get(UUID.randomUUID()));
+
+        when(revocationEpochs.isLoaded()).thenReturn(true);
+        applicationRegistry.get(applicationId);
+        applicationRegistry.get(applicationId);
+        verify(applicationRepo, times(3)).getById(applicationId);
+    }
+
+    @Test
+    public void testReloadedOnceEpochMovesOn() {
+        when(applicationRepo.getById(applicationId)).thenReturn(application("token"));
+        Assert.assertTrue(applicationRegistry.get(applicationId).matchesToken("token"));
+
+        // the token has been refreshed on another node
+        when(applicationRepo.getById(applicationId)).thenReturn(application("refreshed token"));
+        when(revocationEpochs.getApplicationEpoch(applicationId)).thenReturn(1L);
+
+        ApplicationRegistry.RegisteredApplication registered = applicationRegistry.get(applicationId);
+        Assert.assertTrue(registered.matchesToken("refreshed token"));
+        Assert.assertFalse(registered.matchesToken("token"));
+        verify(applicationRepo, times(2)).getById(applicationId);
+
+        applicationRegistry.get(applicationId);
+        verify(applicationRepo, times(2)).getById(applicationId);
+    }
+
+    @Test
+    public void testReloadedOnceInvalidated() {
+        when(applicationRepo.getById(applicationId)).thenReturn(application("token"));
+        applicationRegistry.get(applicationId);
+
+        applicationRegistry.onEntityChanged(new EntityChanged(Application.class.getSimpleName(), applicationId, UUID.randomUUID()));
+        applicationRegistry.get(applicationId);
+
+        verify(applicationRepo, times(2)).getById(applicationId);
+    }
+
+    @Test
+    public void testTokenNotMatchingDigestIsRejected() {
+        when(applicationRepo.getById(applicationId)).thenReturn(application("token"));
+        ApplicationRegistry.RegisteredApplication registered = applicationRegistry.get(applicationId);
+
+        Assert.assertTrue(registered.matchesToken("token"));
+        Assert.assertFalse(registered.matchesToken("token "));
+        Assert.assertFalse(registered.matchesToken("another token"));
+        Assert.assertFalse(registered.matchesToken(null));
+    }
+
+    @Test
+    public void testApplicationWithoutDigest() {
+        // written before the digest column existed
+        Application application = application("token");
+        application.setTokenDigest(null);
+        when(applicationRepo.getById(applicationId)).thenReturn(application);
+
+        ApplicationRegistry.RegisteredApplication registered = applicationRegistry.get(applicationId);
+        Assert.assertTrue(registered.matchesToken("token"));
+        Assert.assertFalse(registered.matchesToken("another token"));
+    }
+}
@@ -3,6 +3,7 @@ package edu.harvard.hms.dbmi.avillach;
 import edu.harvard.hms.dbmi.avillach.auth.JAXRSConfiguration;
 import edu.harvard.hms.dbmi.avillach.auth.data.entity.Application;
 import edu.harvard.hms.dbmi.avillach.auth.rest.ApplicationService;
+import edu.harvard.hms.dbmi.avillach.auth.utils.AuthUtils;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
@@ -29,4 +30,19 @@ public class ApplicationServiceTest {
         Assert.assertNotNull("Token is null, given application: " + application.getUuid(), token);
         Assert.assertTrue("Token is too short",token.length() > 10);
     }
+
+    @Test
+    public void testTokenIsComparedByDigest(){
+        Application application = new Application();
+        application.setUuid(UUID.randomUUID());
+        application.setName("Testing Application");
+
+        String token = new ApplicationService().generateApplicationToken(application);
+        application.setToken(token);
+
+        Assert.assertEquals("Digest should have a fixed length", 32, application.getTokenDigest().length);
+        Assert.assertTrue(AuthUtils.matchesTokenDigest(token, application.getTokenDigest()));
+        Assert.assertFalse(AuthUtils.matchesTokenDigest(token + "x", application.getTokenDigest()));
+        Assert.assertFalse(AuthUtils.matchesTokenDigest(null, application.getTokenDigest()));
+    }
 }
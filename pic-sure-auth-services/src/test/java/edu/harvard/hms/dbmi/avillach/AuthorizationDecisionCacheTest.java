@@ -0,0 +1,92 @@
+package edu.harvard.hms.dbmi.avillach;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import edu.harvard.hms.dbmi.avillach.auth.JAXRSConfiguration;
+import edu.harvard.hms.dbmi.avillach.auth.data.entity.Application;
+import edu.harvard.hms.dbmi.avillach.auth.data.entity.User;
+import edu.harvard.hms.dbmi.avillach.auth.service.auth.AuthorizationDecisionCache;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.UUID;
+
+public class AuthorizationDecisionCacheTest {
+
+    private ObjectMapper mapper = new ObjectMapper();
+
+    private User user;
+    private Application application;
+
+    @Before
+    public void init() {
+        JAXRSConfiguration.decisionCacheEnabled = true;
+        JAXRSConfiguration.decisionCacheTTL = 60000;
+        JAXRSConfiguration.decisionCacheMaxSize = 100;
+
+        user = new User();
+        user.setUuid(UUID.randomUUID());
+        application = new Application();
+        application.setUuid(UUID.randomUUID());
+    }
+
+    @After
+    public void reset() {
+        JAXRSConfiguration.decisionCacheEnabled = false;
+    }
+
+    @Test
+    public void testKeyIgnoresMapKeyOrder() throws IOException {
+        AuthorizationDecisionCache cache = new AuthorizationDecisionCache();
+        Map request = mapper.readValue("{\"a\":\"1\",\"b\":{\"c\":[\"x\",\"y\"],\"d\":\"2\"}}", Map.class);
+        Map sameRequest = mapper.readValue("{\"b\":{\"d\":\"2\",\"c\":[\"x\",\"y\"]},\"a\":\"1\"}", Map.class);
+        Map otherRequest = mapper.readValue("{\"b\":{\"d\":\"2\",\"c\":[\"y\",\"x\"]},\"a\":\"1\"}", Map.class);
+
+        Assert.assertEquals(cache.key(user, application, request), cache.key(user, application, sameRequest));
+        Assert.assertNotEquals(cache.key(user, application, request), cache.key(user, application, otherRequest));
+    }
+
+    @Test
+    public void testDisabledCacheHasNoKey() {
+        JAXRSConfiguration.decisionCacheEnabled = false;
+        Assert.assertNull(new AuthorizationDecisionCache().key(user, application, Map.of("a", "1")));
+    }
+
+    @Test
+    public void testInvalidation() {
+        AuthorizationDecisionCache cache = new AuthorizationDecisionCache();
+        String key = cache.key(user, application, Map.of("a", "1"));
+
+        cache.put(key, cache.generation(), true, "passed by", Collections.singletonList("AR"));
+        Assert.assertTrue(cache.get(key).isAuthorized());
+
+        cache.invalidateUser(user.getUuid());
+        Assert.assertNull(cache.get(key));
+    }
+
+    @Test
+    public void testDecisionComputedBeforeInvalidationIsNotStored() {
+        AuthorizationDecisionCache cache = new AuthorizationDecisionCache();
+        String key = cache.key(user, application, Map.of("a", "1"));
+
+        long generation = cache.generation();
+        cache.invalidateAll();
+        cache.put(key, generation, true, "passed by", Collections.singletonList("AR"));
+
+        Assert.assertNull(cache.get(key));
+    }
+
+    @Test
+    public void testExpiredDecision() {
+        JAXRSConfiguration.decisionCacheTTL = -1;
+        AuthorizationDecisionCache cache = new AuthorizationDecisionCache();
+        String key = cache.key(user, application, Map.of("a", "1"));
+
+        cache.put(key, cache.generation(), false, "failed by rules", Collections.emptyList());
+        Assert.assertNull(cache.get(key));
+    }
+}
@@ -2,13 +2,26 @@ package edu.harvard.hms.dbmi.avillach;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import edu.harvard.hms.dbmi.avillach.auth.data.entity.AccessRule;
+import com.jayway.jsonpath.JsonPath;
+import edu.harvard.hms.dbmi.avillach.auth.data.entity.Application;
+import edu.harvard.hms.dbmi.avillach.auth.data.entity.Privilege;
+import edu.harvard.hms.dbmi.avillach.auth.data.entity.Role;
+import edu.harvard.hms.dbmi.avillach.auth.data.entity.User;
 import edu.harvard.hms.dbmi.avillach.auth.service.auth.AuthorizationService;
+import edu.harvard.hms.dbmi.avillach.auth.service.auth.CompiledAccessRule;
+import edu.harvard.hms.dbmi.avillach.auth.service.auth.EvaluationContext;
+import edu.harvard.hms.dbmi.avillach.auth.service.auth.EvaluationTrace;
+import edu.harvard.hms.dbmi.avillach.auth.service.auth.ParallelRuleEvaluator;
 import org.junit.Assert;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
@@ -383,6 +396,63 @@ public class AuthorizationServiceTest extends AuthorizationService{
                 mergedAccessRules.stream().findFirst().get()));
     }
 
+    /**
+     * merging works on detached copies, the incoming accessRules should never be changed,
+     * no matter how many times they are merged
+     *
+     * @throws IOException
+     */
+    @Test
+    public void testMerging_doesNotMutateAccessRules() throws IOException {
+        Set<AccessRule> inputAccessRules = new HashSet<>();
+        inputAccessRules.add(AR_Fields_ALL_AGE);
+        inputAccessRules.add(AR_Fields_ALL_SEX);
+
+        for (int i = 0; i < 3; i++) {
+            Set<AccessRule> mergedAccessRules = preProcessARBySortedKeys(inputAccessRules);
+            Assert.assertEquals(1, mergedAccessRules.size());
+            AccessRule merged = mergedAccessRules.stream().findFirst().get();
+            Assert.assertFalse(inputAccessRules.stream().anyMatch(ar -> ar == merged));
+            Assert.assertEquals(2, merged.getMergedValues().size());
+        }
+
+        Assert.assertTrue(AR_Fields_ALL_AGE.getMergedValues().isEmpty());
+        Assert.assertTrue(AR_Fields_ALL_SEX.getMergedValues().isEmpty());
+        Assert.assertEquals("", AR_Fields_ALL_AGE.getMergedName());
+        Assert.assertEquals("", AR_Fields_ALL_SEX.getMergedName());
+    }
+
+    /**
+     * regex values are compiled once, an invalid regex never matches instead of throwing,
+     * and ignore case contains works with the lowered needles
+     *
+     * @throws IOException
+     */
+    @Test
+    public void testRegexAndIgnoreCaseMatching() throws IOException {
+        AccessRule regex = new AccessRule();
+        regex.setUuid(UUID.randomUUID());
+        regex.setName("AR_regex");
+        regex.setRule("$.queries..resourceUUID");
+        regex.setType(AccessRule.TypeNaming.ALL_REG_MATCH);
+        regex.setValue("8694e3d4-.*");
+        Assert.assertTrue(evaluateAccessRule(mapper.readValue(sample_matchGate, Map.class), regex));
+
+        regex.setValue("8694e3d4-(");
+        Assert.assertFalse(evaluateAccessRule(mapper.readValue(sample_matchGate, Map.class), regex));
+
+        AccessRule ignoreCase = new AccessRule();
+        ignoreCase.setUuid(UUID.randomUUID());
+        ignoreCase.setName("AR_ignoreCase");
+        ignoreCase.setRule("$.queries..expectedResultType");
+        ignoreCase.setType(AccessRule.TypeNaming.ALL_CONTAINS_IGNORE_CASE);
+        ignoreCase.setValue("DataFrame");
+        Assert.assertTrue(evaluateAccessRule(mapper.readValue(sample_matchGate, Map.class), ignoreCase));
+
+        ignoreCase.setType(AccessRule.TypeNaming.NOT_CONTAINS_IGNORE_CASE);
+        Assert.assertFalse(evaluateAccessRule(mapper.readValue(sample_matchGate, Map.class), ignoreCase));
+    }
+
     /**
      * AccessRule rule isEmpty and isNotEmpty are special cases,
      * we should have a test case especially for it
@@ -457,4 +527,221 @@ public class AuthorizationServiceTest extends AuthorizationService{
 
     }
 
+    /**
+     * a gate shared by two accessRules is only evaluated by the first one for the same request
+     */
+    @Test
+    public void testSharedGateIsEvaluatedOnce() throws IOException {
+        Set<AccessRule> gates = new HashSet<>();
+        gates.add(GATE_resouceUUID);
+
+        AccessRule first = new AccessRule();
+        first.setUuid(UUID.randomUUID());
+        first.setName("AR_first");
+        first.setRule("$.queries..query.expectedResultType");
+        first.setType(AccessRule.TypeNaming.ALL_EQUALS);
+        first.setValue("COUNT");
+        first.setGates(gates);
+
+        AccessRule second = new AccessRule();
+        second.setUuid(UUID.randomUUID());
+        second.setName("AR_second");
+        second.setRule("$.queries..query.expectedResultType");
+        second.setType(AccessRule.TypeNaming.ALL_EQUALS);
+        second.setValue("DATAFRAME");
+        second.setGates(gates);
+
+        CompiledAccessRule compiledFirst = CompiledAccessRule.compile(first);
+        CompiledAccessRule compiledSecond = CompiledAccessRule.compile(second);
+        EvaluationContext context = new EvaluationContext(JsonPath.parse(mapper.readValue(sample_matchGate, Map.class)));
+
+        Assert.assertFalse(compiledFirst.evaluate(context, null));
+        Assert.assertTrue(compiledSecond.evaluate(context, null));
+
+        // no evaluation observed leaves the pass rate at even odds
+        Assert.assertEquals(2.0 / 3, compiledFirst.getGates().get(0).getPassRate(), 0.0001);
+        Assert.assertEquals(0.5, compiledSecond.getGates().get(0).getPassRate(), 0.0001);
+    }
+
+    @Test
+    public void testParallelEvaluationFindsPassingRule() throws IOException {
+        List<CompiledAccessRule> accessRules = new ArrayList<>();
+        for (String resultType : new String[]{"COUNT", "CROSS_COUNT", "INFO_COLUMN_LISTING", "DATAFRAME", "VARIANT_COUNT"}) {
+            AccessRule accessRule = new AccessRule();
+            accessRule.setUuid(UUID.randomUUID());
+            accessRule.setName("AR_" + resultType);
+            accessRule.setRule("$.queries..query.expectedResultType");
+            accessRule.setType(AccessRule.TypeNaming.ALL_EQUALS);
+            accessRule.setValue(resultType);
+            accessRules.add(CompiledAccessRule.compile(accessRule));
+        }
+
+        ParallelRuleEvaluator parallelEvaluator = new ParallelRuleEvaluator();
+        parallelEvaluator.start(3, 0);
+        try {
+            ParallelRuleEvaluator.Outcome outcome = parallelEvaluator.evaluate(accessRules,
+                    new EvaluationContext(JsonPath.parse(mapper.readValue(sample_matchGate, Map.class))));
+            Assert.assertEquals("AR_DATAFRAME", outcome.getPassedBy().getName());
+            Assert.assertFalse(outcome.getFailedRules().contains("AR_DATAFRAME"));
+
+            outcome = parallelEvaluator.evaluate(accessRules.subList(0, 3),
+                    new EvaluationContext(JsonPath.parse(mapper.readValue(sample_matchGate, Map.class))));
+            Assert.assertNull(outcome.getPassedBy());
+            Assert.assertEquals(3, outcome.getFailedRules().size());
+        } finally {
+            parallelEvaluator.stop();
+        }
+    }
+
+    @Test
+    public void testParallelEvaluationFindsPassingRuleInLaterGroup() throws IOException {
+        // with two groups, the first one gets AR_0 and AR_2, the second one AR_1 and AR_3
+        List<CompiledAccessRule> accessRules = new ArrayList<>();
+        String[] resultTypes = {"COUNT", "DATAFRAME", "CROSS_COUNT", "VARIANT_COUNT"};
+        for (int i = 0; i < resultTypes.length; i++) {
+            accessRules.add(CompiledAccessRule.compile(accessRule("AR_" + i, "$.queries..query.expectedResultType",
+                    AccessRule.TypeNaming.ALL_EQUALS, resultTypes[i])));
+        }
+
+        ParallelRuleEvaluator parallelEvaluator = new ParallelRuleEvaluator();
+        parallelEvaluator.start(2, 0);
+        try {
+            for (int run = 0; run < 20; run++) {
+                ParallelRuleEvaluator.Outcome outcome = parallelEvaluator.evaluate(accessRules,
+                        new EvaluationContext(JsonPath.parse(mapper.readValue(sample_matchGate, Map.class))));
+
+                Assert.assertEquals("AR_1", outcome.getPassedBy().getName());
+                Assert.assertFalse(outcome.getFailedRules().contains("AR_1"));
+                Assert.assertFalse("evaluated after the pass by its group", outcome.getFailedRules().contains("AR_3"));
+                // the first group may have been stopped before any of its accessRules, but never reports one twice
+                Assert.assertTrue(Arrays.asList("AR_0", "AR_2").containsAll(outcome.getFailedRules()));
+                Assert.assertEquals(new HashSet<>(outcome.getFailedRules()).size(), outcome.getFailedRules().size());
+            }
+        } finally {
+            parallelEvaluator.stop();
+        }
+    }
+
+    private static AccessRule accessRule(String name, String rule, int type, String value) {
+        AccessRule accessRule = new AccessRule();
+        accessRule.setUuid(UUID.randomUUID());
+        accessRule.setName(name);
+        accessRule.setRule(rule);
+        accessRule.setType(type);
+        accessRule.setValue(value);
+        return accessRule;
+    }
+
+    /**
+     * authorize a user holding one privilege with the accessRules, tracing the evaluation
+     */
+    private boolean isAuthorizedTraced(String request, EvaluationTrace trace, AccessRule... accessRules) throws IOException {
+        Application application = new Application();
+        application.setUuid(UUID.randomUUID());
+        application.setName("PICSURE");
+
+        Privilege privilege = new Privilege();
+        privilege.setUuid(UUID.randomUUID());
+        privilege.setName("PRIV_TRACED");
+        privilege.setApplication(application);
+        privilege.setAccessRules(new HashSet<>(Arrays.asList(accessRules)));
+
+        Role role = new Role();
+        role.setUuid(UUID.randomUUID());
+        role.setName("ROLE_TRACED");
+        role.setPrivileges(Collections.singleton(privilege));
+
+        User user = new User();
+        user.setUuid(UUID.randomUUID());
+        user.setRoles(Collections.singleton(role));
+
+        return isAuthorized(application, mapper.readValue(request, Map.class), user, trace);
+    }
+
+    private static EvaluationTrace.Node node(EvaluationTrace trace, String name) {
+        return trace.getNodes().stream().filter(node -> name.equals(node.getName())).findFirst().orElse(null);
+    }
+
+    @Test
+    public void testTraceRecordsNodesAndMatches() throws IOException {
+        AccessRule accessRule = accessRule("AR_traced", "$.queries..query.expectedResultType",
+                AccessRule.TypeNaming.ALL_EQUALS, "DATAFRAME");
+        accessRule.setGates(new HashSet<>(Collections.singletonList(accessRule("GATE_traced", "$.queries..resourceUUID",
+                AccessRule.TypeNaming.ALL_EQUALS, "8694e3d4-5cb4-410f-8431-993445e6d3f6"))));
+        accessRule.setSubAccessRule(new HashSet<>(Collections.singletonList(accessRule("SUB_traced", "$.queries..resourceUUID",
+                AccessRule.TypeNaming.ALL_CONTAINS, "8694e3d4"))));
+
+        EvaluationTrace trace = new EvaluationTrace();
+        Assert.assertTrue(isAuthorizedTraced(sample_matchGate, trace, accessRule));
+
+        Assert.assertTrue(trace.isGranted());
+        Assert.assertNull(trace.getShortCircuit());
+        Assert.assertEquals(1, trace.getAccessRules().size());
+        Assert.assertEquals(3, trace.getNodes().size());
+
+        EvaluationTrace.Node traced = trace.getAccessRules().get(0);
+        Assert.assertEquals("AR_traced", traced.getName());
+        Assert.assertEquals(EvaluationTrace.ACCESS_RULE, traced.getKind());
+        Assert.assertTrue(traced.isPassed());
+        Assert.assertEquals(Integer.valueOf(1), traced.getMatches());
+        Assert.assertNull(traced.getShortCircuit());
+        Assert.assertEquals(2, traced.getChildren().size());
+
+        EvaluationTrace.Node gate = node(trace, "GATE_traced");
+        Assert.assertEquals(EvaluationTrace.GATE, gate.getKind());
+        Assert.assertTrue(gate.isPassed());
+        Assert.assertEquals(Integer.valueOf(1), gate.getMatches());
+
+        EvaluationTrace.Node subAccessRule = node(trace, "SUB_traced");
+        Assert.assertEquals(EvaluationTrace.SUB_ACCESS_RULE, subAccessRule.getKind());
+        Assert.assertTrue(subAccessRule.isPassed());
+        Assert.assertEquals(Integer.valueOf(1), subAccessRule.getMatches());
+    }
+
+    @Test
+    public void testTraceRecordsShortCircuits() throws IOException {
+        AccessRule gateFails = accessRule("AR_gate_fails", "$.queries..query.expectedResultType",
+                AccessRule.TypeNaming.ALL_EQUALS, "DATAFRAME");
+        gateFails.setGates(new HashSet<>(Collections.singletonList(accessRule("GATE_other_resource", "$.queries..resourceUUID",
+                AccessRule.TypeNaming.ALL_EQUALS, "another resource"))));
+
+        AccessRule ruleFails = accessRule("AR_rule_fails", "$.queries..query.expectedResultType",
+                AccessRule.TypeNaming.ALL_EQUALS, "COUNT");
+        ruleFails.setSubAccessRule(new HashSet<>(Arrays.asList(
+                accessRule("SUB_first", "$.queries..resourceUUID", AccessRule.TypeNaming.IS_NOT_EMPTY, null),
+                accessRule("SUB_second", "$.queries..query", AccessRule.TypeNaming.IS_NOT_EMPTY, null))));
+
+        EvaluationTrace trace = new EvaluationTrace();
+        Assert.assertFalse(isAuthorizedTraced(sample_matchGate, trace, gateFails, ruleFails));
+
+        Assert.assertFalse(trace.isGranted());
+        Assert.assertNull("every accessRule has been evaluated", trace.getShortCircuit());
+        Assert.assertEquals(2, trace.getAccessRules().size());
+
+        EvaluationTrace.Node gated = node(trace, "AR_gate_fails");
+        Assert.assertFalse(gated.isPassed());
+        Assert.assertEquals("gate GATE_other_resource failed, 0 gates and the rule skipped", gated.getShortCircuit());
+        Assert.assertNull("the rule has not been read", gated.getMatches());
+        Assert.assertEquals(1, gated.getChildren().size());
+        Assert.assertFalse(node(trace, "GATE_other_resource").isPassed());
+        Assert.assertEquals(Integer.valueOf(1), node(trace, "GATE_other_resource").getMatches());
+
+        EvaluationTrace.Node failed = node(trace, "AR_rule_fails");
+        Assert.assertFalse(failed.isPassed());
+        Assert.assertEquals("rule failed, 2 subAccessRules skipped", failed.getShortCircuit());
+        Assert.assertEquals(Integer.valueOf(1), failed.getMatches());
+        Assert.assertTrue(failed.getChildren().isEmpty());
+        Assert.assertNull(node(trace, "SUB_first"));
+
+        // the first accessRule passing cuts the evaluation of the others short
+        trace = new EvaluationTrace();
+        Assert.assertTrue(isAuthorizedTraced(sample_matchGate, trace,
+                accessRule("AR_first", "$.queries..query.expectedResultType", AccessRule.TypeNaming.ALL_EQUALS, "DATAFRAME"),
+                accessRule("AR_second", "$.queries..query.expectedResultType", AccessRule.TypeNaming.ALL_EQUALS, "DATAFRAME")));
+
+        Assert.assertEquals(1, trace.getAccessRules().size());
+        Assert.assertEquals("passed by " + trace.getAccessRules().get(0).getName() + ", 1 accessRules skipped",
+                trace.getShortCircuit());
+    }
+
 }
@@ -0,0 +1,97 @@
+package edu.harvard.hms.dbmi.avillach;
+
+import edu.harvard.hms.dbmi.avillach.auth.data.entity.Privilege;
+import edu.harvard.hms.dbmi.avillach.auth.data.entity.Role;
+import edu.harvard.hms.dbmi.avillach.auth.data.repository.PrivilegeRepository;
+import edu.harvard.hms.dbmi.avillach.auth.data.repository.RoleRepository;
+import edu.harvard.hms.dbmi.avillach.auth.service.auth.AfterCommit;
+import edu.harvard.hms.dbmi.avillach.auth.service.auth.AuthorizationSnapshot;
+import edu.harvard.hms.dbmi.avillach.auth.service.auth.AuthorizationSnapshotHolder;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.Spy;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.mockito.Mockito.when;
+
+public class AuthorizationSnapshotHolderTest {
+
+    AfterCommitTest.Transaction transaction = new AfterCommitTest.Transaction();
+
+    @Mock
+    RoleRepository roleRepo;
+
+    @Mock
+    PrivilegeRepository privilegeRepo;
+
+    @Spy
+    AfterCommit afterCommit = new AfterCommit(transaction);
+
+    @InjectMocks
+    AuthorizationSnapshotHolder holder = new AuthorizationSnapshotHolder();
+
+    List<Role> roles = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        when(roleRepo.list()).thenAnswer(invocation -> new ArrayList<>(roles));
+        when(privilegeRepo.list()).thenReturn(new ArrayList<Privilege>());
+    }
+
+    private Role addRole() {
+        Role role = new Role();
+        role.setUuid(UUID.randomUUID());
+        role.setName("role");
+        roles.add(role);
+        return role;
+    }
+
+    @Test
+    public void testRolledBackChangeLeavesSnapshotUnchanged() {
+        AuthorizationSnapshot before = holder.get();
+
+        transaction.begin();
+        Role role = addRole();
+        holder.refresh();
+        transaction.rollback();
+        // the change never reached the database
+        roles.remove(role);
+
+        Assert.assertSame(before, holder.get());
+        Assert.assertFalse(holder.get().hasRole(role.getUuid()));
+    }
+
+    @Test
+    public void testCommittedChangeIsSeenOnlyAfterCommit() {
+        AuthorizationSnapshot before = holder.get();
+
+        transaction.begin();
+        Role role = addRole();
+        holder.refresh();
+        Assert.assertSame(before, holder.get());
+
+        transaction.commit();
+        AuthorizationSnapshot after = holder.get();
+        Assert.assertTrue(after.getVersion() > before.getVersion());
+        Assert.assertTrue(after.hasRole(role.getUuid()));
+    }
+
+    @Test
+    public void testRefreshWithoutTransaction() {
+        AuthorizationSnapshot before = holder.get();
+
+        Role role = addRole();
+        holder.refresh();
+
+        Assert.assertNotSame(before, holder.get());
+        Assert.assertTrue(holder.get().hasRole(role.getUuid()));
+    }
+}
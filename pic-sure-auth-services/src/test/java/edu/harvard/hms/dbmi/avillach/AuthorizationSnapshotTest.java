@@ -0,0 +1,113 @@
+package edu.harvard.hms.dbmi.avillach;
+
+import edu.harvard.hms.dbmi.avillach.auth.data.entity.*;
+import edu.harvard.hms.dbmi.avillach.auth.service.auth.AuthorizationSnapshot;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+
+public class AuthorizationSnapshotTest {
+
+    private Application picsure, other;
+    private Privilege picsurePrivilegeA, picsurePrivilegeB, otherPrivilege;
+    private Role roleA, roleB;
+
+    private Application application(String name){
+        Application application = new Application();
+        application.setUuid(UUID.randomUUID());
+        application.setName(name);
+        return application;
+    }
+
+    private Privilege privilege(String name, Application application){
+        Privilege privilege = new Privilege();
+        privilege.setUuid(UUID.randomUUID());
+        privilege.setName(name);
+        privilege.setApplication(application);
+
+        AccessRule accessRule = new AccessRule();
+        accessRule.setUuid(UUID.randomUUID());
+        accessRule.setName("AR_" + name);
+        accessRule.setRule("$.queries..resourceUUID");
+        accessRule.setType(AccessRule.TypeNaming.ALL_EQUALS);
+        accessRule.setValue(name);
+        privilege.setAccessRules(new HashSet<>(Collections.singletonList(accessRule)));
+        return privilege;
+    }
+
+    private Role role(String name, Privilege... privileges){
+        Role role = new Role();
+        role.setUuid(UUID.randomUUID());
+        role.setName(name);
+        role.setPrivileges(new HashSet<>(Arrays.asList(privileges)));
+        return role;
+    }
+
+    private User user(Role... roles){
+        User user = new User();
+        user.setUuid(UUID.randomUUID());
+        user.setRoles(new HashSet<>(Arrays.asList(roles)));
+        return user;
+    }
+
+    @Before
+    public void init(){
+        picsure = application("PICSURE");
+        other = application("OTHER");
+        picsurePrivilegeA = privilege("PIC_A", picsure);
+        picsurePrivilegeB = privilege("PIC_B", picsure);
+        otherPrivilege = privilege("OTHER_A", other);
+        roleA = role("ROLE_A", picsurePrivilegeA, otherPrivilege);
+        roleB = role("ROLE_B", picsurePrivilegeB);
+    }
+
+    @Test
+    public void testPrivilegesByApplication(){
+        AuthorizationSnapshot snapshot = AuthorizationSnapshot.build(1, Arrays.asList(roleA, roleB),
+                Arrays.asList(picsurePrivilegeA, picsurePrivilegeB, otherPrivilege));
+        User user = user(roleA, roleB);
+
+        Assert.assertEquals(new HashSet<>(Arrays.asList("PIC_A", "PIC_B")),
+                snapshot.getPrivilegeNameSetByApplication(user, picsure));
+        Assert.assertEquals(Collections.singleton("OTHER_A"), snapshot.getPrivilegeNameSetByApplication(user, other));
+        Assert.assertEquals(3, snapshot.getTotalPrivilege(user).size());
+        Assert.assertTrue(snapshot.hasApplicationPrivileges(picsure));
+        Assert.assertFalse(snapshot.hasApplicationPrivileges(application("EMPTY")));
+    }
+
+    @Test
+    public void testSnapshotHoldsCopies(){
+        AuthorizationSnapshot snapshot = AuthorizationSnapshot.build(1, Collections.singletonList(roleA),
+                Arrays.asList(picsurePrivilegeA, otherPrivilege));
+        User user = user(roleA);
+
+        Privilege copy = snapshot.getPrivilegesByApplication(user, picsure).iterator().next();
+        Assert.assertNotSame(picsurePrivilegeA, copy);
+        Assert.assertEquals(picsurePrivilegeA.getUuid(), copy.getUuid());
+
+        picsurePrivilegeA.getAccessRules().clear();
+        Assert.assertEquals(1, copy.getAccessRules().size());
+    }
+
+    @Test
+    public void testSameRolesShareIndex(){
+        AuthorizationSnapshot snapshot = AuthorizationSnapshot.build(1, Arrays.asList(roleA, roleB),
+                Arrays.asList(picsurePrivilegeA, picsurePrivilegeB, otherPrivilege));
+
+        Assert.assertSame(snapshot.getEffectivePrivileges(user(roleA, roleB)),
+                snapshot.getEffectivePrivileges(user(roleB, roleA)));
+        Assert.assertTrue(snapshot.getEffectivePrivileges(user(roleA)).getPrivileges(UUID.randomUUID()).isEmpty());
+    }
+
+    @Test
+    public void testRoleUnknownToSnapshot(){
+        AuthorizationSnapshot snapshot = AuthorizationSnapshot.build(1, Collections.singletonList(roleA),
+                Arrays.asList(picsurePrivilegeA, otherPrivilege));
+        User user = user(roleA, roleB);
+
+        Assert.assertEquals(new HashSet<>(Arrays.asList("PIC_A", "PIC_B")),
+                snapshot.getPrivilegeNameSetByApplication(user, picsure));
+    }
+}
@@ -0,0 +1,114 @@
+package edu.harvard.hms.dbmi.avillach;
+
+import edu.harvard.hms.dbmi.avillach.auth.data.entity.Role;
+import edu.harvard.hms.dbmi.avillach.auth.service.auth.EntityChanged;
+import edu.harvard.hms.dbmi.avillach.auth.service.auth.InvalidationBus;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class InvalidationBusTest {
+
+    private static final byte[] KEY = InvalidationBus.PeerTransport.deriveKey("secret");
+
+    private InvalidationBus.PeerTransport sender;
+    private InvalidationBus.PeerTransport receiver;
+
+    @After
+    public void stop() {
+        if (sender != null)
+            sender.stop();
+        if (receiver != null)
+            receiver.stop();
+    }
+
+    private BlockingQueue<EntityChanged> startReceiver(int receiverPort, int peerPort) throws IOException {
+        BlockingQueue<EntityChanged> received = new LinkedBlockingQueue<>();
+        receiver = new InvalidationBus.PeerTransport(receiverPort,
+                Collections.singletonList(InetSocketAddress.createUnresolved("localhost", peerPort)), KEY);
+        receiver.start(received::add);
+        return received;
+    }
+
+    private void startSender(int senderPort, int receiverPort, byte[] key) throws IOException {
+        sender = new InvalidationBus.PeerTransport(senderPort,
+                Collections.singletonList(InetSocketAddress.createUnresolved("localhost", receiverPort)), key);
+        sender.start(event -> {});
+    }
+
+    @Test
+    public void testPeerTransportDeliversChanges() throws IOException, InterruptedException {
+        int senderPort = freePort(), receiverPort = freePort();
+        BlockingQueue<EntityChanged> received = startReceiver(receiverPort, senderPort);
+        startSender(senderPort, receiverPort, KEY);
+
+        UUID role = UUID.randomUUID(), origin = UUID.randomUUID();
+        sender.send(new EntityChanged(Role.class.getSimpleName(), role, origin));
+        sender.send(new EntityChanged(Role.class.getSimpleName(), null, origin));
+
+        EntityChanged changed = received.poll(5, TimeUnit.SECONDS);
+        Assert.assertNotNull(changed);
+        Assert.assertTrue(changed.is(Role.class));
+        Assert.assertEquals(role, changed.getUuid());
+        Assert.assertEquals(origin, changed.getOrigin());
+
+        changed = received.poll(5, TimeUnit.SECONDS);
+        Assert.assertNotNull(changed);
+        Assert.assertNull("every role may have changed", changed.getUuid());
+    }
+
+    @Test
+    public void testPeerTransportDropsChangesNotFromPeers() throws IOException, InterruptedException {
+        int senderPort = freePort(), receiverPort = freePort(), peerPort = freePort();
+        BlockingQueue<EntityChanged> received = startReceiver(receiverPort, peerPort);
+        // signed with the right key, but not sent from the port of a peer
+        startSender(senderPort, receiverPort, KEY);
+
+        sender.send(new EntityChanged(Role.class.getSimpleName(), UUID.randomUUID(), UUID.randomUUID()));
+
+        Assert.assertNull(received.poll(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testPeerTransportDropsUnsignedChanges() throws IOException, InterruptedException {
+        int senderPort = freePort(), receiverPort = freePort();
+        BlockingQueue<EntityChanged> received = startReceiver(receiverPort, senderPort);
+
+        // sent from the port of the peer, but without the key
+        try (DatagramSocket socket = new DatagramSocket(senderPort)) {
+            byte[] unsigned = ("Role * " + UUID.randomUUID()).getBytes(StandardCharsets.UTF_8);
+            socket.send(new DatagramPacket(unsigned, unsigned.length, new InetSocketAddress("localhost", receiverPort)));
+        }
+        startSender(senderPort, receiverPort, InvalidationBus.PeerTransport.deriveKey("another secret"));
+        sender.send(new EntityChanged(Role.class.getSimpleName(), UUID.randomUUID(), UUID.randomUUID()));
+
+        Assert.assertNull(received.poll(1, TimeUnit.SECONDS));
+
+        // the peer still gets through once it has the key
+        sender.stop();
+        startSender(senderPort, receiverPort, KEY);
+        UUID role = UUID.randomUUID();
+        sender.send(new EntityChanged(Role.class.getSimpleName(), role, UUID.randomUUID()));
+
+        EntityChanged changed = received.poll(5, TimeUnit.SECONDS);
+        Assert.assertNotNull(changed);
+        Assert.assertEquals(role, changed.getUuid());
+    }
+
+    private static int freePort() throws IOException {
+        try (DatagramSocket socket = new DatagramSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package edu.harvard.hms.dbmi.avillach;
+
+import edu.harvard.hms.dbmi.avillach.auth.utils.Metrics;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class MetricsTest {
+
+    @After
+    public void cleanUp(){
+        Metrics.clear();
+    }
+
+    @Test
+    public void testTimerBuckets(){
+        Metrics.Timer timer = Metrics.timer("test_seconds", "phase", "evaluation");
+        timer.record(TimeUnit.MICROSECONDS.toNanos(300));
+        timer.record(TimeUnit.MILLISECONDS.toNanos(20));
+        timer.record(TimeUnit.SECONDS.toNanos(30));
+
+        String scrape = Metrics.scrape();
+        Assert.assertTrue(scrape.contains("# TYPE test_seconds histogram\n"));
+        Assert.assertTrue(scrape.contains("test_seconds_bucket{phase=\"evaluation\",le=\"5.0E-4\"} 1\n"));
+        Assert.assertTrue(scrape.contains("test_seconds_bucket{phase=\"evaluation\",le=\"0.025\"} 2\n"));
+        Assert.assertTrue(scrape.contains("test_seconds_bucket{phase=\"evaluation\",le=\"10.0\"} 2\n"));
+        Assert.assertTrue(scrape.contains("test_seconds_bucket{phase=\"evaluation\",le=\"+Inf\"} 3\n"));
+        Assert.assertTrue(scrape.contains("test_seconds_count{phase=\"evaluation\"} 3\n"));
+        Assert.assertEquals(3, timer.getCount());
+    }
+
+    @Test
+    public void testCacheCounters(){
+        Metrics.cacheHits("test").increment();
+        Metrics.cacheHits("test").increment();
+        Metrics.cacheMisses("test").increment();
+
+        String scrape = Metrics.scrape();
+        Assert.assertTrue(scrape.contains("# TYPE " + Metrics.CACHE_REQUESTS + " counter\n"));
+        Assert.assertTrue(scrape.contains(Metrics.CACHE_REQUESTS + "{cache=\"test\",result=\"hit\"} 2\n"));
+        Assert.assertTrue(scrape.contains(Metrics.CACHE_REQUESTS + "{cache=\"test\",result=\"miss\"} 1\n"));
+        // the type is only written once per name
+        Assert.assertEquals(scrape.indexOf("# TYPE " + Metrics.CACHE_REQUESTS), scrape.lastIndexOf("# TYPE " + Metrics.CACHE_REQUESTS));
+    }
+
+    @Test
+    public void testGaugeAndEscaping(){
+        Metrics.gauge("test_gauge", () -> 42, "name", "a \"quoted\" value");
+
+        Assert.assertTrue(Metrics.scrape().contains("test_gauge{name=\"a \\\"quoted\\\" value\"} 42\n"));
+    }
+}
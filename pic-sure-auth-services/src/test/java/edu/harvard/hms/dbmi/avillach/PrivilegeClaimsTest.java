@@ -0,0 +1,160 @@
+package edu.harvard.hms.dbmi.avillach;
+
+import edu.harvard.hms.dbmi.avillach.auth.JAXRSConfiguration;
+import edu.harvard.hms.dbmi.avillach.auth.data.entity.Role;
+import edu.harvard.hms.dbmi.avillach.auth.data.entity.User;
+import edu.harvard.hms.dbmi.avillach.auth.service.auth.AuthorizationSnapshot;
+import edu.harvard.hms.dbmi.avillach.auth.service.auth.PrivilegeClaims;
+import edu.harvard.hms.dbmi.avillach.auth.service.auth.RevocationEpochs;
+import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.Jwts;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.mockito.Mockito.when;
+
+public class PrivilegeClaimsTest {
+
+    @Mock
+    RevocationEpochs revocationEpochs;
+
+    @InjectMocks
+    PrivilegeClaims privilegeClaims = new PrivilegeClaims();
+
+    private boolean statelessIntrospectionEnabled;
+
+    private User user;
+    private AuthorizationSnapshot snapshot;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        statelessIntrospectionEnabled = JAXRSConfiguration.statelessIntrospectionEnabled;
+        JAXRSConfiguration.statelessIntrospectionEnabled = true;
+
+        Role role = new Role();
+        role.setUuid(UUID.randomUUID());
+        role.setName("ROLE_CLAIMED");
+        user = new User();
+        user.setUuid(UUID.randomUUID());
+        user.setSubject("subject");
+        user.setEmail("user@example.com");
+        user.setRoles(new HashSet<>(Collections.singletonList(role)));
+        when(revocationEpochs.getUserEpoch(user.getUuid())).thenReturn(1L);
+        when(revocationEpochs.isLoaded()).thenReturn(true);
+
+        snapshot = AuthorizationSnapshot.build(1, user.getRoles(), Collections.emptyList());
+    }
+
+    @After
+    public void tearDown() {
+        JAXRSConfiguration.statelessIntrospectionEnabled = statelessIntrospectionEnabled;
+    }
+
+    private Claims claimsOf(User user) {
+        Map<String, Object> claims = new HashMap<>();
+        claims.put("sub", user.getSubject());
+        claims.put("email", user.getEmail());
+        privilegeClaims.addTo(claims, user);
+        return Jwts.claims(claims);
+    }
+
+    @Test
+    public void testUserFromClaims() {
+        User claimed = privilegeClaims.userFrom(claimsOf(user), snapshot);
+
+        Assert.assertNotNull(claimed);
+        Assert.assertEquals(user.getUuid(), claimed.getUuid());
+        Assert.assertEquals("subject", claimed.getSubject());
+        Assert.assertEquals("user@example.com", claimed.getEmail());
+        Assert.assertEquals(1, claimed.getRoles().size());
+        Assert.assertEquals(user.getRoles().iterator().next().getUuid(), claimed.getRoles().iterator().next().getUuid());
+    }
+
+    @Test
+    public void testEpochMismatch() {
+        Claims claims = claimsOf(user);
+
+        // the user has been changed since the token was issued
+        when(revocationEpochs.getUserEpoch(user.getUuid())).thenReturn(2L);
+
+        Assert.assertNull(privilegeClaims.userFrom(claims, snapshot));
+    }
+
+    @Test
+    public void testNotTrustedUntilEpochsLoaded() {
+        // issued before the user has ever been changed
+        when(revocationEpochs.getUserEpoch(user.getUuid())).thenReturn(0L);
+        Claims claims = claimsOf(user);
+
+        // the user has been changed since, but the epochs could not be loaded
+        when(revocationEpochs.isLoaded()).thenReturn(false);
+        Assert.assertNull(privilegeClaims.userFrom(claims, snapshot));
+
+        when(revocationEpochs.isLoaded()).thenReturn(true);
+        Assert.assertNotNull(privilegeClaims.userFrom(claims, snapshot));
+    }
+
+    @Test
+    public void testRoleMissingFromSnapshot() {
+        Role created = new Role();
+        created.setUuid(UUID.randomUUID());
+        created.setName("ROLE_CREATED_SINCE");
+        user.getRoles().add(created);
+
+        Assert.assertNull(privilegeClaims.userFrom(claimsOf(user), snapshot));
+    }
+
+    @Test
+    public void testMalformedClaims() {
+        Claims claims = claimsOf(user);
+        claims.put(PrivilegeClaims.USER_ID, "not a uuid");
+        Assert.assertNull(privilegeClaims.userFrom(claims, snapshot));
+
+        claims = claimsOf(user);
+        claims.put(PrivilegeClaims.ROLES, Arrays.asList("not a uuid"));
+        Assert.assertNull(privilegeClaims.userFrom(claims, snapshot));
+
+        claims = claimsOf(user);
+        claims.put(PrivilegeClaims.ROLES, user.getRoles().iterator().next().getUuid().toString());
+        Assert.assertNull("the roles are not a list", privilegeClaims.userFrom(claims, snapshot));
+
+        claims = claimsOf(user);
+        claims.put(PrivilegeClaims.EPOCH, "1");
+        Assert.assertNull("the epoch is not a number", privilegeClaims.userFrom(claims, snapshot));
+
+        claims = claimsOf(user);
+        claims.remove(PrivilegeClaims.USER_ID);
+        Assert.assertNull(privilegeClaims.userFrom(claims, snapshot));
+    }
+
+    @Test
+    public void testDisabledClaimsStrippedOnRefresh() {
+        Claims claims = claimsOf(user);
+        Map<String, Object> refreshedClaims = new HashMap<>(claims);
+        Assert.assertTrue(refreshedClaims.containsKey(PrivilegeClaims.ROLES));
+
+        JAXRSConfiguration.statelessIntrospectionEnabled = false;
+        privilegeClaims.addTo(refreshedClaims, user);
+
+        Assert.assertFalse(refreshedClaims.containsKey(PrivilegeClaims.USER_ID));
+        Assert.assertFalse(refreshedClaims.containsKey(PrivilegeClaims.ROLES));
+        Assert.assertFalse(refreshedClaims.containsKey(PrivilegeClaims.EPOCH));
+        Assert.assertEquals("subject", refreshedClaims.get("sub"));
+
+        Assert.assertNull("claims still carried by older tokens are not trusted",
+                privilegeClaims.userFrom(claims, snapshot));
+    }
+}
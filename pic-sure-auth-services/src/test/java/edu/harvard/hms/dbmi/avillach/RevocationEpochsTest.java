@@ -0,0 +1,180 @@
+package edu.harvard.hms.dbmi.avillach;
+
+import edu.harvard.hms.dbmi.avillach.auth.data.entity.RevocationEpoch;
+import edu.harvard.hms.dbmi.avillach.auth.data.repository.RevocationEpochRepository;
+import edu.harvard.hms.dbmi.avillach.auth.service.auth.AfterCommit;
+import edu.harvard.hms.dbmi.avillach.auth.service.auth.RevocationEpochs;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.Spy;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class RevocationEpochsTest {
+
+    private static final long POLL_OVERLAP = 1000L * 60;
+
+    AfterCommitTest.Transaction transaction = new AfterCommitTest.Transaction();
+
+    @Mock
+    RevocationEpochRepository revocationEpochRepo;
+
+    @Spy
+    AfterCommit afterCommit = new AfterCommit(transaction);
+
+    @InjectMocks
+    RevocationEpochs revocationEpochs = new RevocationEpochs();
+
+    /**
+     * the revocationEpoch table, shared by every node
+     */
+    List<RevocationEpoch> table = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        readTable();
+        doAnswer(invocation -> {
+            table.add(epoch(invocation.getArgument(0), invocation.getArgument(1), invocation.getArgument(2)));
+            return null;
+        }).when(revocationEpochRepo).raise(any(), anyString(), anyLong());
+    }
+
+    private void readTable() {
+        doAnswer(invocation -> {
+            long since = invocation.getArgument(0);
+            return table.stream().filter(epoch -> epoch.getEpoch() > since).collect(Collectors.toList());
+        }).when(revocationEpochRepo).getRaisedSince(anyLong());
+    }
+
+    private static RevocationEpoch epoch(UUID uuid, String type, long epoch) {
+        RevocationEpoch revocationEpoch = new RevocationEpoch().setType(type).setEpoch(epoch);
+        revocationEpoch.setUuid(uuid);
+        return revocationEpoch;
+    }
+
+    @Test
+    public void testFirstLoadReadsEveryEpoch() {
+        UUID user = UUID.randomUUID(), application = UUID.randomUUID();
+        table.add(epoch(user, RevocationEpoch.USER, 1000));
+        table.add(epoch(application, RevocationEpoch.APPLICATION, 2000));
+
+        revocationEpochs.start(0);
+
+        verify(revocationEpochRepo).getRaisedSince(Long.MIN_VALUE);
+        Assert.assertTrue(revocationEpochs.isLoaded());
+        Assert.assertEquals(1000, revocationEpochs.getUserEpoch(user));
+        Assert.assertEquals(2000, revocationEpochs.getApplicationEpoch(application));
+        Assert.assertEquals("never changed", 0, revocationEpochs.getUserEpoch(UUID.randomUUID()));
+        Assert.assertEquals("an application epoch is not a user epoch", 0, revocationEpochs.getUserEpoch(application));
+    }
+
+    @Test
+    public void testNotLoadedUntilAPollSucceeds() {
+        UUID user = UUID.randomUUID();
+        table.add(epoch(user, RevocationEpoch.USER, 1000));
+        when(revocationEpochRepo.getRaisedSince(anyLong())).thenThrow(new RuntimeException("database down"));
+
+        try {
+            revocationEpochs.start(0);
+            Assert.assertFalse(revocationEpochs.isLoaded());
+            Assert.assertEquals(0, revocationEpochs.getUserEpoch(user));
+
+            readTable();
+            revocationEpochs.poll();
+            Assert.assertTrue(revocationEpochs.isLoaded());
+            Assert.assertEquals(1000, revocationEpochs.getUserEpoch(user));
+        } finally {
+            // the first load failing starts the retries even without polling
+            revocationEpochs.stop();
+        }
+    }
+
+    @Test
+    public void testPollOverlapsTheHighestEpochSeen() {
+        long now = System.currentTimeMillis();
+        UUID user = UUID.randomUUID(), late = UUID.randomUUID();
+        table.add(epoch(user, RevocationEpoch.USER, now));
+        revocationEpochs.start(0);
+
+        // raised on a node with its clock behind, committed after the first load
+        table.add(epoch(late, RevocationEpoch.USER, now - POLL_OVERLAP / 2));
+        revocationEpochs.poll();
+
+        verify(revocationEpochRepo).getRaisedSince(now - POLL_OVERLAP);
+        Assert.assertEquals(now - POLL_OVERLAP / 2, revocationEpochs.getUserEpoch(late));
+        Assert.assertEquals(now, revocationEpochs.getUserEpoch(user));
+    }
+
+    @Test
+    public void testPollNeverLowersAnEpoch() {
+        UUID user = UUID.randomUUID();
+        revocationEpochs.start(0);
+        revocationEpochs.bumpUser(user);
+        long bumped = revocationEpochs.getUserEpoch(user);
+
+        table.add(epoch(user, RevocationEpoch.USER, bumped - 1));
+        revocationEpochs.poll();
+
+        Assert.assertEquals(bumped, revocationEpochs.getUserEpoch(user));
+    }
+
+    @Test
+    public void testBumpIsSeenOnceCommitted() {
+        UUID user = UUID.randomUUID();
+        revocationEpochs.start(0);
+
+        transaction.begin();
+        revocationEpochs.bumpUser(user);
+        Assert.assertEquals(1, table.size());
+        Assert.assertEquals("not committed yet", 0, revocationEpochs.getUserEpoch(user));
+
+        transaction.commit();
+        Assert.assertEquals(table.get(0).getEpoch(), revocationEpochs.getUserEpoch(user));
+    }
+
+    @Test
+    public void testRolledBackBumpIsNeverSeen() {
+        UUID application = UUID.randomUUID();
+        revocationEpochs.start(0);
+
+        transaction.begin();
+        revocationEpochs.bumpApplication(application);
+        transaction.rollback();
+
+        Assert.assertEquals(0, revocationEpochs.getApplicationEpoch(application));
+    }
+
+    @Test
+    public void testBumpsMoveTheEpochOn() {
+        UUID user = UUID.randomUUID();
+        revocationEpochs.start(0);
+
+        long previous = revocationEpochs.getUserEpoch(user);
+        for (int i = 0; i < 5; i++) {
+            // faster than the clock, every bump must still raise the epoch
+            transaction.begin();
+            revocationEpochs.bumpUser(user);
+            transaction.commit();
+
+            long epoch = revocationEpochs.getUserEpoch(user);
+            Assert.assertTrue(epoch > previous);
+            Assert.assertEquals(epoch, table.get(table.size() - 1).getEpoch());
+            previous = epoch;
+        }
+    }
+}
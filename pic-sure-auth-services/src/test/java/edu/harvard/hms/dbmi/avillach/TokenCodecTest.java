@@ -0,0 +1,85 @@
+package edu.harvard.hms.dbmi.avillach;
+
+import edu.harvard.hms.dbmi.avillach.auth.JAXRSConfiguration;
+import edu.harvard.hms.dbmi.avillach.auth.utils.TokenCodec;
+import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.Jws;
+import io.jsonwebtoken.JwtException;
+import io.jsonwebtoken.Jwts;
+import io.jsonwebtoken.SignatureAlgorithm;
+import org.apache.commons.codec.binary.Base64;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+
+public class TokenCodecTest {
+
+    private static final String SECRET = Base64.encodeBase64String("a secret long enough for HS256 tokens".getBytes(StandardCharsets.UTF_8));
+    private static final String PREVIOUS_SECRET = Base64.encodeBase64String("the secret used before the rotation".getBytes(StandardCharsets.UTF_8));
+
+    @Test
+    public void testTokenCarriesKeyId() {
+        TokenCodec codec = new TokenCodec(SECRET, true, Collections.emptyList());
+
+        String token = codec.sign(Jwts.builder().setSubject("user"));
+        Jws<Claims> jws = codec.parse(token);
+
+        Assert.assertEquals("user", jws.getBody().getSubject());
+        Assert.assertEquals(codec.getKeyId(), jws.getHeader().getKeyId());
+    }
+
+    @Test
+    public void testTokenWithoutKeyIdIsStillVerified() {
+        TokenCodec codec = new TokenCodec(SECRET, true, Collections.emptyList());
+
+        String raw = Jwts.builder().setSubject("raw").signWith(SignatureAlgorithm.HS256, SECRET.getBytes()).compact();
+        String decoded = Jwts.builder().setSubject("decoded")
+                .signWith(SignatureAlgorithm.HS256, Base64.decodeBase64(SECRET)).compact();
+
+        Assert.assertEquals("raw", codec.parse(raw).getBody().getSubject());
+        Assert.assertEquals("decoded", codec.parse(decoded).getBody().getSubject());
+    }
+
+    @Test
+    public void testRotatedSecret() {
+        TokenCodec previous = new TokenCodec(PREVIOUS_SECRET, true, Collections.emptyList());
+        String token = previous.sign(Jwts.builder().setSubject("user"));
+
+        TokenCodec rotated = new TokenCodec(SECRET, true, Collections.singletonList(PREVIOUS_SECRET));
+        Assert.assertNotEquals(previous.getKeyId(), rotated.getKeyId());
+        Assert.assertEquals("user", rotated.parse(token).getBody().getSubject());
+
+        TokenCodec withoutPrevious = new TokenCodec(SECRET, true, Collections.emptyList());
+        try {
+            withoutPrevious.parse(token);
+            Assert.fail("a token signed with a secret that is no longer configured should not be verified");
+        } catch (JwtException ex) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testOtherSecretKeepsTheCodecInUse() {
+        String clientSecret = JAXRSConfiguration.clientSecret;
+        try {
+            JAXRSConfiguration.clientSecret = SECRET;
+            TokenCodec.initialize();
+            TokenCodec inUse = TokenCodec.forSecret(SECRET);
+
+            TokenCodec other = TokenCodec.forSecret(PREVIOUS_SECRET);
+            Assert.assertNotEquals(inUse.getKeyId(), other.getKeyId());
+            try {
+                inUse.parse(other.sign(Jwts.builder().setSubject("user")));
+                Assert.fail("a token signed with another secret should not be verified by the codec in use");
+            } catch (JwtException ex) {
+                // expected
+            }
+
+            Assert.assertSame(inUse, TokenCodec.forSecret(SECRET));
+        } finally {
+            JAXRSConfiguration.clientSecret = clientSecret;
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package edu.harvard.hms.dbmi.avillach;
+
+import edu.harvard.hms.dbmi.avillach.auth.JAXRSConfiguration;
+import edu.harvard.hms.dbmi.avillach.auth.data.entity.Application;
+import edu.harvard.hms.dbmi.avillach.auth.data.entity.User;
+import edu.harvard.hms.dbmi.avillach.auth.data.repository.UserRepository;
+import edu.harvard.hms.dbmi.avillach.auth.rest.TokenService;
+import edu.harvard.hms.dbmi.avillach.auth.service.auth.AccessLogWriter;
+import edu.harvard.hms.dbmi.avillach.auth.service.auth.AuthorizationService;
+import edu.harvard.hms.dbmi.avillach.auth.service.auth.AuthorizationSnapshot;
+import edu.harvard.hms.dbmi.avillach.auth.service.auth.AuthorizationSnapshotHolder;
+import edu.harvard.hms.dbmi.avillach.auth.service.auth.PrivilegeClaims;
+import edu.harvard.hms.dbmi.avillach.auth.utils.JWTUtil;
+import org.apache.commons.codec.binary.Base64;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.SecurityContext;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class TokenServiceTest {
+
+    private static final String SECRET = Base64.encodeBase64String("a secret long enough for HS256 tokens".getBytes(StandardCharsets.UTF_8));
+
+    @Mock
+    UserRepository userRepo;
+
+    @Mock
+    AuthorizationService authorizationService;
+
+    @Mock
+    AuthorizationSnapshotHolder authorizationSnapshot;
+
+    @Mock
+    AccessLogWriter accessLogWriter;
+
+    @Mock
+    PrivilegeClaims privilegeClaims;
+
+    @Mock
+    SecurityContext securityContext;
+
+    @InjectMocks
+    TokenService tokenService = new TokenService();
+
+    private Application application;
+
+    private String clientSecret;
+    private int tokenInspectBatchMaxSize;
+    private boolean ruleTracingEnabled;
+    private String ruleTracingApplications;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        clientSecret = JAXRSConfiguration.clientSecret;
+        tokenInspectBatchMaxSize = JAXRSConfiguration.tokenInspectBatchMaxSize;
+        ruleTracingEnabled = JAXRSConfiguration.ruleTracingEnabled;
+        ruleTracingApplications = JAXRSConfiguration.ruleTracingApplications;
+        JAXRSConfiguration.clientSecret = SECRET;
+
+        application = new Application();
+        application.setUuid(UUID.randomUUID());
+        application.setName("PICSURE");
+        when(securityContext.getUserPrincipal()).thenReturn(application);
+        // the application has no privileges, every user is authorized
+        when(authorizationSnapshot.get()).thenReturn(AuthorizationSnapshot.build(1, Collections.emptyList(), Collections.emptyList()));
+    }
+
+    @After
+    public void tearDown() {
+        JAXRSConfiguration.clientSecret = clientSecret;
+        JAXRSConfiguration.tokenInspectBatchMaxSize = tokenInspectBatchMaxSize;
+        JAXRSConfiguration.ruleTracingEnabled = ruleTracingEnabled;
+        JAXRSConfiguration.ruleTracingApplications = ruleTracingApplications;
+    }
+
+    private String tokenFor(String subject) {
+        return JWTUtil.createJwtToken(SECRET, null, null, new HashMap<>(), userFor(subject).getSubject(), 1000L * 60);
+    }
+
+    private User userFor(String subject) {
+        User user = new User();
+        user.setUuid(UUID.randomUUID());
+        user.setSubject(subject);
+        user.setActive(true);
+        user.setRoles(Collections.emptySet());
+        when(userRepo.getUniqueResultByColumn("subject", subject)).thenReturn(user);
+        return user;
+    }
+
+    private static Map<String, Object> request(String token) {
+        Map<String, Object> request = new HashMap<>();
+        request.put("token", token);
+        return request;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Map<String, Object>> responses(Response response) {
+        return (List<Map<String, Object>>) response.getEntity();
+    }
+
+    @Test
+    public void testBatchKeepsRequestOrder() {
+        String first = tokenFor("first"), second = tokenFor("second");
+
+        List<Map<String, Object>> responses = responses(tokenService.inspectTokenBatch(Arrays.asList(
+                request(first), request("not a token"), request(second), request(first), null)));
+
+        Assert.assertEquals(5, responses.size());
+        Assert.assertEquals(true, responses.get(0).get("active"));
+        Assert.assertEquals("first", responses.get(0).get("sub"));
+        Assert.assertEquals(false, responses.get(1).get("active"));
+        Assert.assertNotNull("an invalid token says why", responses.get(1).get("message"));
+        Assert.assertEquals(true, responses.get(2).get("active"));
+        Assert.assertEquals("second", responses.get(2).get("sub"));
+        Assert.assertEquals(true, responses.get(3).get("active"));
+        Assert.assertEquals("first", responses.get(3).get("sub"));
+        Assert.assertEquals(false, responses.get(4).get("active"));
+        Assert.assertEquals("Token not found", responses.get(4).get("message"));
+    }
+
+    @Test
+    public void testRepeatedTokenIsResolvedOnce() {
+        String token = tokenFor("repeated");
+
+        List<Map<String, Object>> responses = responses(tokenService.inspectTokenBatch(Arrays.asList(
+                request(token), request(token), request(token))));
+
+        Assert.assertEquals(3, responses.size());
+        for (Map<String, Object> response : responses)
+            Assert.assertEquals(true, response.get("active"));
+        verify(userRepo, times(1)).getUniqueResultByColumn("subject", "repeated");
+        verify(authorizationSnapshot, times(1)).get();
+    }
+
+    @Test
+    public void testBatchAboveMaxSizeIsRejected() {
+        JAXRSConfiguration.tokenInspectBatchMaxSize = 2;
+        String token = tokenFor("user");
+
+        List<Map<String, Object>> inputList = new ArrayList<>();
+        for (int i = 0; i < 3; i++)
+            inputList.add(request(token));
+
+        Assert.assertEquals(400, tokenService.inspectTokenBatch(inputList).getStatus());
+        Assert.assertEquals(200, tokenService.inspectTokenBatch(inputList.subList(0, 2)).getStatus());
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testTraceOnlyReturnedToRuleTracingApplications() {
+        JAXRSConfiguration.ruleTracingEnabled = true;
+        JAXRSConfiguration.ruleTracingApplications = UUID.randomUUID().toString();
+        String token = tokenFor("user");
+
+        Map<String, Object> request = request(token);
+        request.put("trace", true);
+        Map<String, Object> response = (Map<String, Object>) tokenService.inspectToken(request).getEntity();
+        Assert.assertEquals(true, response.get("active"));
+        Assert.assertFalse(response.containsKey("authorizationTrace"));
+
+        JAXRSConfiguration.ruleTracingApplications = UUID.randomUUID() + ", " + application.getUuid();
+        request = request(token);
+        request.put("trace", true);
+        response = (Map<String, Object>) tokenService.inspectToken(request).getEntity();
+        Assert.assertTrue(response.containsKey("authorizationTrace"));
+
+        request = request(token);
+        response = (Map<String, Object>) tokenService.inspectToken(request).getEntity();
+        Assert.assertFalse("not asked for", response.containsKey("authorizationTrace"));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testPrivilegeClaimsRemovedFromResponse() {
+        User user = userFor("user");
+        Map<String, Object> claims = new HashMap<>();
+        claims.put(PrivilegeClaims.USER_ID, user.getUuid().toString());
+        claims.put(PrivilegeClaims.ROLES, Collections.emptyList());
+        claims.put(PrivilegeClaims.EPOCH, 0L);
+        String token = JWTUtil.createJwtToken(SECRET, null, null, claims, "user", 1000L * 60);
+
+        Map<String, Object> response = (Map<String, Object>) tokenService.inspectToken(request(token)).getEntity();
+
+        Assert.assertEquals(true, response.get("active"));
+        Assert.assertEquals("user", response.get("sub"));
+        Assert.assertFalse(response.containsKey(PrivilegeClaims.USER_ID));
+        Assert.assertFalse(response.containsKey(PrivilegeClaims.ROLES));
+        Assert.assertFalse(response.containsKey(PrivilegeClaims.EPOCH));
+    }
+}
@@ -0,0 +1,136 @@
+package edu.harvard.hms.dbmi.avillach;
+
+import edu.harvard.hms.dbmi.avillach.auth.JAXRSConfiguration;
+import edu.harvard.hms.dbmi.avillach.auth.data.entity.Role;
+import edu.harvard.hms.dbmi.avillach.auth.data.entity.User;
+import edu.harvard.hms.dbmi.avillach.auth.security.UserPrincipalCache;
+import edu.harvard.hms.dbmi.avillach.auth.service.auth.EntityChanged;
+import edu.harvard.hms.dbmi.avillach.auth.service.auth.RevocationEpochs;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.UUID;
+
+import static org.mockito.Mockito.when;
+
+public class UserPrincipalCacheTest {
+
+    @Mock
+    RevocationEpochs revocationEpochs;
+
+    @InjectMocks
+    UserPrincipalCache principalCache = new UserPrincipalCache();
+
+    private long principalCacheTTL;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        when(revocationEpochs.isLoaded()).thenReturn(true);
+        principalCacheTTL = JAXRSConfiguration.principalCacheTTL;
+        JAXRSConfiguration.principalCacheTTL = 1000L * 60;
+    }
+
+    @After
+    public void tearDown() {
+        JAXRSConfiguration.principalCacheTTL = principalCacheTTL;
+    }
+
+    private static User user() {
+        User user = new User();
+        user.setUuid(UUID.randomUUID());
+        user.setSubject("subject|" + user.getUuid());
+        user.setActive(true);
+        return user;
+    }
+
+    @Test
+    public void testHit() {
+        User user = user();
+        Assert.assertNull(principalCache.get(user.getSubject()));
+
+        UserPrincipalCache.CachedPrincipal principal = principalCache.put(user.getSubject(), user, true);
+
+        Assert.assertSame(principal, principalCache.get(user.getSubject()));
+        Assert.assertSame(user, principal.getUser());
+        Assert.assertTrue(principal.isActive());
+        Assert.assertTrue(principal.isTosAccepted());
+        Assert.assertNull("the user has no roles", principal.getPrivilegeNameSet());
+    }
+
+    @Test
+    public void testInvalidation() {
+        User user = user(), other = user();
+        principalCache.put(user.getSubject(), user, true);
+        principalCache.put(other.getSubject(), other, true);
+
+        principalCache.invalidateUser(user.getUuid());
+        Assert.assertNull(principalCache.get(user.getSubject()));
+        Assert.assertNotNull(principalCache.get(other.getSubject()));
+
+        principalCache.put(user.getSubject(), user, true);
+        principalCache.invalidateSubject(user.getSubject());
+        Assert.assertNull(principalCache.get(user.getSubject()));
+        Assert.assertNotNull(principalCache.get(other.getSubject()));
+
+        principalCache.put(user.getSubject(), user, true);
+        principalCache.onEntityChanged(new EntityChanged(Role.class.getSimpleName(), UUID.randomUUID(), UUID.randomUUID()));
+        Assert.assertNull("a role change may affect every user", principalCache.get(user.getSubject()));
+        Assert.assertNull(principalCache.get(other.getSubject()));
+
+        principalCache.put(user.getSubject(), user, true);
+        principalCache.onEntityChanged(new EntityChanged(User.class.getSimpleName(), user.getUuid(), UUID.randomUUID()));
+        Assert.assertNull(principalCache.get(user.getSubject()));
+    }
+
+    @Test
+    public void testEpochMismatch() {
+        User user = user(), other = user();
+        when(revocationEpochs.getUserEpoch(user.getUuid())).thenReturn(1L);
+        principalCache.put(user.getSubject(), user, true);
+        principalCache.put(other.getSubject(), other, true);
+
+        // the user has been changed on another node
+        when(revocationEpochs.getUserEpoch(user.getUuid())).thenReturn(2L);
+
+        Assert.assertNull(principalCache.get(user.getSubject()));
+        Assert.assertNotNull(principalCache.get(other.getSubject()));
+    }
+
+    @Test
+    public void testNothingCachedUntilEpochsLoaded() {
+        User user = user();
+        when(revocationEpochs.isLoaded()).thenReturn(false);
+
+        Assert.assertNotNull(principalCache.put(user.getSubject(), user, true));
+        Assert.assertNull(principalCache.get(user.getSubject()));
+
+        when(revocationEpochs.isLoaded()).thenReturn(true);
+        Assert.assertNull("never cached", principalCache.get(user.getSubject()));
+    }
+
+    @Test
+    public void testExpiry() throws InterruptedException {
+        JAXRSConfiguration.principalCacheTTL = 1;
+        User user = user();
+        principalCache.put(user.getSubject(), user, true);
+
+        Thread.sleep(10);
+
+        Assert.assertNull(principalCache.get(user.getSubject()));
+    }
+
+    @Test
+    public void testDisabled() {
+        JAXRSConfiguration.principalCacheTTL = 0;
+        User user = user();
+
+        Assert.assertNotNull(principalCache.put(user.getSubject(), user, false));
+        Assert.assertNull(principalCache.get(user.getSubject()));
+    }
+}
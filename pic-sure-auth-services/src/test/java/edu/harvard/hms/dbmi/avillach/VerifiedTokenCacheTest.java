@@ -0,0 +1,113 @@
+package edu.harvard.hms.dbmi.avillach;
+
+import edu.harvard.hms.dbmi.avillach.auth.utils.VerifiedTokenCache;
+import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.Jws;
+import io.jsonwebtoken.JwsHeader;
+import io.jsonwebtoken.Jwts;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+public class VerifiedTokenCacheTest {
+
+    private static final String SECRET = "secret";
+
+    private static Jws<Claims> jws(long expiresInSeconds) {
+        Map<String, Object> body = new HashMap<>();
+        body.put("sub", "user");
+        body.put("exp", System.currentTimeMillis() / 1000 + expiresInSeconds);
+        body.put("roles", new ArrayList<>(Arrays.asList("ROLE_A", "ROLE_B")));
+        Claims claims = Jwts.claims(body);
+        return new Jws<Claims>() {
+            @Override
+            public JwsHeader getHeader() {
+                return null;
+            }
+
+            @Override
+            public Claims getBody() {
+                return claims;
+            }
+
+            @Override
+            public String getSignature() {
+                return "signature";
+            }
+        };
+    }
+
+    private static String token() {
+        return "token-" + UUID.randomUUID();
+    }
+
+    @Test
+    public void testHit() {
+        String token = token();
+        Assert.assertNull(VerifiedTokenCache.get(SECRET, token));
+
+        VerifiedTokenCache.put(SECRET, token, jws(60));
+
+        Jws<Claims> cached = VerifiedTokenCache.get(SECRET, token);
+        Assert.assertNotNull(cached);
+        Assert.assertEquals("user", cached.getBody().getSubject());
+        Assert.assertNull("verified with another secret", VerifiedTokenCache.get("other secret", token));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testCallersCannotChangeCachedClaims() {
+        String token = token();
+        Jws<Claims> jws = jws(60);
+        VerifiedTokenCache.put(SECRET, token, jws);
+        jws.getBody().put("sub", "changed after put");
+
+        Jws<Claims> cached = VerifiedTokenCache.get(SECRET, token);
+        cached.getBody().put("sub", "changed after get");
+        ((List<String>) cached.getBody().get("roles")).add("ROLE_C");
+
+        Claims claims = VerifiedTokenCache.get(SECRET, token).getBody();
+        Assert.assertEquals("user", claims.getSubject());
+        Assert.assertEquals(Arrays.asList("ROLE_A", "ROLE_B"), claims.get("roles"));
+    }
+
+    @Test
+    public void testExpiresAtExp() {
+        String token = token();
+        VerifiedTokenCache.put(SECRET, token, jws(0));
+
+        Assert.assertNull(VerifiedTokenCache.get(SECRET, token));
+    }
+
+    @Test
+    public void testTokenWithoutExpirationIsNotCached() {
+        String token = token();
+        Jws<Claims> jws = jws(60);
+        jws.getBody().remove("exp");
+        VerifiedTokenCache.put(SECRET, token, jws);
+
+        Assert.assertNull(VerifiedTokenCache.get(SECRET, token));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsEvicted() {
+        String first = token(), second = token();
+        VerifiedTokenCache.put(SECRET, first, jws(60));
+        VerifiedTokenCache.put(SECRET, second, jws(60));
+        // fills the cache, evicting whatever was cached before
+        for (int i = 0; i < VerifiedTokenCache.MAX_TOKENS - 2; i++)
+            VerifiedTokenCache.put(SECRET, token(), jws(60));
+
+        Assert.assertNotNull(VerifiedTokenCache.get(SECRET, first));
+        VerifiedTokenCache.put(SECRET, token(), jws(60));
+
+        Assert.assertNull(VerifiedTokenCache.get(SECRET, second));
+        Assert.assertNotNull(VerifiedTokenCache.get(SECRET, first));
+    }
+}